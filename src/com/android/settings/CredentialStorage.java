@@ -45,6 +45,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.android.internal.widget.LockPatternUtils;
+import com.android.settings.vpn2.VpnProfileCache;
 import com.android.org.bouncycastle.asn1.ASN1InputStream;
 import com.android.org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
 
@@ -341,6 +342,8 @@ public final class CredentialStorage extends Activity {
 
             // Clear all the users credentials could have been installed in for this user.
             new LockPatternUtils(CredentialStorage.this).resetKeyStore(UserHandle.myUserId());
+            // This also deleted the VPN profiles
+            VpnProfileCache.getInstance().invalidate();
 
             try {
                 KeyChainConnection keyChainConnection = KeyChain.bind(CredentialStorage.this);
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.ArraySet;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Runs non-critical activity setup on the main thread once the first frame was drawn, so
+ * that the screen shows up before it. Tasks either run right after the first frame or when
+ * the main looper is idle, and only after all the tasks they depend on have run.
+ */
+public class DeferredInitScheduler {
+    /** Run right after the first frame. */
+    public static final int AFTER_FIRST_FRAME = 0;
+    /** Run once the main looper has nothing else to do after the first frame. */
+    public static final int WHEN_IDLE = 1;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Task> mPending = new ArrayList<>();
+    private final ArraySet<String> mCompleted = new ArraySet<>();
+
+    private boolean mFirstFrameDrawn;
+    private boolean mIdleHandlerAdded;
+
+    private static class Task {
+        final String name;
+        final int when;
+        final Runnable runnable;
+        final String[] dependencies;
+
+        Task(String name, int when, Runnable runnable, String[] dependencies) {
+            this.name = name;
+            this.when = when;
+            this.runnable = runnable;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * Start waiting for the first frame of the given view. Tasks scheduled before that run
+     * once it was drawn, tasks scheduled after it are run as soon as possible.
+     */
+    public void attach(final View view) {
+        view.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        view.getViewTreeObserver().removeOnPreDrawListener(this);
+                        // Post so the tasks run after this frame was drawn
+                        mHandler.post(mOnFirstFrame);
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param name unique name, also used as trace span and for dependencies.
+     * @param when {@link #AFTER_FIRST_FRAME} or {@link #WHEN_IDLE}.
+     * @param dependencies names of the tasks that must have run before this one.
+     */
+    public void schedule(String name, int when, Runnable runnable, String... dependencies) {
+        mPending.add(new Task(name, when, runnable, dependencies));
+        if (mFirstFrameDrawn) {
+            mHandler.post(mRunReady);
+        }
+    }
+
+    public boolean hasRun(String name) {
+        return mCompleted.contains(name);
+    }
+
+    /**
+     * Drop the named task if it has not run yet.
+     */
+    public void cancel(String name) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            if (mPending.get(i).name.equals(name)) {
+                mPending.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Drop every task that has not run yet, for example from {@code onDestroy}.
+     */
+    public void cancelAll() {
+        mPending.clear();
+        mHandler.removeCallbacksAndMessages(null);
+        if (mIdleHandlerAdded) {
+            Looper.myQueue().removeIdleHandler(mIdleHandler);
+            mIdleHandlerAdded = false;
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Deferred init: firstFrameDrawn=");
+        writer.print(mFirstFrameDrawn);
+        writer.print(" completed=");
+        writer.print(mCompleted);
+        writer.print(" pending=[");
+        for (int i = 0; i < mPending.size(); i++) {
+            if (i > 0) writer.print(", ");
+            writer.print(mPending.get(i).name);
+        }
+        writer.println("]");
+    }
+
+    private final Runnable mOnFirstFrame = new Runnable() {
+        @Override
+        public void run() {
+            mFirstFrameDrawn = true;
+            runReady(AFTER_FIRST_FRAME);
+        }
+    };
+
+    private final Runnable mRunReady = new Runnable() {
+        @Override
+        public void run() {
+            runReady(AFTER_FIRST_FRAME);
+        }
+    };
+
+    private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            // one idle task per idle period, so input is never blocked by a long chain
+            final boolean ranAny = runNext(WHEN_IDLE);
+            if (ranAny) {
+                runReady(AFTER_FIRST_FRAME);
+            }
+            final boolean keep = hasPending(WHEN_IDLE);
+            mIdleHandlerAdded = keep;
+            return keep;
+        }
+    };
+
+    /**
+     * Run every ready task that may run right away, repeating as long as running one makes
+     * others ready.
+     */
+    private void runReady(int maxWhen) {
+        while (runNext(maxWhen)) {
+        }
+        if (!mIdleHandlerAdded && hasPending(WHEN_IDLE)) {
+            mIdleHandlerAdded = true;
+            Looper.myQueue().addIdleHandler(mIdleHandler);
+        }
+    }
+
+    private boolean runNext(int maxWhen) {
+        for (int i = 0; i < mPending.size(); i++) {
+            final Task task = mPending.get(i);
+            if (task.when <= maxWhen && isReady(task)) {
+                mPending.remove(i);
+                final StartupTrace.Span span = StartupTrace.begin(task.name);
+                try {
+                    task.runnable.run();
+                } finally {
+                    span.end();
+                }
+                mCompleted.add(task.name);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isReady(Task task) {
+        for (String dependency : task.dependencies) {
+            if (!mCompleted.contains(dependency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasPending(int when) {
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).when == when) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Process wide cache of the labels and icons of packages and their components, keyed by
+ * package, component, user and version so that an update never shows stale values. Shared
+ * by the screens listing apps, so that moving between them does not load the same labels
+ * and decode the same icons again. Entries of a package are dropped when it changes, labels
+ * when the locale changes.
+ */
+public class PackageItemInfoCache {
+    private static final String TAG = "PackageItemInfoCache";
+    private static final boolean LOGD = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int MAX_LABELS = 256;
+    /** Upper bound of the memory used by cached icons. */
+    private static final int MAX_ICON_BYTES = 8 * 1024 * 1024;
+
+    private static PackageItemInfoCache sInstance;
+
+    /**
+     * Receives the values loaded by {@link #load}, on the main thread.
+     */
+    public interface OnLoadedListener {
+        void onLoaded(CharSequence label, Drawable icon);
+    }
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, CharSequence> mLabels = new LruCache<>(MAX_LABELS);
+    private final LruCache<String, CachedIcon> mIcons;
+
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * An icon with its estimated size, computed once when it is cached.
+     */
+    private static class CachedIcon {
+        final Drawable.ConstantState state;
+        final int bytes;
+
+        CachedIcon(Drawable.ConstantState state, int bytes) {
+            this.state = state;
+            this.bytes = bytes;
+        }
+    }
+
+    public static synchronized PackageItemInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PackageItemInfoCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PackageItemInfoCache(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        final int maxBytes = (int) Math.min(MAX_ICON_BYTES,
+                Runtime.getRuntime().maxMemory() / 16);
+        mIcons = new LruCache<String, CachedIcon>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, CachedIcon icon) {
+                return icon.bytes;
+            }
+        };
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, packageFilter, null,
+                null);
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_LOCALE_CHANGED);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiverAsUser(mReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    /**
+     * Return the label of the package or component, loading it on a miss.
+     */
+    public CharSequence getLabel(PackageItemInfo info) {
+        final String key = getKey(info);
+        CharSequence label = mLabels.get(key);
+        countLookup(label != null);
+        if (label == null) {
+            label = info.loadLabel(mPm);
+            mLabels.put(key, label);
+        }
+        return label;
+    }
+
+    /**
+     * Return the icon of the package or component, loading it on a miss. Every call returns
+     * a new drawable, so the result can be bound to a view without affecting other ones.
+     */
+    public Drawable getIcon(PackageItemInfo info) {
+        final String key = getKey(info);
+        final CachedIcon cached = mIcons.get(key);
+        countLookup(cached != null);
+        if (cached != null) {
+            return cached.state.newDrawable(mContext.getResources());
+        }
+        final Drawable icon = info.loadIcon(mPm);
+        if (icon != null && icon.getConstantState() != null) {
+            mIcons.put(key, new CachedIcon(icon.getConstantState(), getByteCount(icon)));
+        }
+        return icon;
+    }
+
+    /**
+     * Return the label and icon of the package or component through the listener. Cached
+     * values are delivered right away, missing ones are loaded in the background.
+     */
+    public void load(final PackageItemInfo info, final OnLoadedListener listener) {
+        final String key = getKey(info);
+        final CharSequence label = mLabels.get(key);
+        final CachedIcon cached = mIcons.get(key);
+        if (label != null && cached != null) {
+            countLookup(true);
+            listener.onLoaded(label, cached.state.newDrawable(mContext.getResources()));
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CharSequence label = getLabel(info);
+                final Drawable icon = getIcon(info);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onLoaded(label, icon);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drop the labels and icons of the given package, for all users.
+     */
+    public void invalidate(String packageName) {
+        final String prefix = packageName + '/';
+        for (String key : mLabels.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mLabels.remove(key);
+            }
+        }
+        for (String key : mIcons.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mIcons.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Percentage of lookups that were served from the cache.
+     */
+    public synchronized int getHitRate() {
+        final int total = mHits + mMisses;
+        return total != 0 ? mHits * 100 / total : 0;
+    }
+
+    private synchronized void countLookup(boolean hit) {
+        if (hit) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+    }
+
+    private static String getKey(PackageItemInfo info) {
+        final ApplicationInfo appInfo;
+        if (info instanceof ApplicationInfo) {
+            appInfo = (ApplicationInfo) info;
+        } else if (info instanceof ComponentInfo) {
+            appInfo = ((ComponentInfo) info).applicationInfo;
+        } else {
+            appInfo = null;
+        }
+        final int userId = appInfo != null
+                ? UserHandle.getUserId(appInfo.uid) : UserHandle.myUserId();
+        final int versionCode = appInfo != null ? appInfo.versionCode : 0;
+        return info.packageName + '/' + info.name + '/' + userId + '/' + versionCode;
+    }
+
+    private static int getByteCount(Drawable icon) {
+        final int width = Math.max(icon.getIntrinsicWidth(), 1);
+        final int height = Math.max(icon.getIntrinsicHeight(), 1);
+        return width * height * 4;
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            invalidate(intent.getData().getSchemeSpecificPart());
+        }
+    };
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (LOGD) {
+                Log.d(TAG, intent.getAction() + ", hit rate " + getHitRate() + "% over "
+                        + mLabels.size() + " labels and " + mIcons.size() + " icon bytes");
+            }
+            if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+                mLabels.evictAll();
+                return;
+            }
+            final String[] packages = intent.getStringArrayExtra(
+                    Intent.EXTRA_CHANGED_PACKAGE_LIST);
+            if (packages != null) {
+                for (String packageName : packages) {
+                    invalidate(packageName);
+                }
+            }
+        }
+    };
+}
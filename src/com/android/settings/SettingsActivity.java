@@ -46,6 +46,7 @@ import android.support.v7.preference.PreferenceManager;
 import android.telephony.CarrierConfigManager;
 import android.text.TextUtils;
 import android.transition.TransitionManager;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -151,6 +152,8 @@ import com.citrus.settings.fragments.StatusBarTickerSettings;
 import com.citrus.settings.fragments.PulseSettings;
 import com.citrus.settings.fragments.QuickSettings;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
@@ -263,6 +266,8 @@ public class SettingsActivity extends SettingsDrawerActivity
     private int mInitialTitleResId;
     private SmqSettings mSMQ;
 
+    private final DeferredInitScheduler mDeferredInit = new DeferredInitScheduler();
+
     // Show only these settings for restricted users
     private String[] SETTINGS_FOR_RESTRICTED = {
             //wireless_section
@@ -430,6 +435,7 @@ public class SettingsActivity extends SettingsDrawerActivity
 
                 if (mBatteryPresent != batteryPresent) {
                     mBatteryPresent = batteryPresent;
+                    TileStateCache.invalidate();
                     updateTilesList();
                 }
             }
@@ -443,6 +449,8 @@ public class SettingsActivity extends SettingsDrawerActivity
             if (action.equals(Intent.ACTION_USER_ADDED)
                     || action.equals(Intent.ACTION_USER_REMOVED)) {
                 Index.getInstance(getApplicationContext()).update();
+                TileStateCache.invalidate();
+                updateTilesList();
             }
         }
     };
@@ -575,6 +583,7 @@ public class SettingsActivity extends SettingsDrawerActivity
     protected void onCreate(Bundle savedState) {
         super.onCreate(savedState);
         long startTime = System.currentTimeMillis();
+        final StartupTrace.Span createSpan = StartupTrace.begin("SettingsActivity.onCreate");
 
         // Should happen before any call to getIntent()
         getMetaData();
@@ -589,6 +598,7 @@ public class SettingsActivity extends SettingsDrawerActivity
                }
             }
             finish();
+            createSpan.end();
             return;
         }
 
@@ -599,7 +609,13 @@ public class SettingsActivity extends SettingsDrawerActivity
             setIsDrawerPresent(false);
         }
 
-        mSMQ = new SmqSettings(getApplicationContext());
+        // Only needed for the tiles list, which is not needed to draw the first frame
+        mDeferredInit.schedule("smq", DeferredInitScheduler.AFTER_FIRST_FRAME, new Runnable() {
+            @Override
+            public void run() {
+                mSMQ = new SmqSettings(getApplicationContext());
+            }
+        });
 
         mDevelopmentPreferences = getSharedPreferences(DevelopmentSettings.PREF_FILE,
                 Context.MODE_PRIVATE);
@@ -635,23 +651,29 @@ public class SettingsActivity extends SettingsDrawerActivity
             }
         }
 
+        final StartupTrace.Span inflateSpan = StartupTrace.begin("setContentView");
         setContentView(mIsShowingDashboard ?
                 R.layout.settings_main_dashboard : R.layout.settings_main_prefs);
+        inflateSpan.end();
+        mDeferredInit.attach(getWindow().getDecorView());
 
         mContent = (ViewGroup) findViewById(R.id.main_content);
 
         getFragmentManager().addOnBackStackChangedListener(this);
 
         if (mIsShowingDashboard) {
-            // Run the Index update only if we have some space
-            if (!Utils.isLowStorage(this)) {
-                long indexStartTime = System.currentTimeMillis();
-                Index.getInstance(getApplicationContext()).update();
-                if (DEBUG_TIMING) Log.d(LOG_TAG, "Index.update() took "
-                        + (System.currentTimeMillis() - indexStartTime) + " ms");
-            } else {
-                Log.w(LOG_TAG, "Cannot update the Indexer as we are running low on storage space!");
-            }
+            // Run the Index update only if we have some space, and once the dashboard is shown
+            mDeferredInit.schedule("index", DeferredInitScheduler.WHEN_IDLE, new Runnable() {
+                @Override
+                public void run() {
+                    if (!Utils.isLowStorage(SettingsActivity.this)) {
+                        Index.getInstance(getApplicationContext()).update();
+                    } else {
+                        Log.w(LOG_TAG, "Cannot update the Indexer as we are running low on "
+                                + "storage space!");
+                    }
+                }
+            });
         }
 
         if (savedState != null) {
@@ -769,6 +791,7 @@ public class SettingsActivity extends SettingsDrawerActivity
             }
         }
 
+        createSpan.end();
         if (DEBUG_TIMING) Log.d(LOG_TAG, "onCreate took " + (System.currentTimeMillis() - startTime)
                 + " ms");
     }
@@ -872,6 +895,7 @@ public class SettingsActivity extends SettingsDrawerActivity
     @Override
     protected void onStart() {
         super.onStart();
+        final StartupTrace.Span startSpan = StartupTrace.begin("SettingsActivity.onStart");
 
         if (mNeedToRevertToInitialFragment) {
             revertToInitialFragment();
@@ -880,6 +904,7 @@ public class SettingsActivity extends SettingsDrawerActivity
         mDevelopmentPreferencesListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
             public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                TileStateCache.invalidate();
                 updateTilesList();
             }
         };
@@ -890,12 +915,20 @@ public class SettingsActivity extends SettingsDrawerActivity
         registerReceiver(mUserAddRemoveReceiver, new IntentFilter(Intent.ACTION_USER_ADDED));
         registerReceiver(mUserAddRemoveReceiver, new IntentFilter(Intent.ACTION_USER_REMOVED));
 
-        mDynamicIndexableContentMonitor.register(this, LOADER_ID_INDEXABLE_CONTENT_MONITOR);
+        mDeferredInit.schedule("index_monitor", DeferredInitScheduler.AFTER_FIRST_FRAME,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        mDynamicIndexableContentMonitor.register(SettingsActivity.this,
+                                LOADER_ID_INDEXABLE_CONTENT_MONITOR);
+                    }
+                });
 
         if(mDisplaySearch && !TextUtils.isEmpty(mSearchQuery)) {
             onQueryTextSubmit(mSearchQuery);
         }
         updateTilesList();
+        startSpan.end();
     }
 
     @Override
@@ -903,12 +936,15 @@ public class SettingsActivity extends SettingsDrawerActivity
         super.onStop();
         unregisterReceiver(mBatteryInfoReceiver);
         unregisterReceiver(mUserAddRemoveReceiver);
+        mDeferredInit.cancel("index_monitor");
+        mDeferredInit.cancel("tiles");
         mDynamicIndexableContentMonitor.unregister();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mDeferredInit.cancelAll();
         if (mDevelopmentPreferencesListener != null) {
             mDevelopmentPreferences.unregisterOnSharedPreferenceChangeListener(
                     mDevelopmentPreferencesListener);
@@ -916,6 +952,13 @@ public class SettingsActivity extends SettingsDrawerActivity
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mDeferredInit.dump(prefix, writer);
+        StartupTrace.dump(prefix, writer);
+    }
+
     protected boolean isValidFragment(String fragmentName) {
         // Almost all fragments are wrapped in this,
         // except for a few that have their own activities.
@@ -1188,13 +1231,31 @@ public class SettingsActivity extends SettingsDrawerActivity
     }
 
     private void updateTilesList() {
+        if (mSMQ == null) {
+            // Still waiting for the deferred SMQ setup, update the tiles right after it
+            mDeferredInit.cancel("tiles");
+            mDeferredInit.schedule("tiles", DeferredInitScheduler.AFTER_FIRST_FRAME,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            updateTilesList();
+                        }
+                    }, "smq");
+            return;
+        }
         // Generally the items that are will be changing from these updates will
         // not be in the top list of tiles, so run it in the background and the
         // SettingsDrawerActivity will pick up on the updates automatically.
         AsyncTask.execute(new Runnable() {
             @Override
             public void run() {
-                doUpdateTilesList();
+                // Most desired states only change on the events that invalidate them, the
+                // few that follow NFC, SIM or demo mode state are evaluated on every pass
+                if (TileStateCache.consumeInvalidation()) {
+                    doUpdateTilesList();
+                } else {
+                    doUpdateVolatileTiles();
+                }
             }
         });
     }
@@ -1203,100 +1264,86 @@ public class SettingsActivity extends SettingsDrawerActivity
         PackageManager pm = getPackageManager();
         final UserManager um = UserManager.get(this);
         final boolean isAdmin = um.isAdminUser();
+        final ArrayMap<ComponentName, Boolean> tiles = new ArrayMap<>();
 
         String packageName = getPackageName();
         if(mSMQ.isShowSmqSettings()){
             setTileEnabled(new ComponentName(packageName, Settings.SMQQtiFeedbackActivity.class.getName()),
-                mSMQ.isShowSmqSettings(), isAdmin, pm);
+                mSMQ.isShowSmqSettings(), isAdmin, tiles);
         }
 
         setTileEnabled(new ComponentName(packageName, WifiSettingsActivity.class.getName()),
-                pm.hasSystemFeature(PackageManager.FEATURE_WIFI), isAdmin, pm);
+                pm.hasSystemFeature(PackageManager.FEATURE_WIFI), isAdmin, tiles);
 
         setTileEnabled(new ComponentName(packageName,
                 Settings.BluetoothSettingsActivity.class.getName()),
-                pm.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH), isAdmin, pm);
+                pm.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH), isAdmin, tiles);
 
         //visible in RJIL
         setTileEnabled(new ComponentName(packageName,
                         Settings.TetherSettingsActivity.class.getName()),
                 ((getResources().getBoolean(R.bool.config_settings_rjil_layout))&&
-                pm.hasSystemFeature(PackageManager.FEATURE_WIFI)), isAdmin, pm);
+                pm.hasSystemFeature(PackageManager.FEATURE_WIFI)), isAdmin, tiles);
 
         //visible in RJIL
         setTileEnabled(new ComponentName(packageName,
                         Settings.MobileNetworkMainActivity.class.getName()),
                 ((getResources().getBoolean(R.bool.config_settings_rjil_layout))&&
-                pm.hasSystemFeature(PackageManager.FEATURE_TELEPHONY)), isAdmin, pm);
+                pm.hasSystemFeature(PackageManager.FEATURE_TELEPHONY)), isAdmin, tiles);
 
         //disable accessibility in RJIL
         setTileEnabled(new ComponentName(packageName,
                         Settings.AccessibilitySettingsActivity.class.getName()),
-                !getResources().getBoolean(R.bool.config_settings_rjil_layout), isAdmin, pm);
+                !getResources().getBoolean(R.bool.config_settings_rjil_layout), isAdmin, tiles);
 
         setTileEnabled(new ComponentName(packageName,
                 Settings.Lte4GEnableActivity.class.getName()),
-                getResources().getBoolean(R.bool.config_4gsettings_enabled), isAdmin, pm);
+                getResources().getBoolean(R.bool.config_4gsettings_enabled), isAdmin, tiles);
 
         setTileEnabled(new ComponentName(packageName,
                 Settings.DataUsageSummaryActivity.class.getName()),
-                Utils.isBandwidthControlEnabled(), isAdmin, pm);
+                Utils.isBandwidthControlEnabled(), isAdmin, tiles);
 
         setTileEnabled(new ComponentName(packageName,
                 Settings.RoamingSettingsActivity.class.getName()),
-                getResources().getBoolean(R.bool.config_roamingsettings_enabled), isAdmin, pm);
-
-        setTileEnabled(new ComponentName(packageName,
-                Settings.SimSettingsActivity.class.getName()),
-                Utils.showSimCardTile(this), isAdmin, pm);
+                getResources().getBoolean(R.bool.config_roamingsettings_enabled), isAdmin, tiles);
 
         setTileEnabled(new ComponentName(packageName,
                 Settings.PowerUsageSummaryActivity.class.getName()),
-                mBatteryPresent, isAdmin, pm);
+                mBatteryPresent, isAdmin, tiles);
 
         setTileEnabled(new ComponentName(packageName,
                 Settings.UserSettingsActivity.class.getName()),
                 UserHandle.MU_ENABLED && UserManager.supportsMultipleUsers()
-                && !Utils.isMonkeyRunning(), isAdmin, pm);
+                && !Utils.isMonkeyRunning(), isAdmin, tiles);
 
-        setTileEnabled(new ComponentName(packageName,
-                        Settings.WirelessSettingsActivity.class.getName()),
-                !UserManager.isDeviceInDemoMode(this), isAdmin, pm);
+        addVolatileTileStates(pm, isAdmin, tiles);
 
-        setTileEnabled(new ComponentName(packageName,
-                        Settings.DateTimeSettingsActivity.class.getName()),
-                !UserManager.isDeviceInDemoMode(this), isAdmin, pm);
-        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(this);
-        setTileEnabled(new ComponentName(packageName,
-                        Settings.PaymentSettingsActivity.class.getName()),
-                pm.hasSystemFeature(PackageManager.FEATURE_NFC)
-                        && pm.hasSystemFeature(PackageManager.FEATURE_NFC_HOST_CARD_EMULATION)
-                        && adapter != null && adapter.isEnabled(), isAdmin, pm);
         //PrintSettingsActivity disable in RJIL
         setTileEnabled(new ComponentName(packageName,
                 Settings.PrintSettingsActivity.class.getName()),
                 (!getResources().getBoolean(R.bool.config_settings_rjil_layout))
-                &&pm.hasSystemFeature(PackageManager.FEATURE_PRINTING), isAdmin, pm);
+                &&pm.hasSystemFeature(PackageManager.FEATURE_PRINTING), isAdmin, tiles);
 
         //deviceinfo disable in RJIL
         setTileEnabled(new ComponentName(packageName,
                         Settings.DeviceInfoSettingsActivity.class.getName()),
-                !getResources().getBoolean(R.bool.config_settings_rjil_layout), isAdmin, pm);
+                !getResources().getBoolean(R.bool.config_settings_rjil_layout), isAdmin, tiles);
 
         //other settings visible in RJIL
         setTileEnabled(new ComponentName(packageName,
                         Settings.OtherDeviceFunctionsSettingsActivity.class.getName()),
-                getResources().getBoolean(R.bool.config_settings_rjil_layout), isAdmin, pm);
+                getResources().getBoolean(R.bool.config_settings_rjil_layout), isAdmin, tiles);
 
         //SystemUPdate visible in RJIL
         setTileEnabled(new ComponentName(packageName,
                         Settings.SystemUpdateActivity.class.getName()),
-                getResources().getBoolean(R.bool.config_settings_rjil_layout), isAdmin, pm);
+                getResources().getBoolean(R.bool.config_settings_rjil_layout), isAdmin, tiles);
 
 
         setTileEnabled(new ComponentName(packageName,
                 Settings.ProfileMgrMainActivity.class.getName()),
-                getResources().getBoolean(R.bool.config_profilemgrmain_enabled), isAdmin, pm);
+                getResources().getBoolean(R.bool.config_profilemgrmain_enabled), isAdmin, tiles);
 
         final boolean showDev = mDevelopmentPreferences.getBoolean(
                     DevelopmentSettings.PREF_SHOW, android.os.Build.TYPE.equals("eng") || android.os.Build.TYPE.equals("userdebug")
@@ -1304,7 +1351,7 @@ public class SettingsActivity extends SettingsDrawerActivity
                 && !um.hasUserRestriction(UserManager.DISALLOW_DEBUGGING_FEATURES);
         setTileEnabled(new ComponentName(packageName,
                         Settings.DevelopmentSettingsActivity.class.getName()),
-                showDev, isAdmin, pm);
+                showDev, isAdmin, tiles);
 
         boolean themesSupported = false;
         try {
@@ -1313,7 +1360,7 @@ public class SettingsActivity extends SettingsDrawerActivity
         }
         setTileEnabled(new ComponentName(packageName,
                         Settings.ThemesActivity.class.getName()),
-                themesSupported, isAdmin, pm);
+                themesSupported, isAdmin, tiles);
 
         // Reveal development-only quick settings tiles
         DevelopmentTiles.setTilesEnabled(this, showDev);
@@ -1328,7 +1375,7 @@ public class SettingsActivity extends SettingsDrawerActivity
         }
         setTileEnabled(new ComponentName(packageName,
                 Settings.TimerSwitchSettingsActivity.class.getName()),
-                showTimerSwitch, isAdmin, pm);
+                showTimerSwitch, isAdmin, tiles);
 
         if (UserHandle.MU_ENABLED && !isAdmin) {
             // When on restricted users, disable all extra categories (but only the settings ones).
@@ -1338,7 +1385,7 @@ public class SettingsActivity extends SettingsDrawerActivity
                     ComponentName component = tile.intent.getComponent();
                     if (packageName.equals(component.getPackageName()) && !ArrayUtils.contains(
                             SETTINGS_FOR_RESTRICTED, component.getClassName())) {
-                        setTileEnabled(component, false, isAdmin, pm);
+                        setTileEnabled(component, false, isAdmin, tiles);
                     }
                 }
             }
@@ -1347,7 +1394,8 @@ public class SettingsActivity extends SettingsDrawerActivity
         String backupIntent = getResources().getString(R.string.config_backup_settings_intent);
         boolean useDefaultBackup = TextUtils.isEmpty(backupIntent);
         setTileEnabled(new ComponentName(packageName,
-                Settings.PrivacySettingsActivity.class.getName()), useDefaultBackup, isAdmin, pm);
+                Settings.PrivacySettingsActivity.class.getName()), useDefaultBackup, isAdmin,
+                tiles);
         boolean hasBackupActivity = false;
         if (!useDefaultBackup) {
             try {
@@ -1359,17 +1407,61 @@ public class SettingsActivity extends SettingsDrawerActivity
         }
         setTileEnabled(new ComponentName(packageName,
                 BackupSettingsActivity.class.getName()), hasBackupActivity,
-                isAdmin || Utils.isCarrierDemoUser(this), pm);
+                isAdmin || Utils.isCarrierDemoUser(this), tiles);
+
+        applyTileStates(tiles);
+    }
+
+    private void doUpdateVolatileTiles() {
+        final boolean isAdmin = UserManager.get(this).isAdminUser();
+        final ArrayMap<ComponentName, Boolean> tiles = new ArrayMap<>();
+        addVolatileTileStates(getPackageManager(), isAdmin, tiles);
+        applyTileStates(tiles);
+    }
+
+    /**
+     * Add the states of the tiles that depend on NFC, SIM or demo mode state, none of which
+     * invalidates {@link TileStateCache}.
+     */
+    private void addVolatileTileStates(PackageManager pm, boolean isAdmin,
+            ArrayMap<ComponentName, Boolean> tiles) {
+        final String packageName = getPackageName();
+        setTileEnabled(new ComponentName(packageName,
+                Settings.SimSettingsActivity.class.getName()),
+                Utils.showSimCardTile(this), isAdmin, tiles);
+
+        setTileEnabled(new ComponentName(packageName,
+                        Settings.WirelessSettingsActivity.class.getName()),
+                !UserManager.isDeviceInDemoMode(this), isAdmin, tiles);
+
+        setTileEnabled(new ComponentName(packageName,
+                        Settings.DateTimeSettingsActivity.class.getName()),
+                !UserManager.isDeviceInDemoMode(this), isAdmin, tiles);
+        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(this);
+        setTileEnabled(new ComponentName(packageName,
+                        Settings.PaymentSettingsActivity.class.getName()),
+                pm.hasSystemFeature(PackageManager.FEATURE_NFC)
+                        && pm.hasSystemFeature(PackageManager.FEATURE_NFC_HOST_CARD_EMULATION)
+                        && adapter != null && adapter.isEnabled(), isAdmin, tiles);
+    }
 
+    private void applyTileStates(ArrayMap<ComponentName, Boolean> tiles) {
+        new TileStateCache(this).apply(tiles, new TileStateCache.Applier() {
+            @Override
+            public void setTileEnabled(ComponentName component, boolean enabled) {
+                SettingsActivity.this.setTileEnabled(component, enabled);
+            }
+        });
     }
 
     private void setTileEnabled(ComponentName component, boolean enabled, boolean isAdmin,
-                                PackageManager pm) {
-        if (UserHandle.MU_ENABLED && !isAdmin && getPackageName().equals(component.getPackageName())
+                                ArrayMap<ComponentName, Boolean> tiles) {
+        if (UserHandle.MU_ENABLED && !isAdmin
+                && getPackageName().equals(component.getPackageName())
                 && !ArrayUtils.contains(SETTINGS_FOR_RESTRICTED, component.getClassName())) {
             enabled = false;
         }
-        setTileEnabled(component, enabled);
+        tiles.put(component, enabled);
     }
 
     private void getMetaData() {
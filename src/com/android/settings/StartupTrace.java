@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+
+/**
+ * Small in-memory record of named startup spans, such as the phases of
+ * {@link SettingsActivity#onCreate}. Spans are also emitted as systrace sections, and the
+ * most recent ones are printed by {@code adb shell dumpsys activity com.android.settings}.
+ */
+public final class StartupTrace {
+    private static final int MAX_SPANS = 64;
+
+    private static final Span[] sSpans = new Span[MAX_SPANS];
+    private static int sNext;
+    private static int sCount;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * A running span, close it with {@link #end}.
+     */
+    public static final class Span {
+        final String name;
+        final String thread;
+        final long startUptime;
+        long durationMillis = -1;
+
+        private Span(String name) {
+            this.name = name;
+            this.thread = Thread.currentThread().getName();
+            this.startUptime = SystemClock.uptimeMillis();
+        }
+
+        public void end() {
+            if (durationMillis >= 0) {
+                return;
+            }
+            durationMillis = SystemClock.uptimeMillis() - startUptime;
+            Trace.traceEnd(Trace.TRACE_TAG_APP);
+        }
+    }
+
+    /**
+     * Start a span. Spans must be ended on the thread that started them.
+     */
+    public static Span begin(String name) {
+        Trace.traceBegin(Trace.TRACE_TAG_APP, name);
+        final Span span = new Span(name);
+        synchronized (sSpans) {
+            sSpans[sNext] = span;
+            sNext = (sNext + 1) % MAX_SPANS;
+            sCount = Math.min(sCount + 1, MAX_SPANS);
+        }
+        return span;
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Startup trace (uptime ms, duration ms, thread, span):");
+        synchronized (sSpans) {
+            final int first = (sNext - sCount + MAX_SPANS) % MAX_SPANS;
+            for (int i = 0; i < sCount; i++) {
+                final Span span = sSpans[(first + i) % MAX_SPANS];
+                writer.print(prefix);
+                writer.print("  ");
+                writer.print(span.startUptime);
+                writer.print(' ');
+                writer.print(span.durationMillis >= 0 ? String.valueOf(span.durationMillis) : "-");
+                writer.print(' ');
+                writer.print(span.thread);
+                writer.print(' ');
+                writer.println(span.name);
+            }
+        }
+    }
+}
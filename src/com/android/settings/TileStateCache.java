@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers which enabled state was last applied to each settings tile component, so that
+ * {@link SettingsActivity} only calls into the package manager for tiles whose state
+ * actually changes. Most desired states are computed once per process, and again only after
+ * {@link #invalidate} was called for one of the events they depend on. The few that follow
+ * volatile state, like NFC or the SIM, are evaluated on every pass and only applied here.
+ */
+public class TileStateCache {
+    private static final String TAG = "TileStateCache";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final String PREFS_NAME = "tile_state";
+    /** Build the states were applied on, component states do not survive every update. */
+    private static final String KEY_FINGERPRINT = "_fingerprint";
+
+    private static final AtomicBoolean sDirty = new AtomicBoolean(true);
+
+    /**
+     * Applies the enabled state to a tile component.
+     */
+    public interface Applier {
+        void setTileEnabled(ComponentName component, boolean enabled);
+    }
+
+    private final SharedPreferences mPrefs;
+
+    public TileStateCache(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Mark the desired states as stale, for example after the battery was removed, a user
+     * was added or removed, or developer options were toggled.
+     */
+    public static void invalidate() {
+        sDirty.set(true);
+    }
+
+    /**
+     * Return true if the desired states need to be computed again, and clear the flag so that
+     * an invalidation during the computation triggers another one.
+     */
+    public static boolean consumeInvalidation() {
+        return sDirty.getAndSet(false);
+    }
+
+    /**
+     * Apply only the states that differ from the last applied ones, and persist the result.
+     *
+     * @return number of components whose state was applied.
+     */
+    public int apply(ArrayMap<ComponentName, Boolean> desired, Applier applier) {
+        final boolean sameBuild = Build.FINGERPRINT.equals(mPrefs.getString(KEY_FINGERPRINT, null));
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        if (!sameBuild) {
+            editor.clear();
+            editor.putString(KEY_FINGERPRINT, Build.FINGERPRINT);
+        }
+        int applied = 0;
+        final int N = desired.size();
+        for (int i = 0; i < N; i++) {
+            final ComponentName component = desired.keyAt(i);
+            final boolean enabled = desired.valueAt(i);
+            final String key = component.flattenToShortString();
+            if (sameBuild && mPrefs.contains(key) && mPrefs.getBoolean(key, false) == enabled) {
+                continue;
+            }
+            applier.setTileEnabled(component, enabled);
+            editor.putBoolean(key, enabled);
+            applied++;
+        }
+        editor.apply();
+        if (DEBUG) {
+            Log.d(TAG, "applied " + applied + " of " + N + " tile states");
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.http.SslCertificate;
+import android.os.Build;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Remembers the subject shown for each CA certificate in {@link TrustedCredentialsSettings},
+ * so that a certificate is only decoded again after it changed. System certificates are part
+ * of the build and keyed by their alias, user certificates by their alias and a hash of their
+ * encoded form.
+ */
+class TrustedCertificateCache {
+    private static final String PREFS_NAME = "trusted_certificate_subjects";
+    /** Build the system entries belong to, they are dropped on every update. */
+    private static final String KEY_FINGERPRINT = "_fingerprint";
+
+    private static final String SUFFIX_PRIMARY = "/p";
+    private static final String SUFFIX_SECONDARY = "/s";
+    /** Separates the alias of a user certificate from the hash of its encoded form. */
+    private static final char USER_SEPARATOR = '#';
+
+    private final SharedPreferences mPrefs;
+
+    TrustedCertificateCache(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(mPrefs.getString(KEY_FINGERPRINT, null))) {
+            mPrefs.edit().clear().putString(KEY_FINGERPRINT, Build.FINGERPRINT).apply();
+        }
+    }
+
+    static String getSystemKey(String alias) {
+        return alias;
+    }
+
+    static String getUserKey(String alias, byte[] encodedCertificate) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(encodedCertificate);
+            final StringBuilder sb = new StringBuilder(alias).append(USER_SEPARATOR);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Return the primary and secondary subject for the key, or null if not cached.
+     */
+    String[] getSubject(String key) {
+        final String primary = mPrefs.getString(key + SUFFIX_PRIMARY, null);
+        if (primary == null) {
+            return null;
+        }
+        return new String[] { primary, mPrefs.getString(key + SUFFIX_SECONDARY, "") };
+    }
+
+    void putSubjects(ArrayMap<String, String[]> subjects) {
+        if (subjects.isEmpty()) {
+            return;
+        }
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        final int N = subjects.size();
+        for (int i = 0; i < N; i++) {
+            editor.putString(subjects.keyAt(i) + SUFFIX_PRIMARY, subjects.valueAt(i)[0]);
+            editor.putString(subjects.keyAt(i) + SUFFIX_SECONDARY, subjects.valueAt(i)[1]);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Drop the user certificate entries whose key is not in the given set, so that removed or
+     * replaced certificates do not accumulate. Must only be called after loading all of them.
+     */
+    void retainUserKeys(ArraySet<String> keys) {
+        SharedPreferences.Editor editor = null;
+        for (String prefKey : mPrefs.getAll().keySet()) {
+            if (prefKey.indexOf(USER_SEPARATOR) < 0
+                    || !(prefKey.endsWith(SUFFIX_PRIMARY) || prefKey.endsWith(SUFFIX_SECONDARY))) {
+                continue;
+            }
+            // Both suffixes have the same length
+            final String key = prefKey.substring(0, prefKey.length() - SUFFIX_PRIMARY.length());
+            if (!keys.contains(key)) {
+                if (editor == null) {
+                    editor = mPrefs.edit();
+                }
+                editor.remove(prefKey);
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Compute the subject shown for a certificate: its O as primary, with CN or OU as
+     * secondary, or without O its CN, or without either its full DName.
+     */
+    static String[] decodeSubject(X509Certificate x509Cert) {
+        final SslCertificate sslCert = new SslCertificate(x509Cert);
+        final String cn = sslCert.getIssuedTo().getCName();
+        final String o = sslCert.getIssuedTo().getOName();
+        final String ou = sslCert.getIssuedTo().getUName();
+        if (!o.isEmpty()) {
+            return new String[] { o, !cn.isEmpty() ? cn : ou };
+        } else if (!cn.isEmpty()) {
+            return new String[] { cn, "" };
+        } else {
+            return new String[] { sslCert.getIssuedTo().getDName(), "" };
+        }
+    }
+}
@@ -29,7 +29,6 @@ import android.content.pm.UserInfo;
 import android.content.res.TypedArray;
 import android.database.DataSetObserver;
 import android.graphics.drawable.Drawable;
-import android.net.http.SslCertificate;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
@@ -38,8 +37,10 @@ import android.os.UserManager;
 import android.security.IKeyChainService;
 import android.security.KeyChain;
 import android.security.KeyChain.KeyChainConnection;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.ArraySet;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -62,12 +63,16 @@ import com.android.internal.logging.MetricsProto.MetricsEvent;
 import com.android.internal.util.ParcelableString;
 import com.android.internal.widget.LockPatternUtils;
 
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.IntConsumer;
 
 public class TrustedCredentialsSettings extends OptionsMenuFragment
@@ -86,6 +91,11 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
     private static final String USER_ACTION = "com.android.settings.TRUSTED_CREDENTIALS_USER";
     private static final int REQUEST_CONFIRM_CREDENTIALS = 1;
 
+    /** Threads used to load the certificates of all profiles. */
+    private static final int LOAD_THREADS = 4;
+    /** Aliases loaded by one task, so that large stores are spread over the threads. */
+    private static final int ALIAS_BATCH_SIZE = 16;
+
     @Override
     protected int getMetricsCategory() {
         return MetricsEvent.TRUSTED_CREDENTIALS;
@@ -266,11 +276,13 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
     }
 
     private void closeKeyChainConnections() {
-        final int n = mKeyChainConnectionByProfileId.size();
-        for (int i = 0; i < n; ++i) {
-            mKeyChainConnectionByProfileId.valueAt(i).close();
+        synchronized (mKeyChainConnectionByProfileId) {
+            final int n = mKeyChainConnectionByProfileId.size();
+            for (int i = 0; i < n; ++i) {
+                mKeyChainConnectionByProfileId.valueAt(i).close();
+            }
+            mKeyChainConnectionByProfileId.clear();
         }
-        mKeyChainConnectionByProfileId.clear();
     }
 
     private void addTab(Tab tab) {
@@ -648,7 +660,8 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
             mTab = tab;
         }
 
-        private class AliasLoader extends AsyncTask<Void, Integer, SparseArray<List<CertHolder>>> {
+        private class AliasLoader extends AsyncTask<Void, LoadProgress,
+                SparseArray<List<CertHolder>>> {
             private ProgressBar mProgressBar;
             private View mContentView;
             private Context mContext;
@@ -674,84 +687,183 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
                 mProgressBar.setVisibility(View.VISIBLE);
                 mContentView.setVisibility(View.GONE);
             }
+
+            /**
+             * Loads all profiles concurrently, in batches of aliases, and publishes each
+             * profile as soon as all of its batches are done.
+             */
             @Override protected SparseArray<List<CertHolder>> doInBackground(Void... params) {
-                SparseArray<List<CertHolder>> certHoldersByProfile =
+                final SparseArray<List<CertHolder>> certHoldersByProfile =
                         new SparseArray<List<CertHolder>>();
+                final TrustedCertificateCache cache = new TrustedCertificateCache(mContext);
+                final ArrayMap<String, String[]> decodedSubjects = new ArrayMap<>();
+                // Keys of every user certificate loaded, to prune the ones that went away
+                final ArraySet<String> loadedKeys = new ArraySet<>();
+                boolean skippedProfile = false;
+                final ExecutorService executor = Executors.newFixedThreadPool(LOAD_THREADS);
+                final ExecutorCompletionService<Object> completion =
+                        new ExecutorCompletionService<Object>(executor);
                 try {
-                    List<UserHandle> profiles = mUserManager.getUserProfiles();
-                    final int n = profiles.size();
-                    // First we get all aliases for all profiles in order to show progress
-                    // correctly. Otherwise this could all be in a single loop.
-                    SparseArray<List<ParcelableString>> aliasesByProfileId = new SparseArray<
-                            List<ParcelableString>>(n);
-                    int max = 0;
-                    int progress = 0;
-                    for (int i = 0; i < n; ++i) {
-                        UserHandle profile = profiles.get(i);
-                        int profileId = profile.getIdentifier();
+                    int pending = 0;
+                    for (final UserHandle profile : mUserManager.getUserProfiles()) {
                         if (shouldSkipProfile(profile)) {
+                            certHoldersByProfile.put(profile.getIdentifier(),
+                                    new ArrayList<CertHolder>(0));
+                            skippedProfile = true;
                             continue;
                         }
-                        KeyChainConnection keyChainConnection = KeyChain.bindAsUser(mContext,
-                                profile);
-                        // Saving the connection for later use on the certificate dialog.
-                        mKeyChainConnectionByProfileId.put(profileId, keyChainConnection);
-                        IKeyChainService service = keyChainConnection.getService();
-                        List<ParcelableString> aliases = mTab.getAliases(service);
-                        if (isCancelled()) {
-                            return new SparseArray<List<CertHolder>>();
-                        }
-                        max += aliases.size();
-                        aliasesByProfileId.put(profileId, aliases);
+                        completion.submit(new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                return loadAliases(profile);
+                            }
+                        });
+                        pending++;
                     }
-                    for (int i = 0; i < n; ++i) {
-                        UserHandle profile = profiles.get(i);
-                        int profileId = profile.getIdentifier();
-                        List<ParcelableString> aliases = aliasesByProfileId.get(profileId);
+                    final SparseIntArray batchesLeft = new SparseIntArray();
+                    int progress = 0;
+                    int max = 0;
+                    while (pending > 0) {
                         if (isCancelled()) {
                             return new SparseArray<List<CertHolder>>();
                         }
-                        KeyChainConnection keyChainConnection = mKeyChainConnectionByProfileId.get(
-                                profileId);
-                        if (shouldSkipProfile(profile) || aliases == null
-                                || keyChainConnection == null) {
-                            certHoldersByProfile.put(profileId, new ArrayList<CertHolder>(0));
-                            continue;
-                        }
-                        IKeyChainService service = keyChainConnection.getService();
-                        List<CertHolder> certHolders = new ArrayList<CertHolder>(max);
-                        final int aliasMax = aliases.size();
-                        for (int j = 0; j < aliasMax; ++j) {
-                            String alias = aliases.get(j).string;
-                            byte[] encodedCertificate = service.getEncodedCaCertificate(alias,
-                                    true);
-                            X509Certificate cert = KeyChain.toCertificate(encodedCertificate);
-                            certHolders.add(new CertHolder(service, mAdapter,
-                                    mTab, alias, cert, profileId));
-                            publishProgress(++progress, max);
+                        final Object result = completion.take().get();
+                        pending--;
+                        if (result instanceof ProfileAliases) {
+                            final ProfileAliases aliases = (ProfileAliases) result;
+                            final int size = aliases.aliases.size();
+                            final List<CertHolder> certHolders = new ArrayList<CertHolder>(size);
+                            certHoldersByProfile.put(aliases.profileId, certHolders);
+                            max += size;
+                            if (size == 0) {
+                                publishProgress(new LoadProgress(aliases.profileId, certHolders,
+                                        progress, max));
+                                continue;
+                            }
+                            for (int start = 0; start < size; start += ALIAS_BATCH_SIZE) {
+                                final List<ParcelableString> batch = aliases.aliases.subList(
+                                        start, Math.min(size, start + ALIAS_BATCH_SIZE));
+                                completion.submit(new Callable<Object>() {
+                                    @Override
+                                    public Object call() throws Exception {
+                                        return loadBatch(aliases.service, aliases.profileId,
+                                                batch, cache);
+                                    }
+                                });
+                                pending++;
+                                batchesLeft.put(aliases.profileId,
+                                        batchesLeft.get(aliases.profileId) + 1);
+                            }
+                        } else {
+                            final CertBatch batch = (CertBatch) result;
+                            final List<CertHolder> certHolders =
+                                    certHoldersByProfile.get(batch.profileId);
+                            certHolders.addAll(batch.certHolders);
+                            decodedSubjects.putAll(batch.decodedSubjects);
+                            loadedKeys.addAll(batch.keys);
+                            progress += batch.aliasCount;
+                            final int left = batchesLeft.get(batch.profileId) - 1;
+                            batchesLeft.put(batch.profileId, left);
+                            if (left == 0) {
+                                Collections.sort(certHolders);
+                                publishProgress(new LoadProgress(batch.profileId, certHolders,
+                                        progress, max));
+                            } else {
+                                publishProgress(new LoadProgress(UserHandle.USER_NULL, null,
+                                        progress, max));
+                            }
                         }
-                        Collections.sort(certHolders);
-                        certHoldersByProfile.put(profileId, certHolders);
+                    }
+                    cache.putSubjects(decodedSubjects);
+                    if (mTab == Tab.USER && !skippedProfile && !isCancelled()) {
+                        // Only a full load of every profile knows which user certificates are
+                        // gone, batches stop early once the task is cancelled
+                        cache.retainUserKeys(loadedKeys);
                     }
                     return certHoldersByProfile;
-                } catch (RemoteException e) {
-                    Log.e(TAG, "Remote exception while loading aliases.", e);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Exception while loading aliases.", e.getCause());
                     return new SparseArray<List<CertHolder>>();
                 } catch (InterruptedException e) {
                     Log.e(TAG, "InterruptedException while loading aliases.", e);
                     return new SparseArray<List<CertHolder>>();
-                } catch (AssertionError e){
-                    Log.e(TAG, "AssertionError while loading aliases.", e);
-                    return new SparseArray<List<CertHolder>>();
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            private ProfileAliases loadAliases(UserHandle profile)
+                    throws RemoteException, InterruptedException {
+                final int profileId = profile.getIdentifier();
+                KeyChainConnection keyChainConnection = KeyChain.bindAsUser(mContext, profile);
+                // Saving the connection for later use on the certificate dialog.
+                synchronized (mKeyChainConnectionByProfileId) {
+                    mKeyChainConnectionByProfileId.put(profileId, keyChainConnection);
+                }
+                IKeyChainService service = keyChainConnection.getService();
+                return new ProfileAliases(profileId, service, mTab.getAliases(service));
+            }
+
+            private CertBatch loadBatch(IKeyChainService service, int profileId,
+                    List<ParcelableString> aliases, TrustedCertificateCache cache)
+                    throws RemoteException {
+                final CertBatch batch = new CertBatch(profileId, aliases.size());
+                for (ParcelableString parcelableAlias : aliases) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    final String alias = parcelableAlias.string;
+                    // System certificates come with the build, so only user certificates
+                    // need to be fetched to tell whether they changed.
+                    byte[] encodedCertificate = null;
+                    final String key;
+                    if (mTab == Tab.SYSTEM) {
+                        key = TrustedCertificateCache.getSystemKey(alias);
+                    } else {
+                        encodedCertificate = service.getEncodedCaCertificate(alias, true);
+                        if (encodedCertificate == null) {
+                            continue;
+                        }
+                        key = TrustedCertificateCache.getUserKey(alias, encodedCertificate);
+                    }
+                    batch.keys.add(key);
+                    String[] subject = cache.getSubject(key);
+                    if (subject == null) {
+                        if (encodedCertificate == null) {
+                            encodedCertificate = service.getEncodedCaCertificate(alias, true);
+                        }
+                        X509Certificate cert = KeyChain.toCertificate(encodedCertificate);
+                        subject = TrustedCertificateCache.decodeSubject(cert);
+                        batch.decodedSubjects.put(key, subject);
+                    }
+                    boolean deleted;
+                    try {
+                        deleted = mTab.deleted(service, alias);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Remote exception while checking if alias " + alias
+                                + " is deleted.", e);
+                        deleted = false;
+                    }
+                    batch.certHolders.add(new CertHolder(service, mAdapter, mTab, alias,
+                            subject[0], subject[1], deleted, profileId));
                 }
+                return batch;
             }
-            @Override protected void onProgressUpdate(Integer... progressAndMax) {
-                int progress = progressAndMax[0];
-                int max = progressAndMax[1];
-                if (max != mProgressBar.getMax()) {
-                    mProgressBar.setMax(max);
+
+            @Override protected void onProgressUpdate(LoadProgress... updates) {
+                for (LoadProgress update : updates) {
+                    if (update.max != mProgressBar.getMax()) {
+                        mProgressBar.setMax(update.max);
+                    }
+                    mProgressBar.setProgress(update.progress);
+                    if (update.certHolders != null) {
+                        // Show each profile as soon as it is complete
+                        mCertHoldersByUserId.put(update.profileId, update.certHolders);
+                        mAdapter.notifyDataSetChanged();
+                        mProgressBar.setVisibility(View.GONE);
+                        mContentView.setVisibility(View.VISIBLE);
+                    }
                 }
-                mProgressBar.setProgress(progress);
             }
             @Override protected void onPostExecute(SparseArray<List<CertHolder>> certHolders) {
                 mCertHoldersByUserId.clear();
@@ -808,15 +920,55 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
         }
     }
 
+    private static class ProfileAliases {
+        final int profileId;
+        final IKeyChainService service;
+        final List<ParcelableString> aliases;
+
+        ProfileAliases(int profileId, IKeyChainService service, List<ParcelableString> aliases) {
+            this.profileId = profileId;
+            this.service = service;
+            this.aliases = aliases;
+        }
+    }
+
+    private static class CertBatch {
+        final int profileId;
+        final int aliasCount;
+        final List<CertHolder> certHolders = new ArrayList<>();
+        /** Subjects that were not cached yet, by cache key. */
+        final ArrayMap<String, String[]> decodedSubjects = new ArrayMap<>();
+        /** Cache keys of all certificates in the batch. */
+        final ArraySet<String> keys = new ArraySet<>();
+
+        CertBatch(int profileId, int aliasCount) {
+            this.profileId = profileId;
+            this.aliasCount = aliasCount;
+        }
+    }
+
+    private static class LoadProgress {
+        final int profileId;
+        /** The sorted certificates of the profile once it is complete, else null. */
+        final List<CertHolder> certHolders;
+        final int progress;
+        final int max;
+
+        LoadProgress(int profileId, List<CertHolder> certHolders, int progress, int max) {
+            this.profileId = profileId;
+            this.certHolders = certHolders;
+            this.progress = progress;
+            this.max = max;
+        }
+    }
+
     /* package */ static class CertHolder implements Comparable<CertHolder> {
         public int mProfileId;
         private final IKeyChainService mService;
         private final GroupAdapter mAdapter;
         private final Tab mTab;
         private final String mAlias;
-        private final X509Certificate mX509Cert;
 
-        private final SslCertificate mSslCert;
         private final String mSubjectPrimary;
         private final String mSubjectSecondary;
         private boolean mDeleted;
@@ -825,47 +977,18 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
                            GroupAdapter adapter,
                            Tab tab,
                            String alias,
-                           X509Certificate x509Cert,
+                           String subjectPrimary,
+                           String subjectSecondary,
+                           boolean deleted,
                            int profileId) {
             mProfileId = profileId;
             mService = service;
             mAdapter = adapter;
             mTab = tab;
             mAlias = alias;
-            mX509Cert = x509Cert;
-
-            mSslCert = new SslCertificate(x509Cert);
-
-            String cn = mSslCert.getIssuedTo().getCName();
-            String o = mSslCert.getIssuedTo().getOName();
-            String ou = mSslCert.getIssuedTo().getUName();
-            // if we have a O, use O as primary subject, secondary prefer CN over OU
-            // if we don't have an O, use CN as primary, empty secondary
-            // if we don't have O or CN, use DName as primary, empty secondary
-            if (!o.isEmpty()) {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = cn;
-                } else {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = ou;
-                }
-            } else {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = cn;
-                    mSubjectSecondary = "";
-                } else {
-                    mSubjectPrimary = mSslCert.getIssuedTo().getDName();
-                    mSubjectSecondary = "";
-                }
-            }
-            try {
-                mDeleted = mTab.deleted(mService, mAlias);
-            } catch (RemoteException e) {
-                Log.e(TAG, "Remote exception while checking if alias " + mAlias + " is deleted.",
-                        e);
-                mDeleted = false;
-            }
+            mSubjectPrimary = subjectPrimary;
+            mSubjectSecondary = subjectSecondary;
+            mDeleted = deleted;
         }
         @Override public int compareTo(CertHolder o) {
             int primary = this.mSubjectPrimary.compareToIgnoreCase(o.mSubjectPrimary);
@@ -986,13 +1109,13 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
                         mCertHolder.mProfileId);
                 IKeyChainService service = keyChainConnection.getService();
                 if (mCertHolder.mDeleted) {
-                    byte[] bytes = mCertHolder.mX509Cert.getEncoded();
+                    byte[] bytes = service.getEncodedCaCertificate(mCertHolder.mAlias, true);
                     service.installCaCertificate(bytes);
                     return true;
                 } else {
                     return service.deleteCaCertificate(mCertHolder.mAlias);
                 }
-            } catch (CertificateEncodingException | SecurityException | IllegalStateException
+            } catch (SecurityException | IllegalStateException
                     | RemoteException e) {
                 Log.w(TAG, "Error while toggling alias " + mCertHolder.mAlias, e);
                 return false;
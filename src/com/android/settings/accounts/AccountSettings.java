@@ -17,8 +17,7 @@
 package com.android.settings.accounts;
 
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
+import android.accounts.AuthenticatorDescription;
 import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -34,8 +33,11 @@ import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.SearchIndexableResource;
@@ -43,6 +45,8 @@ import android.support.v7.preference.Preference;
 import android.support.v7.preference.Preference.OnPreferenceClickListener;
 import android.support.v7.preference.PreferenceGroup;
 import android.support.v7.preference.PreferenceScreen;
+import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.Menu;
@@ -66,8 +70,6 @@ import com.android.settingslib.accounts.AuthenticatorHelper;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import static android.content.Intent.EXTRA_USER;
@@ -95,6 +97,9 @@ public class AccountSettings extends SettingsPreferenceFragment
     private static final int ORDER_NEXT_TO_LAST = 1001;
     private static final int ORDER_NEXT_TO_NEXT_TO_LAST = 1000;
 
+    /** Account update broadcasts within this delay are handled together. */
+    private static final long ACCOUNTS_UPDATE_DELAY_MS = 100;
+
     private UserManager mUm;
     private SparseArray<ProfileData> mProfiles = new SparseArray<ProfileData>();
     private ManagedProfileBroadcastReceiver mManagedProfileBroadcastReceiver
@@ -102,6 +107,7 @@ public class AccountSettings extends SettingsPreferenceFragment
     private Preference mProfileNotAvailablePreference;
     private String[] mAuthorities;
     private int mAuthoritiesCount = 0;
+    private final Handler mHandler = new Handler();
 
     /**
      * Holds data related to the accounts belonging to one profile.
@@ -131,6 +137,14 @@ public class AccountSettings extends SettingsPreferenceFragment
          * The {@link UserInfo} of the profile.
          */
         public UserInfo userInfo;
+        /**
+         * The account type preferences currently shown, by {@link AccountTypeLoader.Entry#key}.
+         */
+        public final ArrayMap<String, AccountPreference> accountPreferences = new ArrayMap<>();
+        /**
+         * Bumped on every update, so that only the newest account types are shown.
+         */
+        public int generation;
     }
 
     @Override
@@ -199,6 +213,7 @@ public class AccountSettings extends SettingsPreferenceFragment
     @Override
     public void onPause() {
         super.onPause();
+        mHandler.removeCallbacksAndMessages(null);
         stopListeningToAccountUpdates();
         mManagedProfileBroadcastReceiver.unregister(getActivity());
     }
@@ -207,7 +222,14 @@ public class AccountSettings extends SettingsPreferenceFragment
     public void onAccountsUpdate(UserHandle userHandle) {
         final ProfileData profileData = mProfiles.get(userHandle.getIdentifier());
         if (profileData != null) {
-            updateAccountTypes(profileData);
+            // Accounts are often updated several times in a row, only reload once
+            mHandler.removeCallbacksAndMessages(profileData);
+            mHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    updateAccountTypes(profileData);
+                }
+            }, profileData, SystemClock.uptimeMillis() + ACCOUNTS_UPDATE_DELAY_MS);
         } else {
             Log.w(TAG, "Missing Settings screen for: " + userHandle.getIdentifier());
         }
@@ -396,19 +418,47 @@ public class AccountSettings extends SettingsPreferenceFragment
         }
     }
 
-    private void updateAccountTypes(ProfileData profileData) {
-        profileData.preferenceGroup.removeAll();
+    private void updateAccountTypes(final ProfileData profileData) {
+        final int generation = ++profileData.generation;
         if (profileData.userInfo.isEnabled()) {
-            final ArrayList<AccountPreference> preferences = getAccountTypePreferences(
-                    profileData.authenticatorHelper, profileData.userInfo.getUserHandle());
-            final int count = preferences.size();
-            for (int i = 0; i < count; i++) {
-                profileData.preferenceGroup.addPreference(preferences.get(i));
-            }
-            if (profileData.addAccountPreference != null) {
-                profileData.preferenceGroup.addPreference(profileData.addAccountPreference);
+            final PreferenceGroup group = profileData.preferenceGroup;
+            addIfMissing(group, profileData.addAccountPreference);
+            addIfMissing(group, profileData.removeWorkProfilePreference);
+            addIfMissing(group, profileData.managedProfilePreference);
+
+            // Only take what the helper already knows here, the rest is loaded in the
+            // background.
+            final AuthenticatorHelper helper = profileData.authenticatorHelper;
+            final ArrayList<AuthenticatorDescription> descriptions = new ArrayList<>();
+            for (String accountType : helper.getEnabledAccountTypes()) {
+                final AuthenticatorDescription desc = helper.getAccountTypeDescription(
+                        accountType);
+                if (desc != null) {
+                    descriptions.add(desc);
+                }
             }
+            final Context context = getActivity().getApplicationContext();
+            final UserHandle user = profileData.userInfo.getUserHandle();
+            final String[] authorities = mAuthoritiesCount > 0 ? mAuthorities : null;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final List<AccountTypeLoader.Entry> entries = AccountTypeLoader.load(
+                            context, user, descriptions, authorities);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == profileData.generation
+                                    && mProfiles.get(profileData.userInfo.id) == profileData) {
+                                applyAccountTypes(profileData, entries);
+                            }
+                        }
+                    });
+                }
+            });
         } else {
+            profileData.preferenceGroup.removeAll();
+            profileData.accountPreferences.clear();
             // Put a label instead of the accounts list
             mProfileNotAvailablePreference.setEnabled(false);
             mProfileNotAvailablePreference.setIcon(R.drawable.empty_icon);
@@ -416,95 +466,58 @@ public class AccountSettings extends SettingsPreferenceFragment
             mProfileNotAvailablePreference.setSummary(
                     R.string.managed_profile_not_available_label);
             profileData.preferenceGroup.addPreference(mProfileNotAvailablePreference);
-        }
-        if (profileData.removeWorkProfilePreference != null) {
-            profileData.preferenceGroup.addPreference(profileData.removeWorkProfilePreference);
-        }
-        if (profileData.managedProfilePreference != null) {
-            profileData.preferenceGroup.addPreference(profileData.managedProfilePreference);
-        }
-    }
-
-    private ArrayList<AccountPreference> getAccountTypePreferences(AuthenticatorHelper helper,
-            UserHandle userHandle) {
-        final String[] accountTypes = helper.getEnabledAccountTypes();
-        final ArrayList<AccountPreference> accountTypePreferences =
-                new ArrayList<AccountPreference>(accountTypes.length);
-
-        for (int i = 0; i < accountTypes.length; i++) {
-            final String accountType = accountTypes[i];
-            if (!Utils.showAccount(getActivity(), accountType)) {
-                // If needn't to show the account, skip this account.
-                continue;
-            }
-            // Skip showing any account that does not have any of the requested authorities
-            if (!accountTypeHasAnyRequestedAuthorities(helper, accountType)) {
-                continue;
+            if (profileData.removeWorkProfilePreference != null) {
+                profileData.preferenceGroup.addPreference(
+                        profileData.removeWorkProfilePreference);
             }
-            final CharSequence label = helper.getLabelForType(getActivity(), accountType);
-            if (label == null) {
-                continue;
+            if (profileData.managedProfilePreference != null) {
+                profileData.preferenceGroup.addPreference(profileData.managedProfilePreference);
             }
-            final String titleResPackageName = helper.getPackageForType(accountType);
-            final int titleResId = helper.getLabelIdForType(accountType);
-
-            final Account[] accounts = AccountManager.get(getActivity())
-                    .getAccountsByTypeAsUser(accountType, userHandle);
-            final boolean skipToAccount = accounts.length == 1
-                    && !helper.hasAccountPreferences(accountType);
-
-            if (skipToAccount) {
-                final Bundle fragmentArguments = new Bundle();
-                fragmentArguments.putParcelable(AccountSyncSettings.ACCOUNT_KEY,
-                        accounts[0]);
-                fragmentArguments.putParcelable(EXTRA_USER, userHandle);
-
-                accountTypePreferences.add(new AccountPreference(getPrefContext(), label,
-                        titleResPackageName, titleResId, AccountSyncSettings.class.getName(),
-                        fragmentArguments,
-                        helper.getDrawableForType(getActivity(), accountType)));
-            } else {
-                final Bundle fragmentArguments = new Bundle();
-                fragmentArguments.putString(ManageAccountsSettings.KEY_ACCOUNT_TYPE, accountType);
-                fragmentArguments.putString(ManageAccountsSettings.KEY_ACCOUNT_LABEL,
-                        label.toString());
-                fragmentArguments.putParcelable(EXTRA_USER, userHandle);
-
-                accountTypePreferences.add(new AccountPreference(getPrefContext(), label,
-                        titleResPackageName, titleResId, ManageAccountsSettings.class.getName(),
-                        fragmentArguments,
-                        helper.getDrawableForType(getActivity(), accountType)));
-            }
-            helper.preloadDrawableForType(getActivity(), accountType);
         }
-        // Sort by label
-        Collections.sort(accountTypePreferences, new Comparator<AccountPreference>() {
-            @Override
-            public int compare(AccountPreference t1, AccountPreference t2) {
-                return t1.mTitle.toString().compareTo(t2.mTitle.toString());
-            }
-        });
-        return accountTypePreferences;
     }
 
-    private boolean accountTypeHasAnyRequestedAuthorities(AuthenticatorHelper helper,
-            String accountType) {
-        if (mAuthoritiesCount == 0) {
-            // No authorities required
-            return true;
+    private void addIfMissing(PreferenceGroup group, Preference preference) {
+        if (preference == null) {
+            return;
         }
-        final ArrayList<String> authoritiesForType = helper.getAuthoritiesForAccountType(
-                accountType);
-        if (authoritiesForType == null) {
-            Log.d(TAG, "No sync authorities for account type: " + accountType);
-            return false;
+        for (int i = 0; i < group.getPreferenceCount(); i++) {
+            if (group.getPreference(i) == preference) {
+                return;
+            }
         }
-        for (int j = 0; j < mAuthoritiesCount; j++) {
-            if (authoritiesForType.contains(mAuthorities[j])) {
-                return true;
+        group.addPreference(preference);
+    }
+
+    /**
+     * Show the loaded account types, keeping the preferences of unchanged rows.
+     */
+    private void applyAccountTypes(ProfileData profileData, List<AccountTypeLoader.Entry> entries) {
+        final ArrayMap<String, AccountPreference> oldPreferences =
+                new ArrayMap<>(profileData.accountPreferences);
+        profileData.accountPreferences.clear();
+        final int count = entries.size();
+        for (int i = 0; i < count; i++) {
+            final AccountTypeLoader.Entry entry = entries.get(i);
+            AccountPreference preference = oldPreferences.remove(entry.key);
+            if (preference != null && !TextUtils.equals(preference.getTitle(), entry.label)) {
+                // The label is also passed to the next screen
+                profileData.preferenceGroup.removePreference(preference);
+                preference = null;
+            }
+            if (preference == null) {
+                preference = new AccountPreference(getPrefContext(), entry.label,
+                        entry.titleResPackageName, entry.titleResId, entry.fragment,
+                        entry.fragmentArguments, entry.icon);
+                preference.setOrder(i);
+                profileData.preferenceGroup.addPreference(preference);
+            } else if (preference.getOrder() != i) {
+                preference.setOrder(i);
             }
+            profileData.accountPreferences.put(entry.key, preference);
+        }
+        for (int i = 0; i < oldPreferences.size(); i++) {
+            profileData.preferenceGroup.removePreference(oldPreferences.valueAt(i));
         }
-        return false;
     }
 
     private class AccountPreference extends Preference implements OnPreferenceClickListener {
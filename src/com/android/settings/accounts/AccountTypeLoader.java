@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.accounts;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorDescription;
+import android.annotation.WorkerThread;
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SyncAdapterType;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.settings.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static android.content.Intent.EXTRA_USER;
+
+/**
+ * Builds the list of account types shown by {@link AccountSettings} for one profile, off the
+ * main thread. Labels and icons are cached per authenticator package and account type, so
+ * that an account update only costs the account queries. Labels are also keyed by locale, and
+ * the entries of a package are dropped when it changes.
+ */
+class AccountTypeLoader {
+    private static final String TAG = "AccountTypeLoader";
+
+    private static final int MAX_CACHED_TYPES = 64;
+
+    /** Labels by package, account type, label id and locale. */
+    private static final LruCache<String, CharSequence> sLabels =
+            new LruCache<>(MAX_CACHED_TYPES);
+    /** Badged icons by package, account type, icon id and user. */
+    private static final LruCache<String, Drawable.ConstantState> sIcons =
+            new LruCache<>(MAX_CACHED_TYPES);
+    private static boolean sReceiverRegistered;
+
+    /**
+     * One account type row of a profile.
+     */
+    static class Entry {
+        /** Identifies the row across updates, changes when it opens another screen. */
+        final String key;
+        final CharSequence label;
+        final Drawable icon;
+        final String titleResPackageName;
+        final int titleResId;
+        final String fragment;
+        final Bundle fragmentArguments;
+
+        Entry(String key, CharSequence label, Drawable icon, String titleResPackageName,
+                int titleResId, String fragment, Bundle fragmentArguments) {
+            this.key = key;
+            this.label = label;
+            this.icon = icon;
+            this.titleResPackageName = titleResPackageName;
+            this.titleResId = titleResId;
+            this.fragment = fragment;
+            this.fragmentArguments = fragmentArguments;
+        }
+    }
+
+    private AccountTypeLoader() {
+    }
+
+    /**
+     * Build the sorted rows for the given authenticators, skipping types that are hidden or
+     * have none of the requested authorities.
+     */
+    @WorkerThread
+    static List<Entry> load(Context context, UserHandle user,
+            List<AuthenticatorDescription> descriptions, String[] authorities) {
+        ensureReceiverRegistered(context);
+        final ArrayMap<String, ArraySet<String>> authoritiesByType =
+                authorities != null && authorities.length > 0
+                        ? getAuthoritiesByType(user) : null;
+        final AccountManager accountManager = AccountManager.get(context);
+        final ArrayList<Entry> entries = new ArrayList<>(descriptions.size());
+        for (AuthenticatorDescription desc : descriptions) {
+            final String accountType = desc.type;
+            if (!Utils.showAccount(context, accountType)) {
+                // If needn't to show the account, skip this account.
+                continue;
+            }
+            // Skip showing any account that does not have any of the requested authorities
+            if (authoritiesByType != null
+                    && !hasAnyAuthority(authoritiesByType.get(accountType), authorities)) {
+                continue;
+            }
+            final CharSequence label = getLabel(context, user, desc);
+            if (label == null) {
+                continue;
+            }
+
+            final Account[] accounts = accountManager.getAccountsByTypeAsUser(accountType, user);
+            final boolean skipToAccount = accounts.length == 1
+                    && desc.accountPreferencesId == 0;
+            final Bundle fragmentArguments = new Bundle();
+            fragmentArguments.putParcelable(EXTRA_USER, user);
+            final String fragment;
+            final String key;
+            if (skipToAccount) {
+                fragmentArguments.putParcelable(AccountSyncSettings.ACCOUNT_KEY, accounts[0]);
+                fragment = AccountSyncSettings.class.getName();
+                key = accountType + '/' + accounts[0].name;
+            } else {
+                fragmentArguments.putString(ManageAccountsSettings.KEY_ACCOUNT_TYPE, accountType);
+                fragmentArguments.putString(ManageAccountsSettings.KEY_ACCOUNT_LABEL,
+                        label.toString());
+                fragment = ManageAccountsSettings.class.getName();
+                key = accountType;
+            }
+            entries.add(new Entry(key, label, getIcon(context, user, desc), desc.packageName,
+                    desc.labelId, fragment, fragmentArguments));
+        }
+        // Sort by label
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry t1, Entry t2) {
+                return t1.label.toString().compareTo(t2.label.toString());
+            }
+        });
+        return entries;
+    }
+
+    private static ArrayMap<String, ArraySet<String>> getAuthoritiesByType(UserHandle user) {
+        final ArrayMap<String, ArraySet<String>> authoritiesByType = new ArrayMap<>();
+        final SyncAdapterType[] syncAdapters =
+                ContentResolver.getSyncAdapterTypesAsUser(user.getIdentifier());
+        for (SyncAdapterType sa : syncAdapters) {
+            ArraySet<String> authorities = authoritiesByType.get(sa.accountType);
+            if (authorities == null) {
+                authorities = new ArraySet<>();
+                authoritiesByType.put(sa.accountType, authorities);
+            }
+            authorities.add(sa.authority);
+        }
+        return authoritiesByType;
+    }
+
+    private static boolean hasAnyAuthority(ArraySet<String> authoritiesForType,
+            String[] authorities) {
+        if (authoritiesForType == null) {
+            return false;
+        }
+        for (String authority : authorities) {
+            if (authoritiesForType.contains(authority)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static CharSequence getLabel(Context context, UserHandle user,
+            AuthenticatorDescription desc) {
+        // the process outlives a locale change, only the activity is recreated
+        final String key = desc.packageName + '/' + desc.type + '/' + desc.labelId + '/'
+                + context.getResources().getConfiguration().getLocales().toLanguageTags();
+        CharSequence label = sLabels.get(key);
+        if (label == null) {
+            try {
+                Context authContext = context.createPackageContextAsUser(desc.packageName, 0,
+                        user);
+                label = authContext.getResources().getText(desc.labelId);
+                sLabels.put(key, label);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "No label name for account type " + desc.type);
+            } catch (Resources.NotFoundException e) {
+                Log.w(TAG, "No label resource for account type " + desc.type);
+            }
+        }
+        return label;
+    }
+
+    private static Drawable getIcon(Context context, UserHandle user,
+            AuthenticatorDescription desc) {
+        final String key = desc.packageName + '/' + desc.type + '/' + desc.iconId + '/'
+                + user.getIdentifier();
+        final Drawable.ConstantState state = sIcons.get(key);
+        if (state != null) {
+            return state.newDrawable(context.getResources());
+        }
+        final PackageManager pm = context.getPackageManager();
+        Drawable icon = null;
+        try {
+            Context authContext = context.createPackageContextAsUser(desc.packageName, 0, user);
+            icon = pm.getUserBadgedIcon(authContext.getDrawable(desc.iconId), user);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "No icon name for account type " + desc.type);
+        } catch (Resources.NotFoundException e) {
+            Log.w(TAG, "No icon resource for account type " + desc.type);
+        }
+        if (icon == null) {
+            return pm.getDefaultActivityIcon();
+        }
+        if (icon.getConstantState() != null) {
+            sIcons.put(key, icon.getConstantState());
+        }
+        return icon;
+    }
+
+    private static void ensureReceiverRegistered(Context context) {
+        synchronized (sLabels) {
+            if (sReceiverRegistered) {
+                return;
+            }
+            sReceiverRegistered = true;
+        }
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiverAsUser(sPackageReceiver, UserHandle.ALL,
+                filter, null, null);
+    }
+
+    private static void removePackage(LruCache<String, ?> cache, String prefix) {
+        for (String key : cache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    private static final BroadcastReceiver sPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            final String prefix = intent.getData().getSchemeSpecificPart() + '/';
+            removePackage(sLabels, prefix);
+            removePackage(sIcons, prefix);
+        }
+    };
+}
@@ -19,6 +19,7 @@ package com.android.settings.accounts;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AuthenticatorDescription;
+import android.annotation.WorkerThread;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.content.ContentResolver;
@@ -32,7 +33,10 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.Preference.OnPreferenceClickListener;
@@ -79,6 +83,9 @@ public class ManageAccountsSettings extends AccountPreferenceBase
 
     private static final int REQUEST_SHOW_SYNC_SETTINGS = 1;
 
+    /** Sync status changes come in bursts, the state is refreshed at most this often. */
+    private static final long SYNC_STATE_MIN_INTERVAL_MS = 500;
+
     private String[] mAuthorities;
     private TextView mErrorInfoView;
 
@@ -88,6 +95,14 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     // mFirstAccount is used for the injected preferences
     private Account mFirstAccount;
 
+    private final Handler mHandler = new Handler();
+    private boolean mSyncStateLoading;
+    // Set when a refresh was requested while one was loading
+    private boolean mSyncStateDirty;
+    private long mLastSyncStateLoad;
+    // Bumped for every load, results of older ones are dropped
+    private int mSyncStateGeneration;
+
     @Override
     protected int getMetricsCategory() {
         return MetricsEvent.ACCOUNTS_MANAGE_ACCOUNTS;
@@ -147,6 +162,9 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     public void onPause() {
         super.onPause();
         mAuthenticatorHelper.stopListeningToAccountUpdates();
+        mHandler.removeCallbacks(mSyncStateRunnable);
+        mSyncStateGeneration++;
+        mSyncStateLoading = false;
     }
 
     @Override
@@ -250,80 +268,100 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     /**
      * Shows the sync state of the accounts. Note: it must be called after the accounts have been
      * loaded, @see #showAccountsIfNeeded().
+     *
+     * The state is computed on a background thread. Refreshes requested while one is running,
+     * or within {@link #SYNC_STATE_MIN_INTERVAL_MS} of the previous one, are folded into a
+     * single trailing refresh.
      */
     private void showSyncState() {
         // Catch any delayed delivery of update messages
         if (getActivity() == null || getActivity().isFinishing()) return;
 
-        final int userId = mUserHandle.getIdentifier();
-
-        // iterate over all the preferences, setting the state properly for each
-        List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncsAsUser(userId);
-
-        boolean anySyncFailed = false; // true if sync on any account failed
-        Date date = new Date();
+        mHandler.removeCallbacks(mSyncStateRunnable);
+        if (mSyncStateLoading) {
+            mSyncStateDirty = true;
+            return;
+        }
+        final long next = mLastSyncStateLoad + SYNC_STATE_MIN_INTERVAL_MS;
+        final long now = SystemClock.uptimeMillis();
+        if (now < next) {
+            mHandler.postAtTime(mSyncStateRunnable, next);
+            return;
+        }
+        loadSyncState(now);
+    }
 
-        // only track userfacing sync adapters when deciding if account is synced or not
-        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypesAsUser(userId);
-        HashSet<String> userFacing = new HashSet<String>();
-        for (int k = 0, n = syncAdapters.length; k < n; k++) {
-            final SyncAdapterType sa = syncAdapters[k];
-            if (sa.isUserVisible()) {
-                userFacing.add(sa.authority);
-            }
+    private final Runnable mSyncStateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            showSyncState();
         }
+    };
+
+    private void loadSyncState(long now) {
+        // Snapshot the preferences on the main thread, the screen may be rebuilt meanwhile
+        final ArrayList<AccountPreference> prefs = new ArrayList<>();
         for (int i = 0, count = getPreferenceScreen().getPreferenceCount(); i < count; i++) {
             Preference pref = getPreferenceScreen().getPreference(i);
-            if (! (pref instanceof AccountPreference)) {
-                continue;
+            if (pref instanceof AccountPreference) {
+                prefs.add((AccountPreference) pref);
             }
-
-            AccountPreference accountPref = (AccountPreference) pref;
-            Account account = accountPref.getAccount();
-            int syncCount = 0;
-            long lastSuccessTime = 0;
-            boolean syncIsFailing = false;
+        }
+        final SyncStateRequest[] requests = new SyncStateRequest[prefs.size()];
+        for (int i = 0; i < requests.length; i++) {
+            final AccountPreference accountPref = prefs.get(i);
             final ArrayList<String> authorities = accountPref.getAuthorities();
-            boolean syncingNow = false;
-            if (authorities != null) {
-                for (String authority : authorities) {
-                    SyncStatusInfo status = ContentResolver.getSyncStatusAsUser(account, authority,
-                            userId);
-                    boolean syncEnabled = isSyncEnabled(userId, account, authority);
-                    boolean authorityIsPending = ContentResolver.isSyncPending(account, authority);
-                    boolean activelySyncing = isSyncing(currentSyncs, account, authority);
-                    boolean lastSyncFailed = status != null
-                            && syncEnabled
-                            && status.lastFailureTime != 0
-                            && status.getLastFailureMesgAsInt(0)
-                               != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
-                    if (lastSyncFailed && !activelySyncing && !authorityIsPending) {
-                        syncIsFailing = true;
-                        anySyncFailed = true;
-                    }
-                    syncingNow |= activelySyncing;
-                    if (status != null && lastSuccessTime < status.lastSuccessTime) {
-                        lastSuccessTime = status.lastSuccessTime;
+            requests[i] = new SyncStateRequest(accountPref.getAccount(),
+                    authorities != null ? new ArrayList<>(authorities) : null);
+        }
+
+        mSyncStateLoading = true;
+        mSyncStateDirty = false;
+        mLastSyncStateLoad = now;
+        final int generation = ++mSyncStateGeneration;
+        final int userId = mUserHandle.getIdentifier();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SyncState[] states = computeSyncState(userId, requests);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mSyncStateGeneration) {
+                            return;
+                        }
+                        mSyncStateLoading = false;
+                        applySyncState(prefs, states);
+                        if (mSyncStateDirty) {
+                            showSyncState();
+                        }
                     }
-                    syncCount += syncEnabled && userFacing.contains(authority) ? 1 : 0;
-                }
-            } else {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "no syncadapters found for " + account);
-                }
+                });
             }
-            if (syncIsFailing) {
+        });
+    }
+
+    private void applySyncState(List<AccountPreference> prefs, SyncState[] states) {
+        if (getActivity() == null || getActivity().isFinishing()) return;
+
+        boolean anySyncFailed = false; // true if sync on any account failed
+        Date date = new Date();
+        for (int i = 0; i < states.length; i++) {
+            final AccountPreference accountPref = prefs.get(i);
+            final SyncState state = states[i];
+            if (state.syncIsFailing) {
+                anySyncFailed = true;
                 accountPref.setSyncStatus(AccountPreference.SYNC_ERROR, true);
-            } else if (syncCount == 0) {
+            } else if (state.syncCount == 0) {
                 accountPref.setSyncStatus(AccountPreference.SYNC_DISABLED, true);
-            } else if (syncCount > 0) {
-                if (syncingNow) {
+            } else if (state.syncCount > 0) {
+                if (state.syncingNow) {
                     accountPref.setSyncStatus(AccountPreference.SYNC_IN_PROGRESS, true);
                 } else {
                     accountPref.setSyncStatus(AccountPreference.SYNC_ENABLED, true);
-                    if (lastSuccessTime > 0) {
+                    if (state.lastSuccessTime > 0) {
                         accountPref.setSyncStatus(AccountPreference.SYNC_ENABLED, false);
-                        date.setTime(lastSuccessTime);
+                        date.setTime(state.lastSuccessTime);
                         final String timeString = formatSyncDate(date);
                         accountPref.setSummary(getResources().getString(
                                 R.string.last_synced, timeString));
@@ -337,21 +375,94 @@ public class ManageAccountsSettings extends AccountPreferenceBase
         mErrorInfoView.setVisibility(anySyncFailed ? View.VISIBLE : View.GONE);
     }
 
+    /**
+     * An account and the authorities its sync state is computed from.
+     */
+    private static class SyncStateRequest {
+        final Account account;
+        final ArrayList<String> authorities;
+
+        SyncStateRequest(Account account, ArrayList<String> authorities) {
+            this.account = account;
+            this.authorities = authorities;
+        }
+    }
 
-    private boolean isSyncing(List<SyncInfo> currentSyncs, Account account, String authority) {
-        final int count = currentSyncs.size();
-        for (int i = 0; i < count;  i++) {
-            SyncInfo syncInfo = currentSyncs.get(i);
-            if (syncInfo.account.equals(account) && syncInfo.authority.equals(authority)) {
-                return true;
+    /**
+     * The sync state of one account, as shown by its preference.
+     */
+    private static class SyncState {
+        int syncCount;
+        long lastSuccessTime;
+        boolean syncIsFailing;
+        boolean syncingNow;
+    }
+
+    /**
+     * Compute the sync state of every requested account. The user wide values are read once,
+     * only the status of each account and authority is read per pair.
+     */
+    @WorkerThread
+    private static SyncState[] computeSyncState(int userId, SyncStateRequest[] requests) {
+        final HashSet<String> currentSyncs = new HashSet<>();
+        for (SyncInfo syncInfo : ContentResolver.getCurrentSyncsAsUser(userId)) {
+            currentSyncs.add(getSyncKey(syncInfo.account, syncInfo.authority));
+        }
+        final boolean masterSyncEnabled = ContentResolver.getMasterSyncAutomaticallyAsUser(userId);
+
+        // only track userfacing sync adapters when deciding if account is synced or not
+        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypesAsUser(userId);
+        HashSet<String> userFacing = new HashSet<String>();
+        for (int k = 0, n = syncAdapters.length; k < n; k++) {
+            final SyncAdapterType sa = syncAdapters[k];
+            if (sa.isUserVisible()) {
+                userFacing.add(sa.authority);
+            }
+        }
+
+        final SyncState[] states = new SyncState[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            final Account account = requests[i].account;
+            final SyncState state = new SyncState();
+            states[i] = state;
+            if (requests[i].authorities == null) {
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "no syncadapters found for " + account);
+                }
+                continue;
+            }
+            for (String authority : requests[i].authorities) {
+                SyncStatusInfo status = ContentResolver.getSyncStatusAsUser(account, authority,
+                        userId);
+                boolean syncEnabled = masterSyncEnabled
+                        && isSyncEnabled(userId, account, authority);
+                // The status carries the pending flag, no need to ask for it separately
+                boolean authorityIsPending = status != null && status.pending;
+                boolean activelySyncing = currentSyncs.contains(getSyncKey(account, authority));
+                boolean lastSyncFailed = status != null
+                        && syncEnabled
+                        && status.lastFailureTime != 0
+                        && status.getLastFailureMesgAsInt(0)
+                           != ContentResolver.SYNC_ERROR_SYNC_ALREADY_IN_PROGRESS;
+                if (lastSyncFailed && !activelySyncing && !authorityIsPending) {
+                    state.syncIsFailing = true;
+                }
+                state.syncingNow |= activelySyncing;
+                if (status != null && state.lastSuccessTime < status.lastSuccessTime) {
+                    state.lastSuccessTime = status.lastSuccessTime;
+                }
+                state.syncCount += syncEnabled && userFacing.contains(authority) ? 1 : 0;
             }
         }
-        return false;
+        return states;
+    }
+
+    private static String getSyncKey(Account account, String authority) {
+        return account.type + '/' + account.name + '/' + authority;
     }
 
-    private boolean isSyncEnabled(int userId, Account account, String authority) {
+    private static boolean isSyncEnabled(int userId, Account account, String authority) {
         return ContentResolver.getSyncAutomaticallyAsUser(account, authority, userId)
-                && ContentResolver.getMasterSyncAutomaticallyAsUser(userId)
                 && (ContentResolver.getIsSyncableAsUser(account, authority, userId) > 0);
     }
 
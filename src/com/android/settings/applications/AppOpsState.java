@@ -30,6 +30,7 @@ import android.text.format.DateUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.settings.PackageItemInfoCache;
 import com.android.settings.R;
 
 import java.io.File;
@@ -268,7 +269,7 @@ public class AppOpsState {
         public Drawable getIcon() {
             if (mIcon == null) {
                 if (mApkFile.exists()) {
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = PackageItemInfoCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 } else {
                     mMounted = false;
@@ -278,7 +279,7 @@ public class AppOpsState {
                 // its icon.
                 if (mApkFile.exists()) {
                     mMounted = true;
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = PackageItemInfoCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 }
             } else {
@@ -300,7 +301,8 @@ public class AppOpsState {
                     mLabel = mInfo.packageName;
                 } else {
                     mMounted = true;
-                    CharSequence label = mInfo.loadLabel(context.getPackageManager());
+                    CharSequence label = PackageItemInfoCache.getInstance(context)
+                            .getLabel(mInfo);
                     mLabel = label != null ? label.toString() : mInfo.packageName;
                 }
             }
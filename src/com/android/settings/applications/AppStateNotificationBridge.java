@@ -51,10 +51,11 @@ public class AppStateNotificationBridge extends AppStateBaseBridge {
     @Override
     protected void loadAllExtraInfo() {
         ArrayList<AppEntry> apps = mAppSession.getAllApps();
+        final boolean lockScreenSecure = mNotifBackend.isLockScreenSecure(mContext);
         final int N = apps.size();
         for (int i = 0; i < N; i++) {
             AppEntry app = apps.get(i);
-            app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
+            app.extraInfo = mNotifBackend.loadAppRow(mContext, app.info, lockScreenSecure);
         }
     }
 
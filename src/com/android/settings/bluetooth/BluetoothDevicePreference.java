@@ -63,6 +63,9 @@ public final class BluetoothDevicePreference extends Preference implements
 
     private String contentDescription = null;
 
+    /** Last value of {@link #getRank}, the only attribute change that reorders the list. */
+    private int mRank = -1;
+
     /* Talk-back descriptions for various BT icons */
     Resources r = getContext().getResources();
     public final String COMPUTER =  r.getString(R.string.bluetooth_talkback_computer);
@@ -146,8 +149,19 @@ public final class BluetoothDevicePreference extends Preference implements
         // Used to gray out the item
         setEnabled(!mCachedDevice.isBusy());
 
-        // This could affect ordering, so notify that
-        notifyHierarchyChanged();
+        // Only connection and bond changes affect ordering, see compareTo()
+        final int rank = getRank(mCachedDevice);
+        if (rank != mRank) {
+            mRank = rank;
+            notifyHierarchyChanged();
+        }
+    }
+
+    private static int getRank(CachedBluetoothDevice device) {
+        if (device.isConnected()) {
+            return 0;
+        }
+        return device.getBondState() == BluetoothDevice.BOND_BONDED ? 1 : 2;
     }
 
     @Override
@@ -200,8 +214,14 @@ public final class BluetoothDevicePreference extends Preference implements
             return super.compareTo(another);
         }
 
-        return mCachedDevice
-                .compareTo(((BluetoothDevicePreference) another).mCachedDevice);
+        final CachedBluetoothDevice anotherDevice =
+                ((BluetoothDevicePreference) another).mCachedDevice;
+        // Devices of the same rank stay in the order they were added in
+        if (getOrder() != DEFAULT_ORDER && another.getOrder() != DEFAULT_ORDER
+                && getRank(mCachedDevice) == getRank(anotherDevice)) {
+            return Integer.compare(getOrder(), another.getOrder());
+        }
+        return mCachedDevice.compareTo(anotherDevice);
     }
 
     void onClicked() {
@@ -232,6 +232,8 @@ public final class BluetoothSettings extends DeviceListPreferenceFragment implem
         mAvailableDevicesCategory.setSelectable(false);
         mAvailableDevicesCategory.setOrder(2);
         getPreferenceScreen().addPreference(mAvailableDevicesCategory);
+        // Keep devices only briefly in range from flickering into the found devices list
+        setSuppressShortLivedDevices(true);
 
         mMyDevicePreference = new Preference(getPrefContext());
         mMyDevicePreference.setSelectable(false);
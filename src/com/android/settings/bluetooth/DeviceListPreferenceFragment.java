@@ -19,9 +19,13 @@ package com.android.settings.bluetooth;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceCategory;
 import android.support.v7.preference.PreferenceGroup;
+import android.text.format.DateUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.settings.RestrictedSettingsFragment;
@@ -31,7 +35,9 @@ import com.android.settingslib.bluetooth.CachedBluetoothDevice;
 import com.android.settingslib.bluetooth.LocalBluetoothAdapter;
 import com.android.settingslib.bluetooth.LocalBluetoothManager;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.WeakHashMap;
 
 /**
@@ -49,6 +55,11 @@ public abstract class DeviceListPreferenceFragment extends
     private static final String KEY_BT_DEVICE_LIST = "bt_device_list";
     private static final String KEY_BT_SCAN = "bt_scan";
 
+    /** Devices reported during discovery are added to the list in batches this far apart. */
+    private static final long BATCH_DELAY_MILLIS = 16;
+    /** How long an unbonded device must stay around before it is shown, if suppressed. */
+    private static final long SHORT_LIVED_DEVICE_MILLIS = DateUtils.SECOND_IN_MILLIS;
+
     private BluetoothDeviceFilter.Filter mFilter;
 
     BluetoothDevice mSelectedDevice;
@@ -61,6 +72,14 @@ public abstract class DeviceListPreferenceFragment extends
     final WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference> mDevicePreferenceMap =
             new WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference>();
 
+    private final Handler mHandler = new Handler();
+
+    /** Devices waiting for the next batch, with the time they were first reported. */
+    private final ArrayMap<CachedBluetoothDevice, Long> mPendingDevices = new ArrayMap<>();
+    private boolean mFlushScheduled;
+    private boolean mSuppressShortLivedDevices;
+    private int mNextOrder;
+
     DeviceListPreferenceFragment(String restrictedKey) {
         super(restrictedKey);
         mFilter = BluetoothDeviceFilter.ALL_FILTER;
@@ -74,6 +93,15 @@ public abstract class DeviceListPreferenceFragment extends
         mFilter = BluetoothDeviceFilter.getFilter(filterType);
     }
 
+    /**
+     * Hold back unbonded devices found during discovery until they have been around for
+     * {@link #SHORT_LIVED_DEVICE_MILLIS}, so devices that appear and vanish right away never
+     * make it into the list.
+     */
+    final void setSuppressShortLivedDevices(boolean suppress) {
+        mSuppressShortLivedDevices = suppress;
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -124,14 +152,30 @@ public abstract class DeviceListPreferenceFragment extends
         mLocalAdapter.stopScanning();
         mDevicePreferenceMap.clear();
         mDeviceListGroup.removeAll();
+        mPendingDevices.clear();
+        mHandler.removeCallbacks(mFlushPendingDevices);
+        mFlushScheduled = false;
+        mNextOrder = 0;
     }
 
+    /**
+     * Add every known device right away, as a single sorted batch.
+     */
     void addCachedDevices() {
+        // Prevent updates while the list shows one of the state messages
+        if (mLocalAdapter.getBluetoothState() != BluetoothAdapter.STATE_ON) return;
+
         Collection<CachedBluetoothDevice> cachedDevices =
                 mLocalManager.getCachedDeviceManager().getCachedDevicesCopy();
+        final ArrayList<CachedBluetoothDevice> devices = new ArrayList<>(cachedDevices.size());
         for (CachedBluetoothDevice cachedDevice : cachedDevices) {
-            onDeviceAdded(cachedDevice);
+            mPendingDevices.remove(cachedDevice);
+            if (mDevicePreferenceMap.get(cachedDevice) == null
+                    && mFilter.matches(cachedDevice.getDevice())) {
+                devices.add(cachedDevice);
+            }
         }
+        addDevices(devices);
     }
 
     @Override
@@ -164,8 +208,66 @@ public abstract class DeviceListPreferenceFragment extends
         // Prevent updates while the list shows one of the state messages
         if (mLocalAdapter.getBluetoothState() != BluetoothAdapter.STATE_ON) return;
 
-        if (mFilter.matches(cachedDevice.getDevice())) {
-            createDevicePreference(cachedDevice);
+        if (!mPendingDevices.containsKey(cachedDevice)) {
+            mPendingDevices.put(cachedDevice, SystemClock.uptimeMillis());
+        }
+        scheduleFlush(BATCH_DELAY_MILLIS);
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushPendingDevices, delayMillis);
+        }
+    }
+
+    private final Runnable mFlushPendingDevices = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flushPendingDevices();
+        }
+    };
+
+    private void flushPendingDevices() {
+        if (mLocalAdapter.getBluetoothState() != BluetoothAdapter.STATE_ON) {
+            mPendingDevices.clear();
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        final ArrayList<CachedBluetoothDevice> devices = new ArrayList<>(mPendingDevices.size());
+        for (int i = mPendingDevices.size() - 1; i >= 0; i--) {
+            final CachedBluetoothDevice cachedDevice = mPendingDevices.keyAt(i);
+            if (mSuppressShortLivedDevices
+                    && cachedDevice.getBondState() == BluetoothDevice.BOND_NONE) {
+                final long due = mPendingDevices.valueAt(i) + SHORT_LIVED_DEVICE_MILLIS;
+                if (due > now) {
+                    nextDue = Math.min(nextDue, due);
+                    continue;
+                }
+            }
+            mPendingDevices.removeAt(i);
+            if (mDevicePreferenceMap.get(cachedDevice) == null
+                    && mFilter.matches(cachedDevice.getDevice())) {
+                devices.add(cachedDevice);
+            }
+        }
+        addDevices(devices);
+        if (nextDue != Long.MAX_VALUE) {
+            scheduleFlush(nextDue - now);
+        }
+    }
+
+    /**
+     * Create preferences for a batch of devices. The batch is ranked once and each device
+     * keeps the position it was added at, so later signal strength changes do not shuffle
+     * the list.
+     */
+    private void addDevices(ArrayList<CachedBluetoothDevice> devices) {
+        Collections.sort(devices);
+        for (int i = 0; i < devices.size(); i++) {
+            createDevicePreference(devices.get(i));
         }
     }
 
@@ -182,6 +284,7 @@ public abstract class DeviceListPreferenceFragment extends
         if (preference == null) {
             preference = new BluetoothDevicePreference(getPrefContext(), cachedDevice);
             preference.setKey(key);
+            preference.setOrder(mNextOrder++);
             mDeviceListGroup.addPreference(preference);
         } else {
             // Tell the preference it is being re-used in case there is new info in the
@@ -203,6 +306,7 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     public void onDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+        mPendingDevices.remove(cachedDevice);
         BluetoothDevicePreference preference = mDevicePreferenceMap.remove(cachedDevice);
         if (preference != null) {
             mDeviceListGroup.removePreference(preference);
@@ -32,6 +32,7 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.android.settings.PackageItemInfoCache;
 import com.android.settings.R;
 
 import java.util.Collections;
@@ -41,6 +42,7 @@ import java.util.TreeSet;
 
 public class AppSelectListPreference extends BaseAdapter implements Runnable {
     private PackageManager mPm;
+    private PackageItemInfoCache mCache;
     private LayoutInflater mInflater;
     private List<PackageItem> mInstalledPackages = new LinkedList<PackageItem>();
 
@@ -86,6 +88,7 @@ public class AppSelectListPreference extends BaseAdapter implements Runnable {
 
     public AppSelectListPreference(Context context) {
         mPm = context.getPackageManager();
+        mCache = PackageItemInfoCache.getInstance(context);
         mInflater = LayoutInflater.from(context);
         reloadList();
     }
@@ -161,7 +164,7 @@ public class AppSelectListPreference extends BaseAdapter implements Runnable {
         for (ResolveInfo info : installedAppsInfo) {
             ApplicationInfo appInfo = info.activityInfo.applicationInfo;
             final PackageItem item = new PackageItem(appInfo.packageName,
-                    appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
+                    mCache.getLabel(appInfo), mCache.getIcon(appInfo));
             item.activityTitles.add(info.loadLabel(mPm));
             mHandler.obtainMessage(0, item).sendToTarget();
         }
@@ -170,7 +173,7 @@ public class AppSelectListPreference extends BaseAdapter implements Runnable {
             try {
                 ApplicationInfo appInfo = mPm.getApplicationInfo(packageName, 0);
                 final PackageItem item = new PackageItem(appInfo.packageName,
-                        appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
+                        mCache.getLabel(appInfo), mCache.getIcon(appInfo));
                 mHandler.obtainMessage(0, item).sendToTarget();
             } catch (PackageManager.NameNotFoundException ignored) {
                 // package not present, so nothing to add -> ignore it
@@ -44,6 +44,7 @@ import android.widget.ListView;
 
 import com.android.internal.logging.MetricsProto.MetricsEvent;
 import com.android.internal.util.citrus.ColorUtils;
+import com.android.settings.PackageItemInfoCache;
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.search.BaseSearchIndexProvider;
@@ -75,6 +76,7 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
     private int mDefaultLedOn;
     private int mDefaultLedOff;
     private PackageManager mPackageManager;
+    private PackageItemInfoCache mItemInfoCache;
     private PreferenceGroup mApplicationPrefList;
     private SystemSettingSwitchPreference mAutoGenerateColors;
     private SystemSettingSwitchPreference mEnabledPref;
@@ -135,6 +137,7 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
 
         // Get launch-able applications
         mPackageManager = getPackageManager();
+        mItemInfoCache = PackageItemInfoCache.getInstance(getActivity());
         mPackageAdapter = new AppSelectListPreference(getActivity());
 
         mPackages = new HashMap<String, Package>();
@@ -188,12 +191,19 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
                 try {
                     PackageInfo info = mPackageManager.getPackageInfo(pkg.name,
                             PackageManager.GET_META_DATA);
-                    NotificationLightPreference pref =
+                    final NotificationLightPreference pref =
                             new NotificationLightPreference(context, pkg.color, pkg.timeon, pkg.timeoff);
 
                     pref.setKey(pkg.name);
-                    pref.setTitle(info.applicationInfo.loadLabel(mPackageManager));
-                    pref.setIcon(info.applicationInfo.loadIcon(mPackageManager));
+                    // The list is sorted by title, only the icon can show up later
+                    pref.setTitle(mItemInfoCache.getLabel(info.applicationInfo));
+                    mItemInfoCache.load(info.applicationInfo,
+                            new PackageItemInfoCache.OnLoadedListener() {
+                        @Override
+                        public void onLoaded(CharSequence label, Drawable icon) {
+                            pref.setIcon(icon);
+                        }
+                    });
                     pref.setPersistent(false);
                     pref.setOnPreferenceChangeListener(this);
                     pref.setOnLongClickListener(this);
@@ -224,7 +234,8 @@ public class NotificationLightSettings extends SettingsPreferenceFragment implem
         int color = mDefaultColor;
         if (autoColor) {
             try {
-                Drawable icon = mPackageManager.getApplicationIcon(packageName);
+                Drawable icon = mItemInfoCache.getIcon(
+                        mPackageManager.getApplicationInfo(packageName, 0));
                 color = ColorUtils.getIconColorFromDrawable(icon);
             } catch (NameNotFoundException e) {
                 // shouldn't happen, but just return default
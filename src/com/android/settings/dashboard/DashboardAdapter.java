@@ -26,7 +26,9 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Icon;
 import android.graphics.PorterDuff.Mode;
 import android.provider.Settings;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.Settings;
 import android.support.v7.widget.PopupMenu;
 import android.support.v7.widget.RecyclerView;
@@ -55,6 +57,7 @@ import com.android.settingslib.drawer.DashboardCategory;
 import com.android.settingslib.drawer.Tile;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.DashboardItemHolder>
@@ -64,10 +67,6 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     private static final String STATE_CATEGORY_LIST = "category_list";
     private static final String STATE_IS_SHOWING_ALL = "is_showing_all";
     private static final String STATE_SUGGESTION_MODE = "suggestion_mode";
-    private static final int NS_SPACER = 0;
-    private static final int NS_SUGGESTION = 1000;
-    private static final int NS_ITEMS = 2000;
-    private static final int NS_CONDITION = 3000;
 
     private static int SUGGESTION_MODE_DEFAULT = 0;
     private static int SUGGESTION_MODE_COLLAPSED = 1;
@@ -77,10 +76,13 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     private static final String LTE_4G_ACTIVITY = "Lte4GEnableActivity";
     private static final String SYSTEM_UPDATE_INTENT = "android.settings.SYSTEM_UPDATE_SETTINGS";
-    private final List<Object> mItems = new ArrayList<>();
-    private final List<Integer> mTypes = new ArrayList<>();
-    private final List<Integer> mIds = new ArrayList<>();
     private final IconCache mCache;
+    private final Handler mHandler = new Handler();
+
+    /** What is currently shown, replaced as a whole by every rebuild. */
+    private DashboardData mData = DashboardData.EMPTY;
+    /** Bumped on every rebuild, so that only the newest model is applied. */
+    private int mGeneration;
 
     private final Context mContext;
     private Lte4GEnabler mLte4GEnabler;
@@ -92,8 +94,6 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     private List<Tile> mSuggestions;
 
     private boolean mIsShowingAll;
-    // Used for counting items;
-    private int mId;
 
     private int mSuggestionMode = SUGGESTION_MODE_DEFAULT;
 
@@ -235,7 +235,11 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     }
 
     public void notifyChanged(Tile tile) {
-        notifyDataSetChanged();
+        // Only the summary of this tile changed, rebind its row alone
+        final int position = mData.getPosition(tile);
+        if (position >= 0) {
+            notifyItemChanged(position);
+        }
     }
 
     public void setShowingAll(boolean showingAll) {
@@ -243,64 +247,137 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         recountItems();
     }
 
+    /**
+     * Rebuild the model from the current categories, conditions and suggestions. The first
+     * model is built right away so that the dashboard can draw, later ones are built in the
+     * background and only the rows that differ are rebound.
+     */
     private void recountItems() {
-        reset();
-        boolean hasConditions = false;
+        final int generation = ++mGeneration;
+        // Conditions change on this thread, so take what they show before going off-thread
+        final List<ShownCondition> conditions = new ArrayList<>();
         for (int i = 0; mConditions != null && i < mConditions.size(); i++) {
-            boolean shouldShow = mConditions.get(i).shouldShow();
-            hasConditions |= shouldShow;
-            countItem(mConditions.get(i), R.layout.condition_card, shouldShow, NS_CONDITION);
-        }
-        boolean hasSuggestions = mSuggestions != null && mSuggestions.size() != 0;
-        countItem(null, R.layout.dashboard_spacer, hasConditions && hasSuggestions, NS_SPACER);
-        countItem(null, R.layout.suggestion_header, hasSuggestions, NS_SPACER);
-        resetCount();
-        if (mSuggestions != null) {
-            int maxSuggestions = getDisplayableSuggestionCount();
-            for (int i = 0; i < mSuggestions.size(); i++) {
-                countItem(mSuggestions.get(i), R.layout.suggestion_tile, i < maxSuggestions,
-                        NS_SUGGESTION);
+            final Condition condition = mConditions.get(i);
+            if (condition.shouldShow()) {
+                conditions.add(new ShownCondition(condition));
+            }
+        }
+        final List<Tile> suggestions = mSuggestions != null
+                ? new ArrayList<>(mSuggestions) : null;
+        final List<DashboardCategory> categories = mCategories != null
+                ? new ArrayList<>(mCategories) : null;
+        final boolean showingAll = mIsShowingAll;
+        final int displayableSuggestions = suggestions != null
+                ? getDisplayableSuggestionCount() : 0;
+        final int suggestionMode = mSuggestionMode;
+        final DashboardData oldData = mData;
+
+        if (oldData.size() == 0) {
+            final DashboardData data = buildData(conditions, suggestions, categories,
+                    showingAll, displayableSuggestions, suggestionMode);
+            applyData(data, DashboardData.computeUpdates(oldData, data));
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DashboardData data = buildData(conditions, suggestions, categories,
+                        showingAll, displayableSuggestions, suggestionMode);
+                final List<DashboardData.Update> updates =
+                        DashboardData.computeUpdates(oldData, data);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            // A newer rebuild is on its way
+                            return;
+                        }
+                        applyData(data, mData == oldData ? updates
+                                : DashboardData.computeUpdates(mData, data));
+                    }
+                });
+            }
+        });
+    }
+
+    private void applyData(DashboardData data, List<DashboardData.Update> updates) {
+        mData = data;
+        DashboardData.dispatchUpdates(updates, this);
+    }
+
+    private static DashboardData buildData(List<ShownCondition> conditions,
+            List<Tile> suggestions, List<DashboardCategory> categories, boolean showingAll,
+            int displayableSuggestions, int suggestionMode) {
+        final DashboardData.Builder builder = new DashboardData.Builder();
+        final boolean hasConditions = conditions.size() != 0;
+        for (int i = 0; i < conditions.size(); i++) {
+            final ShownCondition shown = conditions.get(i);
+            builder.add(shown.condition, R.layout.condition_card, DashboardData.NS_CONDITION,
+                    shown.condition.getClass().getName(),
+                    Arrays.asList(shown.title, shown.summary));
+        }
+        boolean hasSuggestions = suggestions != null && suggestions.size() != 0;
+        if (hasConditions && hasSuggestions) {
+            builder.add(null, R.layout.dashboard_spacer, DashboardData.NS_SPACER, "spacer",
+                    null);
+        }
+        if (hasSuggestions) {
+            builder.add(null, R.layout.suggestion_header, DashboardData.NS_SPACER,
+                    "suggestion_header", Arrays.asList(suggestions.size(),
+                            displayableSuggestions, suggestionMode));
+            for (int i = 0; i < displayableSuggestions; i++) {
+                final Tile suggestion = suggestions.get(i);
+                builder.add(suggestion, R.layout.suggestion_tile, DashboardData.NS_SUGGESTION,
+                        suggestion.intent.getComponent().flattenToShortString(),
+                        getTileContent(suggestion));
             }
         }
-        resetCount();
-        for (int i = 0; mCategories != null && i < mCategories.size(); i++) {
-            DashboardCategory category = mCategories.get(i);
-            countItem(category, R.layout.dashboard_category, mIsShowingAll, NS_ITEMS);
+        for (int i = 0; categories != null && i < categories.size(); i++) {
+            DashboardCategory category = categories.get(i);
+            if (showingAll) {
+                builder.add(category, R.layout.dashboard_category, DashboardData.NS_ITEMS,
+                        "category:" + (category.key != null ? category.key
+                                : toString(category.title)),
+                        toString(category.title));
+            }
             for (int j = 0; j < category.tiles.size(); j++) {
                 Tile tile = category.tiles.get(j);
-                if (tile.intent.getComponent().getClassName().contains(LTE_4G_ACTIVITY)) {
-                    countItem(tile, R.layout.dashboard_tile_switch, mIsShowingAll ||
-                            ArrayUtils.contains(DashboardSummary.INITIAL_ITEMS,
-                            tile.intent.getComponent().getClassName()), NS_ITEMS);
-                } else {
-                    countItem(tile, R.layout.dashboard_tile, mIsShowingAll
-                            || ArrayUtils.contains(DashboardSummary.INITIAL_ITEMS,
-                            tile.intent.getComponent().getClassName()), NS_ITEMS);
+                final String className = tile.intent.getComponent().getClassName();
+                if (!showingAll && !ArrayUtils.contains(DashboardSummary.INITIAL_ITEMS,
+                        className)) {
+                    continue;
                 }
+                builder.add(tile, className.contains(LTE_4G_ACTIVITY)
+                        ? R.layout.dashboard_tile_switch : R.layout.dashboard_tile,
+                        DashboardData.NS_ITEMS,
+                        "tile:" + tile.intent.getComponent().flattenToShortString(),
+                        getTileContent(tile));
             }
         }
-        notifyDataSetChanged();
+        return builder.build();
     }
 
-    private void resetCount() {
-        mId = 0;
+    /**
+     * What a shown condition displays, taken on the main thread.
+     */
+    private static final class ShownCondition {
+        final Condition condition;
+        final String title;
+        final String summary;
+
+        ShownCondition(Condition condition) {
+            this.condition = condition;
+            title = DashboardAdapter.toString(condition.getTitle());
+            summary = DashboardAdapter.toString(condition.getSummary());
+        }
     }
 
-    private void reset() {
-        mItems.clear();
-        mTypes.clear();
-        mIds.clear();
-        mId = 0;
+    private static Object getTileContent(Tile tile) {
+        return Arrays.asList(toString(tile.title), toString(tile.summary), tile.icon);
     }
 
-    private void countItem(Object object, int type, boolean add, int nameSpace) {
-        if (add) {
-            mItems.add(object);
-            mTypes.add(type);
-            // TODO: Counting namespaces for handling of suggestions/conds appearing/disappearing.
-            mIds.add(mId + nameSpace);
-        }
-        mId++;
+    private static String toString(CharSequence text) {
+        return text != null ? text.toString() : null;
     }
 
     private int getDisplayableSuggestionCount() {
@@ -319,18 +396,19 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     @Override
     public void onBindViewHolder(DashboardItemHolder holder, int position) {
-        switch (mTypes.get(position)) {
+        final Object item = mData.get(position).entity;
+        switch (mData.get(position).type) {
             case R.layout.dashboard_category:
-                onBindCategory(holder, (DashboardCategory) mItems.get(position));
+                onBindCategory(holder, (DashboardCategory) item);
                 break;
             case R.layout.dashboard_tile:
-                final Tile tile = (Tile) mItems.get(position);
+                final Tile tile = (Tile) item;
                 onBindTile(holder, tile);
                 holder.itemView.setTag(tile);
                 holder.itemView.setOnClickListener(this);
                 break;
             case R.layout.dashboard_tile_switch:
-                final Tile tileSitch = (Tile) mItems.get(position);
+                final Tile tileSitch = (Tile) item;
                 mLte4GEnablerHolder = holder;
                 onBindTile(holder, tileSitch);
                 holder.itemView.setOnClickListener(this);
@@ -349,7 +427,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                 onBindSuggestionHeader(holder);
                 break;
             case R.layout.suggestion_tile:
-                final Tile suggestion = (Tile) mItems.get(position);
+                final Tile suggestion = (Tile) item;
                 onBindTile(holder, suggestion);
                 holder.itemView.setOnClickListener(new View.OnClickListener() {
                     @Override
@@ -371,8 +449,8 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                 onBindSeeAll(holder);
                 break;
             case R.layout.condition_card:
-                ConditionAdapterUtils.bindViews((Condition) mItems.get(position), holder,
-                        mItems.get(position) == mExpandedCondition, this,
+                ConditionAdapterUtils.bindViews((Condition) item, holder,
+                        item == mExpandedCondition, this,
                         new View.OnClickListener() {
                             @Override
                             public void onClick(View v) {
@@ -401,6 +479,22 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
         popup.show();
     }
 
+    /**
+     * Remove the suggestion for the given component, if it is shown.
+     */
+    public void removeSuggestion(ComponentName component) {
+        if (mSuggestions == null) {
+            return;
+        }
+        for (int i = 0; i < mSuggestions.size(); i++) {
+            if (component.equals(mSuggestions.get(i).intent.getComponent())) {
+                mSuggestions.remove(i);
+                recountItems();
+                return;
+            }
+        }
+    }
+
     public void disableSuggestion(Tile suggestion) {
         if (mSuggestionParser == null) {
             return;
@@ -512,17 +606,17 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
 
     @Override
     public long getItemId(int position) {
-        return mIds.get(position);
+        return mData.get(position).id;
     }
 
     @Override
     public int getItemViewType(int position) {
-        return mTypes.get(position);
+        return mData.get(position).type;
     }
 
     @Override
     public int getItemCount() {
-        return mIds.size();
+        return mData.size();
     }
 
     @Override
@@ -551,14 +645,16 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
                     mExpandedCondition.getMetricsConstant());
             mExpandedCondition.onPrimaryClick();
         } else {
+            final Condition oldExpanded = mExpandedCondition;
             mExpandedCondition = (Condition) v.getTag();
             MetricsLogger.action(mContext, MetricsEvent.ACTION_SETTINGS_CONDITION_EXPAND,
                     mExpandedCondition.getMetricsConstant());
-            notifyDataSetChanged();
+            notifyConditionsChanged(oldExpanded, mExpandedCondition);
         }
     }
 
     public void onExpandClick(View v) {
+        final Condition oldExpanded = mExpandedCondition;
         if (v.getTag() == mExpandedCondition) {
             MetricsLogger.action(mContext, MetricsEvent.ACTION_SETTINGS_CONDITION_COLLAPSE,
                     mExpandedCondition.getMetricsConstant());
@@ -568,16 +664,21 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
             MetricsLogger.action(mContext, MetricsEvent.ACTION_SETTINGS_CONDITION_EXPAND,
                     mExpandedCondition.getMetricsConstant());
         }
-        notifyDataSetChanged();
+        notifyConditionsChanged(oldExpanded, mExpandedCondition);
     }
 
-    public Object getItem(long itemId) {
-        for (int i = 0; i < mIds.size(); i++) {
-            if (mIds.get(i) == itemId) {
-                return mItems.get(i);
+    private void notifyConditionsChanged(Condition... conditions) {
+        for (Condition condition : conditions) {
+            final int position = condition != null ? mData.getPosition(condition) : -1;
+            if (position >= 0) {
+                notifyItemChanged(position);
             }
         }
-        return null;
+    }
+
+    public Object getItem(long itemId) {
+        final int position = mData.getPosition(itemId);
+        return position >= 0 ? mData.get(position).entity : null;
     }
 
     public static String getSuggestionIdentifier(Context context, Tile suggestion) {
@@ -645,7 +746,7 @@ public class DashboardAdapter extends RecyclerView.Adapter<DashboardAdapter.Dash
     }
 
     public boolean isPositionFullSpan(int position) {
-        return mTypes.get(position) != R.layout.dashboard_tile;
+        return mData.get(position).type != R.layout.dashboard_tile;
     }
 
     public void setNumColumns(int numColumns) {
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.dashboard;
+
+import android.support.v7.widget.RecyclerView;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable flattened list of the rows shown by {@link DashboardAdapter}. Every row has an id
+ * derived from what it shows rather than from its position, so that two consecutive models
+ * can be compared with {@link #computeUpdates} and only the rows that actually moved or
+ * changed are rebound.
+ */
+class DashboardData {
+    static final int NS_SPACER = 0;
+    static final int NS_SUGGESTION = 1;
+    static final int NS_ITEMS = 2;
+    static final int NS_CONDITION = 3;
+
+    static final DashboardData EMPTY = new Builder().build();
+
+    /**
+     * One row of the dashboard.
+     */
+    static final class Item {
+        /** The category, tile, suggestion or condition bound to the row, or null. */
+        final Object entity;
+        /** Layout of the row, also used as view type. */
+        final int type;
+        final long id;
+        /** What the row displays, rows whose content differs between models are rebound. */
+        final Object content;
+
+        private Item(Object entity, int type, long id, Object content) {
+            this.entity = entity;
+            this.type = type;
+            this.id = id;
+            this.content = content;
+        }
+    }
+
+    /**
+     * A single notification to dispatch to the adapter.
+     */
+    static final class Update {
+        static final int INSERT = 0;
+        static final int REMOVE = 1;
+        static final int MOVE = 2;
+        static final int CHANGE = 3;
+
+        final int op;
+        final int position;
+        final int toPosition;
+
+        private Update(int op, int position, int toPosition) {
+            this.op = op;
+            this.position = position;
+            this.toPosition = toPosition;
+        }
+    }
+
+    private final List<Item> mItems;
+    private final ArrayMap<Long, Integer> mPositions;
+
+    private DashboardData(List<Item> items) {
+        mItems = Collections.unmodifiableList(items);
+        mPositions = new ArrayMap<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            mPositions.put(items.get(i).id, i);
+        }
+    }
+
+    int size() {
+        return mItems.size();
+    }
+
+    Item get(int position) {
+        return mItems.get(position);
+    }
+
+    /**
+     * Return the position of the row with the given id, or -1.
+     */
+    int getPosition(long id) {
+        final Integer position = mPositions.get(id);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Return the position of the row bound to the given object, or -1.
+     */
+    int getPosition(Object entity) {
+        for (int i = 0; i < mItems.size(); i++) {
+            if (mItems.get(i).entity == entity) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compute the notifications that turn {@code oldData} into {@code newData}, in the order
+     * they have to be dispatched.
+     */
+    static List<Update> computeUpdates(DashboardData oldData, DashboardData newData) {
+        final ArrayList<Update> updates = new ArrayList<>();
+        final ArrayList<Long> current = new ArrayList<>(oldData.size());
+        for (int i = oldData.size() - 1; i >= 0; i--) {
+            final long id = oldData.get(i).id;
+            if (newData.getPosition(id) < 0) {
+                updates.add(new Update(Update.REMOVE, i, i));
+            }
+        }
+        for (int i = 0; i < oldData.size(); i++) {
+            final long id = oldData.get(i).id;
+            if (newData.getPosition(id) >= 0) {
+                current.add(id);
+            }
+        }
+        for (int i = 0; i < newData.size(); i++) {
+            final Item item = newData.get(i);
+            if (i < current.size() && current.get(i) == item.id) {
+                continue;
+            }
+            final int from = current.indexOf(item.id);
+            if (from > i) {
+                current.remove(from);
+                current.add(i, item.id);
+                updates.add(new Update(Update.MOVE, from, i));
+            } else {
+                current.add(i, item.id);
+                updates.add(new Update(Update.INSERT, i, i));
+            }
+        }
+        for (int i = 0; i < newData.size(); i++) {
+            final Item item = newData.get(i);
+            final int oldPosition = oldData.getPosition(item.id);
+            if (oldPosition < 0) {
+                continue;
+            }
+            final Item oldItem = oldData.get(oldPosition);
+            if (oldItem.type != item.type || oldItem.entity != item.entity
+                    || !Objects.equals(oldItem.content, item.content)) {
+                updates.add(new Update(Update.CHANGE, i, i));
+            }
+        }
+        return updates;
+    }
+
+    static void dispatchUpdates(List<Update> updates, RecyclerView.Adapter<?> adapter) {
+        final int N = updates.size();
+        for (int i = 0; i < N; i++) {
+            final Update update = updates.get(i);
+            switch (update.op) {
+                case Update.INSERT:
+                    adapter.notifyItemInserted(update.position);
+                    break;
+                case Update.REMOVE:
+                    adapter.notifyItemRemoved(update.position);
+                    break;
+                case Update.MOVE:
+                    adapter.notifyItemMoved(update.position, update.toPosition);
+                    break;
+                case Update.CHANGE:
+                    adapter.notifyItemChanged(update.position);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Collects the rows of a model. Keys only need to be unique within their namespace,
+     * repeated keys are told apart by their occurrence.
+     */
+    static class Builder {
+        private final ArrayList<Item> mItems = new ArrayList<>();
+        private final ArraySet<Long> mIds = new ArraySet<>();
+
+        Builder add(Object entity, int type, int namespace, String key, Object content) {
+            long id = makeId(namespace, key, 0);
+            for (int occurrence = 1; mIds.contains(id); occurrence++) {
+                id = makeId(namespace, key, occurrence);
+            }
+            mIds.add(id);
+            mItems.add(new Item(entity, type, id, content));
+            return this;
+        }
+
+        DashboardData build() {
+            return new DashboardData(new ArrayList<>(mItems));
+        }
+
+        private static long makeId(int namespace, String key, int occurrence) {
+            final int hash = 31 * String.valueOf(key).hashCode() + occurrence;
+            return ((long) namespace << 32) | (hash & 0xffffffffL);
+        }
+    }
+}
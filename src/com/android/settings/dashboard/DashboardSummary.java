@@ -25,6 +25,7 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.support.v7.widget.GridLayoutManager;
@@ -71,6 +72,9 @@ public class DashboardSummary extends InstrumentedFragment
 
     private static final String SUGGESTIONS = "suggestions";
 
+    /** How long suggestions wait for their checks before being shown anyway. */
+    private static final long SUGGESTION_CHECK_TIMEOUT_MS = 250;
+
     private static final String EXTRA_SCROLL_POSITION = "scroll_position";
     private static final String EXTRA_SUGGESTION_SHOWN_LOGGED = "suggestions_shown_logged";
     private static final String EXTRA_SUGGESTION_HIDDEN_LOGGED = "suggestions_hidden_logged";
@@ -86,6 +90,7 @@ public class DashboardSummary extends InstrumentedFragment
     private SuggestionsChecks mSuggestionsChecks;
     private ArrayList<String> mSuggestionsShownLogged;
     private ArrayList<String> mSuggestionsHiddenLogged;
+    private final Handler mHandler = new Handler();
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -136,6 +141,7 @@ public class DashboardSummary extends InstrumentedFragment
     @Override
     public void onDestroy() {
         mSummaryLoader.release();
+        mHandler.removeCallbacksAndMessages(null);
         super.onDestroy();
     }
 
@@ -144,6 +150,8 @@ public class DashboardSummary extends InstrumentedFragment
         long startTime = System.currentTimeMillis();
         super.onStart();
 
+        // Suggestion state may have been changed while the dashboard was not shown
+        SuggestionsChecks.invalidateUntracked();
         mAdapter.getLte4GEnabler().resume();
         ((SettingsDrawerActivity) getActivity()).addCategoryListener(this);
         mSummaryLoader.setListening(true);
@@ -289,12 +297,14 @@ public class DashboardSummary extends InstrumentedFragment
         protected List<Tile> doInBackground(Void... params) {
             final Context context = getContext();
             List<Tile> suggestions = mSuggestionParser.getSuggestions();
+            List<Tile> completed = mSuggestionsChecks.removeCompleted(suggestions,
+                    SUGGESTION_CHECK_TIMEOUT_MS, mLateCompletionListener);
+            for (int i = 0; i < completed.size(); i++) {
+                mAdapter.disableSuggestion(completed.get(i));
+            }
             for (int i = 0; i < suggestions.size(); i++) {
                 Tile suggestion = suggestions.get(i);
-                if (mSuggestionsChecks.isSuggestionComplete(suggestion)) {
-                    mAdapter.disableSuggestion(suggestion);
-                    suggestions.remove(i--);
-                } else if (context != null) {
+                if (context != null) {
                     String id = DashboardAdapter.getSuggestionIdentifier(context, suggestion);
                     if (!mSuggestionsShownLogged.contains(id)) {
                         mSuggestionsShownLogged.add(id);
@@ -312,12 +322,32 @@ public class DashboardSummary extends InstrumentedFragment
             if (activity == null) {
                 return;
             }
+            // Drop suggestions whose check finished late, but before they were shown
+            for (int i = tiles.size() - 1; i >= 0; i--) {
+                if (SuggestionsChecks.isKnownComplete(tiles.get(i))) {
+                    tiles.remove(i);
+                }
+            }
             List<DashboardCategory> categories =
                     ((SettingsActivity) activity).getDashboardCategories();
             mAdapter.setCategoriesAndSuggestions(categories, tiles);
         }
     }
 
+    private final SuggestionsChecks.LateCompletionListener mLateCompletionListener =
+            new SuggestionsChecks.LateCompletionListener() {
+        @Override
+        public void onSuggestionCompleted(final Tile suggestion) {
+            mAdapter.disableSuggestion(suggestion);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mAdapter.removeSuggestion(suggestion.intent.getComponent());
+                }
+            });
+        }
+    };
+
     private void updateSettings() {
         boolean isPortrait = getResources().getConfiguration().orientation
                 == Configuration.ORIENTATION_PORTRAIT;
@@ -21,13 +21,21 @@ import android.app.IWallpaperManagerCallback;
 import android.app.KeyguardManager;
 import android.app.NotificationManager;
 import android.app.WallpaperManager;
+import android.annotation.WorkerThread;
 import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.fingerprint.FingerprintManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
 
 import com.android.ims.ImsManager;
 import com.android.settings.Settings.FingerprintEnrollSuggestionActivity;
@@ -39,21 +47,181 @@ import com.android.settings.WallpaperSuggestionActivity;
 import com.android.settings.overlay.FeatureFactory;
 import com.android.settingslib.drawer.Tile;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Home of all stupidly dynamic Settings Suggestions checks.
  */
 public class SuggestionsChecks {
+    private static final String TAG = "SuggestionsChecks";
+    private static final boolean DEBUG = false;
+
+    /**
+     * Checks whose inputs all come with a broadcast when they change. Their results are kept
+     * until that broadcast arrives, every other result until the dashboard is shown again.
+     */
+    private static final String[] WALLPAPER_CHECKS = new String[] {
+            WallpaperSuggestionActivity.class.getName(),
+    };
+    private static final String[] DEVICE_POLICY_CHECKS = new String[] {
+            ScreenLockSuggestionActivity.class.getName(),
+            FingerprintEnrollSuggestionActivity.class.getName(),
+    };
+
+    /** Completion state by suggestion class name, shared by every dashboard. */
+    private static final ArrayMap<String, Boolean> sCompleted = new ArrayMap<>();
+    /** Bumped on every invalidation, so that a check racing with it is not kept. */
+    private static int sGeneration;
+    private static boolean sReceiverRegistered;
+
+    /**
+     * Told about suggestions whose check only finished after the deadline.
+     */
+    public interface LateCompletionListener {
+        @WorkerThread
+        void onSuggestionCompleted(Tile suggestion);
+    }
 
     private final Context mContext;
 
     public SuggestionsChecks(Context context) {
         mContext = context.getApplicationContext();
+        synchronized (sCompleted) {
+            if (!sReceiverRegistered) {
+                final IntentFilter filter = new IntentFilter(Intent.ACTION_WALLPAPER_CHANGED);
+                filter.addAction(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED);
+                mContext.registerReceiver(sInvalidationReceiver, filter);
+                sReceiverRegistered = true;
+            }
+        }
+    }
+
+    /**
+     * Forget the results of the checks that have no change broadcast, because the user may
+     * have changed their state while the dashboard was not shown.
+     */
+    public static void invalidateUntracked() {
+        synchronized (sCompleted) {
+            for (int i = sCompleted.size() - 1; i >= 0; i--) {
+                final String className = sCompleted.keyAt(i);
+                if (!contains(WALLPAPER_CHECKS, className)
+                        && !contains(DEVICE_POLICY_CHECKS, className)) {
+                    sCompleted.removeAt(i);
+                }
+            }
+            sGeneration++;
+        }
+    }
+
+    /**
+     * Remove the completed suggestions from {@code suggestions} and return them. Results are
+     * taken from the cache where possible, and the other checks run concurrently. A
+     * suggestion whose check does not finish within {@code timeoutMillis} is kept, and
+     * reported to {@code listener} if its check finds it completed later.
+     */
+    @WorkerThread
+    public List<Tile> removeCompleted(List<Tile> suggestions, long timeoutMillis,
+            final LateCompletionListener listener) {
+        final long startTime = SystemClock.uptimeMillis();
+        final List<Tile> completed = new ArrayList<>();
+        final List<Tile> pending = new ArrayList<>();
+        synchronized (sCompleted) {
+            for (int i = 0; i < suggestions.size(); i++) {
+                final Tile suggestion = suggestions.get(i);
+                final Boolean cached = sCompleted.get(getClassName(suggestion));
+                if (cached == null) {
+                    pending.add(suggestion);
+                } else if (cached) {
+                    completed.add(suggestion);
+                }
+            }
+        }
+
+        final int N = pending.size();
+        final boolean[] results = new boolean[N];
+        final boolean[] reported = new boolean[N];
+        final CountDownLatch latch = new CountDownLatch(N);
+        for (int i = 0; i < N; i++) {
+            final int index = i;
+            final Tile suggestion = pending.get(i);
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean complete = isSuggestionComplete(suggestion);
+                    final boolean late;
+                    synchronized (results) {
+                        results[index] = complete;
+                        late = reported[index];
+                        reported[index] = true;
+                    }
+                    latch.countDown();
+                    if (late && complete && listener != null) {
+                        listener.onSuggestionCompleted(suggestion);
+                    }
+                }
+            });
+        }
+        try {
+            latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int late = 0;
+        synchronized (results) {
+            for (int i = 0; i < N; i++) {
+                if (!reported[i]) {
+                    // Show it for now, the listener hears about it once the check finishes
+                    reported[i] = true;
+                    late++;
+                } else if (results[i]) {
+                    completed.add(pending.get(i));
+                }
+            }
+        }
+        suggestions.removeAll(completed);
+        if (DEBUG) {
+            Log.d(TAG, "checked " + N + " of " + (suggestions.size() + completed.size())
+                    + " suggestions in " + (SystemClock.uptimeMillis() - startTime) + " ms, "
+                    + late + " late");
+        }
+        return completed;
+    }
+
+    /**
+     * Return true if the cached result says the suggestion is complete, without running its
+     * check.
+     */
+    public static boolean isKnownComplete(Tile suggestion) {
+        synchronized (sCompleted) {
+            return Boolean.TRUE.equals(sCompleted.get(getClassName(suggestion)));
+        }
     }
 
     public boolean isSuggestionComplete(Tile suggestion) {
-        String className = suggestion.intent.getComponent().getClassName();
+        final String className = getClassName(suggestion);
+        final int generation;
+        synchronized (sCompleted) {
+            final Boolean cached = sCompleted.get(className);
+            if (cached != null) {
+                return cached;
+            }
+            generation = sGeneration;
+        }
+        final boolean complete = checkSuggestionComplete(className);
+        synchronized (sCompleted) {
+            if (generation == sGeneration) {
+                sCompleted.put(className, complete);
+            }
+        }
+        return complete;
+    }
+
+    private boolean checkSuggestionComplete(String className) {
         if (className.equals(ZenModeAutomationSuggestionActivity.class.getName())) {
             return hasEnabledZenAutoRules();
         } else if (className.equals(WallpaperSuggestionActivity.class.getName())) {
@@ -129,6 +297,40 @@ public class SuggestionsChecks {
         return (dpmFlags & DevicePolicyManager.KEYGUARD_DISABLE_FINGERPRINT) == 0;
     }
 
+    private static String getClassName(Tile suggestion) {
+        return suggestion.intent.getComponent().getClassName();
+    }
+
+    private static boolean contains(String[] classNames, String className) {
+        for (String name : classNames) {
+            if (name.equals(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void invalidate(String[] classNames) {
+        synchronized (sCompleted) {
+            for (String className : classNames) {
+                sCompleted.remove(className);
+            }
+            sGeneration++;
+        }
+    }
+
+    private static final BroadcastReceiver sInvalidationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_WALLPAPER_CHANGED.equals(intent.getAction())) {
+                invalidate(WALLPAPER_CHECKS);
+            } else {
+                // Password and keyguard feature changes
+                invalidate(DEVICE_POLICY_CHECKS);
+            }
+        }
+    };
+
     private final IWallpaperManagerCallback mCallback = new IWallpaperManagerCallback.Stub() {
         @Override
         public void onWallpaperChanged() throws RemoteException {
@@ -17,18 +17,12 @@ package com.android.settings.dashboard.conditional;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PersistableBundle;
+import android.util.ArrayMap;
 import android.util.Log;
-import android.util.Xml;
 
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
-
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -42,23 +36,29 @@ public class ConditionManager {
 
     private static final String PKG = "com.android.settings.dashboard.conditional.";
 
-    private static final String FILE_NAME = "condition_state.xml";
-    private static final String TAG_CONDITIONS = "cs";
-    private static final String TAG_CONDITION = "c";
-    private static final String ATTR_CLASS = "cls";
-
     private static ConditionManager sInstance;
 
     private final Context mContext;
     private final ArrayList<Condition> mConditions;
-    private File mXmlFile;
+    private final ConditionStore mStore;
 
     private final ArrayList<ConditionListener> mListeners = new ArrayList<>();
 
     private ConditionManager(Context context, boolean loadConditionsNow) {
         mContext = context;
         mConditions = new ArrayList<>();
-        if (loadConditionsNow) {
+        mStore = new ConditionStore(context);
+        if (mStore.hasSnapshot()) {
+            // The snapshot is tiny, so the conditions are available right away, and only
+            // refreshing their state is left for later.
+            mConditions.addAll(loadConditions());
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    refreshAll();
+                }
+            });
+        } else if (loadConditionsNow) {
             ConditionLoader loader = new ConditionLoader();
             loader.onPostExecute(loader.doInBackground());
         } else {
@@ -73,66 +73,26 @@ public class ConditionManager {
         }
     }
 
-    private void readFromXml(File xmlFile, ArrayList<Condition> conditions) {
-        if (DEBUG) Log.d(TAG, "Reading from " + xmlFile.toString());
-        try {
-            XmlPullParser parser = Xml.newPullParser();
-            FileReader in = new FileReader(xmlFile);
-            parser.setInput(in);
-            int state = parser.getEventType();
-
-            while (state != XmlPullParser.END_DOCUMENT) {
-                if (TAG_CONDITION.equals(parser.getName())) {
-                    int depth = parser.getDepth();
-                    String clz = parser.getAttributeValue("", ATTR_CLASS);
-                    if (!clz.startsWith(PKG)) {
-                        clz = PKG + clz;
-                    }
-                    Condition condition = createCondition(Class.forName(clz));
-                    PersistableBundle bundle = PersistableBundle.restoreFromXml(parser);
-                    if (DEBUG) Log.d(TAG, "Reading " + clz + " -- " + bundle);
-                    condition.restoreState(bundle);
-                    conditions.add(condition);
-                    while (parser.getDepth() > depth) {
-                        parser.next();
-                    }
-                }
-                state = parser.next();
+    private ArrayList<Condition> loadConditions() {
+        ArrayList<Condition> conditions = new ArrayList<>();
+        ArrayMap<String, PersistableBundle> states = mStore.read();
+        final int N = states.size();
+        for (int i = 0; i < N; i++) {
+            String clz = states.keyAt(i);
+            if (!clz.startsWith(PKG)) {
+                clz = PKG + clz;
             }
-            in.close();
-        } catch (XmlPullParserException | IOException | ClassNotFoundException e) {
-            Log.w(TAG, "Problem reading " + FILE_NAME, e);
-        }
-    }
-
-    private void saveToXml() {
-        if (DEBUG) Log.d(TAG, "Writing to " + mXmlFile.toString());
-        try {
-            XmlSerializer serializer = Xml.newSerializer();
-            FileWriter writer = new FileWriter(mXmlFile);
-            serializer.setOutput(writer);
-
-            serializer.startDocument("UTF-8", true);
-            serializer.startTag("", TAG_CONDITIONS);
-
-            final int N = mConditions.size();
-            for (int i = 0; i < N; i++) {
-                PersistableBundle bundle = new PersistableBundle();
-                if (mConditions.get(i).saveState(bundle)) {
-                    serializer.startTag("", TAG_CONDITION);
-                    final String clz = mConditions.get(i).getClass().getSimpleName();
-                    serializer.attribute("", ATTR_CLASS, clz);
-                    bundle.saveToXml(serializer);
-                    serializer.endTag("", TAG_CONDITION);
-                }
+            try {
+                Condition condition = createCondition(Class.forName(clz));
+                if (DEBUG) Log.d(TAG, "Reading " + clz + " -- " + states.valueAt(i));
+                condition.restoreState(states.valueAt(i));
+                conditions.add(condition);
+            } catch (ClassNotFoundException e) {
+                Log.w(TAG, "Unknown condition " + clz, e);
             }
-
-            serializer.endTag("", TAG_CONDITIONS);
-            serializer.flush();
-            writer.close();
-        } catch (XmlPullParserException | IOException e) {
-            Log.w(TAG, "Problem writing " + FILE_NAME, e);
         }
+        addMissingConditions(conditions);
+        return conditions;
     }
 
     private void addMissingConditions(ArrayList<Condition> conditions) {
@@ -209,7 +169,7 @@ public class ConditionManager {
     }
 
     public void notifyChanged(Condition condition) {
-        saveToXml();
+        mStore.scheduleWrite(mConditions);
         Collections.sort(mConditions, CONDITION_COMPARATOR);
         final int N = mListeners.size();
         for (int i = 0; i < N; i++) {
@@ -229,13 +189,7 @@ public class ConditionManager {
     private class ConditionLoader extends AsyncTask<Void, Void, ArrayList<Condition>> {
         @Override
         protected ArrayList<Condition> doInBackground(Void... params) {
-            ArrayList<Condition> conditions = new ArrayList<>();
-            mXmlFile = new File(mContext.getFilesDir(), FILE_NAME);
-            if (mXmlFile.exists()) {
-                readFromXml(mXmlFile, conditions);
-            }
-            addMissingConditions(conditions);
-            return conditions;
+            return loadConditions();
         }
 
         @Override
@@ -243,6 +197,10 @@ public class ConditionManager {
             mConditions.clear();
             mConditions.addAll(conditions);
             refreshAll();
+            if (!mStore.hasSnapshot()) {
+                // Write one, so that the next process start can take the fast path
+                mStore.scheduleWrite(mConditions);
+            }
         }
     }
 
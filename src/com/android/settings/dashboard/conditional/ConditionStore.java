@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.dashboard.conditional;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.PersistableBundle;
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.Xml;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Persists the saved state of each {@link Condition}. The state is kept in a small binary
+ * file that is cheap enough to read on the main thread, and written behind on a background
+ * thread, so that quick successive changes only cause one write.
+ */
+class ConditionStore {
+    private static final String TAG = "ConditionStore";
+
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "condition_state.bin";
+    /** Format used before the binary one, only read to migrate it. */
+    private static final String LEGACY_FILE_NAME = "condition_state.xml";
+    private static final String TAG_CONDITION = "c";
+    private static final String ATTR_CLASS = "cls";
+
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_BOOLEAN = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_STRING = 3;
+
+    /** Changes within this delay are written together. */
+    private static final long WRITE_DELAY_MS = 200;
+
+    /** Shared by every store, so that creating one does not start a thread each time. */
+    private static HandlerThread sThread;
+
+    private final AtomicFile mFile;
+    private final File mLegacyFile;
+    private final Handler mHandler;
+
+    /** States waiting to be written, by condition class name. Guarded by {@code this}. */
+    private ArrayMap<String, PersistableBundle> mPendingStates;
+
+    ConditionStore(Context context) {
+        this(context.getFilesDir());
+    }
+
+    @VisibleForTesting
+    ConditionStore(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+        mLegacyFile = new File(dir, LEGACY_FILE_NAME);
+        mHandler = new Handler(getLooper());
+    }
+
+    private static synchronized Looper getLooper() {
+        if (sThread == null) {
+            sThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            sThread.start();
+        }
+        return sThread.getLooper();
+    }
+
+    /**
+     * Return true if the binary snapshot exists, which makes {@link #read} cheap. A write that
+     * was interrupted leaves only the backup of the previous snapshot, which
+     * {@link AtomicFile#openRead} restores.
+     */
+    boolean hasSnapshot() {
+        final File baseFile = mFile.getBaseFile();
+        return baseFile.exists() || new File(baseFile.getPath() + ".bak").exists();
+    }
+
+    /**
+     * Read the saved states by condition class name, falling back to the legacy XML file.
+     */
+    ArrayMap<String, PersistableBundle> read() {
+        final ArrayMap<String, PersistableBundle> states = new ArrayMap<>();
+        if (hasSnapshot()) {
+            readSnapshot(states);
+        } else if (mLegacyFile.exists()) {
+            readLegacyXml(states);
+        }
+        return states;
+    }
+
+    /**
+     * Schedule a write of the given conditions. The states are taken right away, the file is
+     * written on the background thread once no further change arrived for a short while.
+     */
+    void scheduleWrite(List<Condition> conditions) {
+        final ArrayMap<String, PersistableBundle> states = new ArrayMap<>();
+        final int N = conditions.size();
+        for (int i = 0; i < N; i++) {
+            PersistableBundle bundle = new PersistableBundle();
+            if (conditions.get(i).saveState(bundle)) {
+                states.put(conditions.get(i).getClass().getSimpleName(), bundle);
+            }
+        }
+        synchronized (this) {
+            mPendingStates = states;
+        }
+        mHandler.removeCallbacks(mWriteRunnable);
+        mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+    }
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayMap<String, PersistableBundle> states;
+            synchronized (ConditionStore.this) {
+                states = mPendingStates;
+                mPendingStates = null;
+            }
+            if (states != null) {
+                write(states);
+            }
+        }
+    };
+
+    @VisibleForTesting
+    void write(ArrayMap<String, PersistableBundle> states) {
+        if (DEBUG) Log.d(TAG, "Writing " + states);
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            final int N = states.size();
+            out.writeInt(N);
+            for (int i = 0; i < N; i++) {
+                out.writeUTF(states.keyAt(i));
+                writeBundle(out, states.valueAt(i));
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (mLegacyFile.exists()) {
+                mLegacyFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Problem writing " + FILE_NAME, e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    private static void writeBundle(DataOutputStream out, PersistableBundle bundle)
+            throws IOException {
+        // Conditions only store primitives, anything else is dropped
+        final ArrayMap<String, Object> values = new ArrayMap<>();
+        for (String key : bundle.keySet()) {
+            final Object value = bundle.get(key);
+            if (value instanceof Boolean || value instanceof Integer || value instanceof Long
+                    || value instanceof String) {
+                values.put(key, value);
+            } else {
+                Log.w(TAG, "Not saving " + key + ", unsupported type");
+            }
+        }
+        final int N = values.size();
+        out.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            out.writeUTF(values.keyAt(i));
+            final Object value = values.valueAt(i);
+            if (value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(TYPE_INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else {
+                out.writeByte(TYPE_STRING);
+                out.writeUTF((String) value);
+            }
+        }
+    }
+
+    private void readSnapshot(ArrayMap<String, PersistableBundle> states) {
+        if (DEBUG) Log.d(TAG, "Reading from " + mFile.getBaseFile());
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                Log.w(TAG, "Unknown version of " + FILE_NAME + ", ignoring it");
+                return;
+            }
+            final int N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                final String clz = in.readUTF();
+                states.put(clz, readBundle(in));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
+        } catch (IOException e) {
+            Log.w(TAG, "Problem reading " + FILE_NAME, e);
+            states.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static PersistableBundle readBundle(DataInputStream in) throws IOException {
+        final PersistableBundle bundle = new PersistableBundle();
+        final int N = in.readInt();
+        for (int i = 0; i < N; i++) {
+            final String key = in.readUTF();
+            final byte type = in.readByte();
+            switch (type) {
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.readBoolean());
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.readLong());
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, in.readUTF());
+                    break;
+                default:
+                    throw new IOException("Unknown type " + type + " for " + key);
+            }
+        }
+        return bundle;
+    }
+
+    private void readLegacyXml(ArrayMap<String, PersistableBundle> states) {
+        if (DEBUG) Log.d(TAG, "Reading from " + mLegacyFile);
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            FileReader in = new FileReader(mLegacyFile);
+            parser.setInput(in);
+            int state = parser.getEventType();
+
+            while (state != XmlPullParser.END_DOCUMENT) {
+                if (TAG_CONDITION.equals(parser.getName())) {
+                    int depth = parser.getDepth();
+                    String clz = parser.getAttributeValue("", ATTR_CLASS);
+                    PersistableBundle bundle = PersistableBundle.restoreFromXml(parser);
+                    states.put(clz, bundle);
+                    while (parser.getDepth() > depth) {
+                        parser.next();
+                    }
+                }
+                state = parser.next();
+            }
+            in.close();
+        } catch (XmlPullParserException | IOException e) {
+            Log.w(TAG, "Problem reading " + LEGACY_FILE_NAME, e);
+        }
+    }
+}
@@ -18,7 +18,6 @@ import android.app.LoaderManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.Loader;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
@@ -49,7 +48,6 @@ import com.android.settings.applications.AppInfoBase;
 import com.android.settingslib.AppItem;
 import com.android.settingslib.Utils;
 import com.android.settingslib.net.ChartData;
-import com.android.settingslib.net.ChartDataLoader;
 import com.android.settingslib.net.UidDetailProvider;
 
 import java.util.concurrent.BlockingQueue;
@@ -165,13 +163,12 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
 
         if (mAppItem.key > 0) {
             if (mPackages.size() != 0) {
-                PackageManager pm = getPackageManager();
-                try {
-                    ApplicationInfo info = pm.getApplicationInfo(mPackages.valueAt(0), 0);
-                    mIcon = info.loadIcon(pm);
-                    mLabel = info.loadLabel(pm);
-                    mPackageName = info.packageName;
-                } catch (PackageManager.NameNotFoundException e) {
+                final AppUsageCache.PackageEntry entry = AppUsageCache.getInstance(getContext())
+                        .getPackage(mPackages.valueAt(0));
+                if (entry != null) {
+                    mIcon = entry.icon;
+                    mLabel = entry.label;
+                    mPackageName = entry.packageName;
                 }
             }
             if (!UserHandle.isApp(mAppItem.key)) {
@@ -258,8 +255,7 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
             mDataSaverBackend.addListener(this);
         }
         mPolicy = services.mPolicyEditor.getPolicy(mTemplate);
-        getLoaderManager().restartLoader(LOADER_CHART_DATA,
-                ChartDataLoader.buildArgs(mTemplate, mAppItem), mChartDataCallbacks);
+        getLoaderManager().restartLoader(LOADER_CHART_DATA, null, mChartDataCallbacks);
         updatePrefs();
     }
 
@@ -338,7 +334,7 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
     }
 
     private void addUid(int uid) {
-        String[] packages = getPackageManager().getPackagesForUid(uid);
+        String[] packages = AppUsageCache.getInstance(getContext()).getPackagesForUid(uid);
         if (packages != null) {
             for (int i = 0; i < packages.length; i++) {
                 mPackages.add(packages[i]);
@@ -453,7 +449,8 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
             new LoaderManager.LoaderCallbacks<ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new CachedChartDataLoader(getActivity(), mStatsSession, mTemplate,
+                    mAppItem);
         }
 
         @Override
@@ -471,18 +468,16 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
     private class AppPrefLoader extends AsyncTask<String, Void, Preference> {
         @Override
         protected Preference doInBackground(String... params) {
-            PackageManager pm = getPackageManager();
-            String pkg = params[0];
-            try {
-                ApplicationInfo info = pm.getApplicationInfo(pkg, 0);
-                Preference preference = new Preference(getPrefContext());
-                preference.setIcon(info.loadIcon(pm));
-                preference.setTitle(info.loadLabel(pm));
-                preference.setSelectable(false);
-                return preference;
-            } catch (PackageManager.NameNotFoundException e) {
+            final AppUsageCache.PackageEntry entry = AppUsageCache.getInstance(getPrefContext())
+                    .getPackage(params[0]);
+            if (entry == null) {
+                return null;
             }
-            return null;
+            Preference preference = new Preference(getPrefContext());
+            preference.setIcon(entry.icon);
+            preference.setTitle(entry.label);
+            preference.setSelectable(false);
+            return preference;
         }
 
         @Override
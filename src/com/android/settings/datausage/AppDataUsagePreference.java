@@ -29,24 +29,38 @@ import static com.android.internal.util.Preconditions.checkNotNull;
 
 public class AppDataUsagePreference extends Preference {
 
-    private final AppItem mItem;
-    private final int mPercent;
+    private AppItem mItem;
+    private int mPercent;
 
     public AppDataUsagePreference(Context context, AppItem item, int percent,
             UidDetailProvider provider) {
         super(context);
-        mItem = item;
-        mPercent = percent;
         setLayoutResource(com.android.settings.R.layout.data_usage_item);
         setWidgetLayoutResource(com.android.settings.R.layout.widget_progress_bar);
+        setItem(item, percent);
+
+        // kick off async load of app details
+        UidDetailTask.bindView(provider, item, this);
+    }
+
+    /**
+     * Rebind this preference to updated usage for the same {@link AppItem#key}, keeping the
+     * already loaded title and icon.
+     */
+    public void setItem(AppItem item, int percent) {
+        final boolean changed = mItem == null || mPercent != percent
+                || mItem.total != item.total || mItem.restricted != item.restricted;
+        mItem = item;
+        mPercent = percent;
+        if (!changed) {
+            return;
+        }
         if (item.restricted && item.total <= 0) {
             setSummary(com.android.settings.R.string.data_usage_app_restricted);
         } else {
-            setSummary(Formatter.formatFileSize(context, item.total));
+            setSummary(Formatter.formatFileSize(getContext(), item.total));
         }
-
-        // kick off async load of app details
-        UidDetailTask.bindView(provider, item, this);
+        notifyChanged();
     }
 
     @Override
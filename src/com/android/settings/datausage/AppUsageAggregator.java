@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.UserInfo;
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.UidDetailProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+/**
+ * Collapses a {@link NetworkStats} summary into the sorted list of {@link AppItem}s shown by
+ * {@link DataUsageList}. User and profile classification is resolved once per
+ * {@link #prepare(Context)} instead of once per stats entry, and the uid-keyed lookup table is
+ * reused across calls.
+ */
+final class AppUsageAggregator {
+    private static final String TAG = "AppUsageAggregator";
+    private static final String DIALER_PACKAGE = "com.android.dialer";
+
+    private int mCurrentUserId;
+    /** User ids that are profiles of the current user. */
+    private final SparseBooleanArray mProfiles = new SparseBooleanArray();
+    /** User ids known to exist on the device, whether or not they are profiles. */
+    private final SparseBooleanArray mExistingUsers = new SparseBooleanArray();
+    /** Uid of the dialer when video call data usage is reported separately, or -1. */
+    private int mVideoCallUid = -1;
+
+    private final SparseArray<AppItem> mKnownItems = new SparseArray<>();
+    private final ArrayList<AppItem> mItems = new ArrayList<>();
+    private long mLargest;
+
+    /**
+     * Resolve user, profile and dialer state. Only needs to be repeated when the set of users
+     * or installed packages may have changed.
+     */
+    public void prepare(Context context) {
+        mCurrentUserId = ActivityManager.getCurrentUser();
+
+        final UserManager userManager = UserManager.get(context);
+        mProfiles.clear();
+        final List<UserHandle> profiles = userManager.getUserProfiles();
+        for (int i = 0; i < profiles.size(); i++) {
+            mProfiles.put(profiles.get(i).getIdentifier(), true);
+        }
+        mExistingUsers.clear();
+        final List<UserInfo> users = userManager.getUsers(false /* excludeDying */);
+        for (int i = 0; i < users.size(); i++) {
+            mExistingUsers.put(users.get(i).id, true);
+        }
+
+        mVideoCallUid = -1;
+        if (context.getResources().getBoolean(
+                com.android.internal.R.bool.config_video_call_datausage_enable)) {
+            try {
+                final ApplicationInfo ai = context.getPackageManager()
+                        .getApplicationInfo(DIALER_PACKAGE, 0);
+                mVideoCallUid = ai.uid;
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.d(TAG, "get dialer getApplicationInfo failed " + e);
+            }
+        }
+    }
+
+    /**
+     * Aggregate the given stats, splicing in restricted state for {@code restrictedUids}.
+     *
+     * @return sorted list of items, valid until the next call.
+     */
+    public List<AppItem> aggregate(NetworkStats stats, int[] restrictedUids) {
+        mKnownItems.clear();
+        mItems.clear();
+        mLargest = 0;
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (mProfiles.get(userId)) {
+                    if (userId != mCurrentUserId) {
+                        // Add to a managed user item.
+                        accumulate(UidDetailProvider.buildKeyForUser(userId), uid, bytes,
+                                AppItem.CATEGORY_USER);
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else if (!mExistingUsers.get(userId)) {
+                    // Removed user, add it to the removed users' key
+                    collapseKey = UID_REMOVED;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    // Add to other user item.
+                    collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                    category = AppItem.CATEGORY_USER;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING || uid == mVideoCallUid) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(collapseKey, uid, bytes, category);
+        }
+
+        final int restrictedUidsMax = restrictedUids.length;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!mProfiles.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = mKnownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                mItems.add(item);
+                mKnownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        Collections.sort(mItems);
+        return mItems;
+    }
+
+    /**
+     * Largest total seen by the last {@link #aggregate} call, used to scale progress bars.
+     */
+    public long getLargest() {
+        return mLargest;
+    }
+
+    private void accumulate(int collapseKey, int uid, long bytes, int itemCategory) {
+        AppItem item = mKnownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = itemCategory;
+            mItems.add(item);
+            mKnownItems.put(item.key, item);
+        }
+        item.addUid(uid);
+        item.total += bytes;
+        mLargest = Math.max(mLargest, item.total);
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
+import android.net.INetworkStatsService;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.net.TrafficStats;
+import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+import com.android.settings.PackageItemInfoCache;
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.ChartData;
+import libcore.util.Objects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+/**
+ * Process-wide cache of per-app {@link ChartData}, keyed by {@link NetworkTemplate} and
+ * {@link AppItem#key}, along with the packages shown for each uid. Shared
+ * by {@link DataUsageList} and {@link AppDataUsage} so that navigating between the list and
+ * several apps does not repeat stats queries and icon loads. Histories are dropped whenever
+ * the stats service reports a new poll.
+ */
+public class AppUsageCache {
+    private static final String TAG = "AppUsageCache";
+    private static final boolean LOGD = Log.isLoggable(TAG, Log.DEBUG);
+
+    /** Broadcast sent by the stats service after each poll. */
+    private static final String ACTION_NETWORK_STATS_UPDATED =
+            "com.android.server.action.NETWORK_STATS_UPDATED";
+    private static final int FIELDS = FIELD_RX_BYTES | FIELD_TX_BYTES;
+
+    private static final int MAX_HISTORIES = 16;
+
+    /** Number of apps from the top of {@link DataUsageList} to load ahead of time. */
+    public static final int PREWARM_COUNT = 5;
+
+    private static AppUsageCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<HistoryKey, ChartData> mHistories = new LruCache<>(MAX_HISTORIES);
+    private final SparseArray<String[]> mPackagesForUid = new SparseArray<>();
+
+    private int mHits;
+    private int mMisses;
+    private boolean mReceiverRegistered;
+
+    /**
+     * Label and icon for a single package.
+     */
+    public static class PackageEntry {
+        public final String packageName;
+        public final CharSequence label;
+        public final Drawable icon;
+
+        PackageEntry(String packageName, CharSequence label, Drawable icon) {
+            this.packageName = packageName;
+            this.label = label;
+            this.icon = icon;
+        }
+    }
+
+    public static synchronized AppUsageCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppUsageCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppUsageCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Return cached {@link ChartData} for the given app, or {@code null}.
+     */
+    public ChartData getHistory(NetworkTemplate template, AppItem app) {
+        final ChartData data;
+        synchronized (this) {
+            data = mHistories.get(new HistoryKey(template, app));
+            if (data != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Return cached {@link ChartData} for the given app, loading and caching it through
+     * {@code session} on a miss. Does not count towards the hit rate, callers are expected
+     * to have tried {@link #getHistory} first. Must not be called on the main thread.
+     */
+    public ChartData getOrLoadHistory(INetworkStatsSession session, NetworkTemplate template,
+            AppItem app) throws RemoteException {
+        ChartData data;
+        synchronized (this) {
+            data = mHistories.get(new HistoryKey(template, app));
+        }
+        if (data == null) {
+            data = loadHistory(session, template, app);
+            synchronized (this) {
+                mHistories.put(new HistoryKey(template, app), data);
+            }
+            ensureReceiverRegistered();
+        }
+        return data;
+    }
+
+    /**
+     * Load histories for the first {@link #PREWARM_COUNT} apps of {@code items} that are not
+     * cached yet, in the background.
+     */
+    public void prewarm(final NetworkTemplate template, List<AppItem> items) {
+        final ArrayList<AppItem> pending = new ArrayList<>(PREWARM_COUNT);
+        synchronized (this) {
+            for (int i = 0; i < items.size() && pending.size() < PREWARM_COUNT; i++) {
+                final AppItem item = items.get(i);
+                if (item.key > 0 && item.category == AppItem.CATEGORY_APP
+                        && mHistories.get(new HistoryKey(template, item)) == null) {
+                    pending.add(item);
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final INetworkStatsService statsService = INetworkStatsService.Stub.asInterface(
+                        ServiceManager.getService(Context.NETWORK_STATS_SERVICE));
+                INetworkStatsSession session = null;
+                // before anything is cached, a failure halfway still leaves some entries
+                ensureReceiverRegistered();
+                try {
+                    session = statsService.openSession();
+                    for (int i = 0; i < pending.size(); i++) {
+                        final AppItem item = pending.get(i);
+                        final ChartData data = loadHistory(session, template, item);
+                        synchronized (AppUsageCache.this) {
+                            mHistories.put(new HistoryKey(template, item), data);
+                        }
+                    }
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failed to prewarm app histories", e);
+                } finally {
+                    TrafficStats.closeQuietly(session);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the packages sharing the given uid, or {@code null}.
+     */
+    public String[] getPackagesForUid(int uid) {
+        synchronized (this) {
+            final int index = mPackagesForUid.indexOfKey(uid);
+            if (index >= 0) {
+                return mPackagesForUid.valueAt(index);
+            }
+        }
+        final String[] packages = mContext.getPackageManager().getPackagesForUid(uid);
+        synchronized (this) {
+            mPackagesForUid.put(uid, packages);
+        }
+        ensureReceiverRegistered();
+        return packages;
+    }
+
+    /**
+     * Return label and icon for the given package, through the shared
+     * {@link PackageItemInfoCache}. Returns {@code null} when the package is not installed.
+     */
+    public PackageEntry getPackage(String packageName) {
+        final PackageManager pm = mContext.getPackageManager();
+        try {
+            final ApplicationInfo info = pm.getApplicationInfo(packageName, 0);
+            final PackageItemInfoCache cache = PackageItemInfoCache.getInstance(mContext);
+            return new PackageEntry(packageName, cache.getLabel(info), cache.getIcon(info));
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drop all cached histories, for example after stats were force-updated.
+     */
+    public synchronized void invalidateHistories() {
+        if (LOGD) {
+            Log.d(TAG, "invalidating " + mHistories.size() + " histories, hit rate "
+                    + getHitRate() + "% (" + mHits + "/" + (mHits + mMisses) + ")");
+        }
+        mHistories.evictAll();
+    }
+
+    /**
+     * Percentage of {@link #getHistory} lookups that were served from the cache.
+     */
+    public synchronized int getHitRate() {
+        final int total = mHits + mMisses;
+        return total != 0 ? mHits * 100 / total : 0;
+    }
+
+    private void ensureReceiverRegistered() {
+        synchronized (this) {
+            if (mReceiverRegistered) {
+                return;
+            }
+            mReceiverRegistered = true;
+        }
+        final IntentFilter filter = new IntentFilter(ACTION_NETWORK_STATS_UPDATED);
+        mContext.registerReceiver(mStatsReceiver, filter);
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, packageFilter);
+    }
+
+    private static ChartData loadHistory(INetworkStatsSession session, NetworkTemplate template,
+            AppItem app) throws RemoteException {
+        final ChartData data = new ChartData();
+        data.network = session.getHistoryForNetwork(template, FIELDS);
+
+        final int size = app.uids.size();
+        for (int i = 0; i < size; i++) {
+            final int uid = app.uids.keyAt(i);
+            data.detailDefault = collectHistoryForUid(session, template, uid, SET_DEFAULT,
+                    data.detailDefault);
+            data.detailForeground = collectHistoryForUid(session, template, uid,
+                    SET_FOREGROUND, data.detailForeground);
+        }
+
+        if (size > 0) {
+            data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
+            data.detail.recordEntireHistory(data.detailDefault);
+            data.detail.recordEntireHistory(data.detailForeground);
+        } else {
+            data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
+            data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
+            data.detail = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        }
+        return data;
+    }
+
+    /**
+     * Collect {@link NetworkStatsHistory} for the requested uid, combining with
+     * an existing {@link NetworkStatsHistory} if provided.
+     */
+    private static NetworkStatsHistory collectHistoryForUid(INetworkStatsSession session,
+            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
+            throws RemoteException {
+        final NetworkStatsHistory history = session.getHistoryForUid(
+                template, uid, set, TAG_NONE, FIELDS);
+
+        if (existing != null) {
+            existing.recordEntireHistory(history);
+            return existing;
+        } else {
+            return history;
+        }
+    }
+
+    private final BroadcastReceiver mStatsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateHistories();
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            synchronized (AppUsageCache.this) {
+                mPackagesForUid.clear();
+            }
+        }
+    };
+
+    /**
+     * Identifies a history by template, app key and the uids it was collected for, since
+     * collapsed keys like the system or per-user ones cover different uids from one cycle to
+     * the next.
+     */
+    private static class HistoryKey {
+        final NetworkTemplate template;
+        final int key;
+        final int[] uids;
+
+        HistoryKey(NetworkTemplate template, AppItem app) {
+            this.template = template;
+            this.key = app.key;
+            // SparseBooleanArray keeps its keys sorted
+            uids = new int[app.uids.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = app.uids.keyAt(i);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof HistoryKey) {
+                final HistoryKey another = (HistoryKey) o;
+                return key == another.key && Objects.equal(template, another.template)
+                        && Arrays.equals(uids, another.uids);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Objects.hashCode(template) + key) + Arrays.hashCode(uids);
+        }
+    }
+}
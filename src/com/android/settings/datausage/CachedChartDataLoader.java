@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.net.INetworkStatsSession;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.ChartData;
+
+/**
+ * Loader for per-app {@link ChartData} that is served from {@link AppUsageCache} when
+ * available, and populates it otherwise.
+ */
+public class CachedChartDataLoader extends AsyncTaskLoader<ChartData> {
+    private final INetworkStatsSession mSession;
+    private final NetworkTemplate mTemplate;
+    private final AppItem mApp;
+
+    public CachedChartDataLoader(Context context, INetworkStatsSession session,
+            NetworkTemplate template, AppItem app) {
+        super(context);
+        mSession = session;
+        mTemplate = template;
+        mApp = app;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        final ChartData cached = AppUsageCache.getInstance(getContext())
+                .getHistory(mTemplate, mApp);
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public ChartData loadInBackground() {
+        try {
+            return AppUsageCache.getInstance(getContext())
+                    .getOrLoadHistory(mSession, mTemplate, mApp);
+        } catch (RemoteException e) {
+            throw new RuntimeException("problem reading network stats", e);
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+    }
+}
@@ -16,7 +16,6 @@ package com.android.settings.datausage;
 import android.content.Context;
 import android.net.NetworkPolicy;
 import android.net.NetworkStatsHistory;
-import android.text.format.DateUtils;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import com.android.settings.R;
@@ -24,13 +23,13 @@ import com.android.settings.Utils;
 import com.android.settingslib.net.ChartData;
 import libcore.util.Objects;
 
-import static android.net.NetworkPolicyManager.computeLastCycleBoundary;
-import static android.net.NetworkPolicyManager.computeNextCycleBoundary;
+import java.util.List;
 
 public class CycleAdapter extends ArrayAdapter<CycleAdapter.CycleItem> {
 
     private final SpinnerInterface mSpinner;
     private final AdapterView.OnItemSelectedListener mListener;
+    private final CycleIndex mCycleIndex = new CycleIndex();
 
     public CycleAdapter(Context context, SpinnerInterface spinner,
             AdapterView.OnItemSelectedListener listener, boolean isHeader) {
@@ -43,6 +42,13 @@ public class CycleAdapter extends ArrayAdapter<CycleAdapter.CycleItem> {
         mSpinner.setOnItemSelectedListener(mListener);
     }
 
+    /**
+     * Index backing the current cycle list, also holding per-cycle totals and summaries.
+     */
+    public CycleIndex getCycleIndex() {
+        return mCycleIndex;
+    }
+
     /**
      * Find position of {@link CycleItem} in this adapter which is nearest
      * the given {@link CycleItem}.
@@ -63,7 +69,8 @@ public class CycleAdapter extends ArrayAdapter<CycleAdapter.CycleItem> {
     /**
      * Rebuild list based on {@link NetworkPolicy#cycleDay}
      * and available {@link NetworkStatsHistory} data. Always selects the newest
-     * item, updating the inspection range on chartData.
+     * item, updating the inspection range on chartData. Cycle boundaries are only
+     * recomputed when the history or policy cycle changed, see {@link CycleIndex}.
      */
      public boolean updateCycleList(NetworkPolicy policy, ChartData chartData) {
         // stash away currently selected cycle to try restoring below
@@ -72,63 +79,11 @@ public class CycleAdapter extends ArrayAdapter<CycleAdapter.CycleItem> {
         clear();
 
         final Context context = getContext();
-        NetworkStatsHistory.Entry entry = null;
-
-        long historyStart = Long.MAX_VALUE;
-        long historyEnd = Long.MIN_VALUE;
-        if (chartData != null) {
-            historyStart = chartData.network.getStart();
-            historyEnd = chartData.network.getEnd();
-        }
-
-        final long now = System.currentTimeMillis();
-        if (historyStart == Long.MAX_VALUE) historyStart = now;
-        if (historyEnd == Long.MIN_VALUE) historyEnd = now + 1;
-
-        boolean hasCycles = false;
-        if (policy != null) {
-            // find the next cycle boundary
-            long cycleEnd = computeNextCycleBoundary(historyEnd, policy);
-
-            // walk backwards, generating all valid cycle ranges
-            while (cycleEnd > historyStart) {
-                final long cycleStart = computeLastCycleBoundary(cycleEnd, policy);
-
-                final boolean includeCycle;
-                if (chartData != null) {
-                    entry = chartData.network.getValues(cycleStart, cycleEnd, entry);
-                    includeCycle = (entry.rxBytes + entry.txBytes) > 0;
-                } else {
-                    includeCycle = true;
-                }
-
-                if (includeCycle) {
-                    add(new CycleAdapter.CycleItem(context, cycleStart, cycleEnd));
-                    hasCycles = true;
-                }
-                cycleEnd = cycleStart;
-            }
-        }
-
-        if (!hasCycles) {
-            // no policy defined cycles; show entry for each four-week period
-            long cycleEnd = historyEnd;
-            while (cycleEnd > historyStart) {
-                final long cycleStart = cycleEnd - (DateUtils.WEEK_IN_MILLIS * 4);
-
-                final boolean includeCycle;
-                if (chartData != null) {
-                    entry = chartData.network.getValues(cycleStart, cycleEnd, entry);
-                    includeCycle = (entry.rxBytes + entry.txBytes) > 0;
-                } else {
-                    includeCycle = true;
-                }
-
-                if (includeCycle) {
-                    add(new CycleAdapter.CycleItem(context, cycleStart, cycleEnd));
-                }
-                cycleEnd = cycleStart;
-            }
+        mCycleIndex.update(policy, chartData != null ? chartData.network : null);
+        final List<CycleIndex.Cycle> cycles = mCycleIndex.getCycles();
+        for (int i = 0; i < cycles.size(); i++) {
+            final CycleIndex.Cycle cycle = cycles.get(i);
+            add(new CycleAdapter.CycleItem(context, cycle.start, cycle.end));
         }
 
         // force pick the current cycle (first item)
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.net.NetworkPolicy;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.text.format.DateUtils;
+import android.util.LruCache;
+import libcore.util.Objects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.net.NetworkPolicyManager.computeLastCycleBoundary;
+import static android.net.NetworkPolicyManager.computeNextCycleBoundary;
+
+/**
+ * Index of usage cycles for a single {@link android.net.NetworkTemplate}. Cycle boundaries and
+ * per-cycle totals are computed once per loaded {@link NetworkStatsHistory}, and per-uid
+ * summaries loaded for a cycle are kept in a small LRU so that switching back to a
+ * recently viewed cycle does not need another stats query.
+ */
+public class CycleIndex {
+    private static final int MAX_CACHED_SUMMARIES = 6;
+
+    /**
+     * A single cycle in the index, newest first.
+     */
+    public static class Cycle {
+        public final long start;
+        public final long end;
+        public final long totalBytes;
+
+        Cycle(long start, long end, long totalBytes) {
+            this.start = start;
+            this.end = end;
+            this.totalBytes = totalBytes;
+        }
+    }
+
+    private final ArrayList<Cycle> mCycles = new ArrayList<>();
+    private final LruCache<Range, NetworkStats> mSummaries =
+            new LruCache<>(MAX_CACHED_SUMMARIES);
+
+    private NetworkStatsHistory mHistory;
+    private int mCycleDay = -1;
+    private String mCycleTimezone;
+    private boolean mPolicyDefined;
+
+    /**
+     * Rebuild the cycle list if the history or the policy cycle changed since the last call.
+     *
+     * @return true if the index was rebuilt.
+     */
+    public boolean update(NetworkPolicy policy, NetworkStatsHistory history) {
+        final boolean policyDefined = policy != null;
+        final int cycleDay = policyDefined ? policy.cycleDay : -1;
+        final String cycleTimezone = policyDefined ? policy.cycleTimezone : null;
+        if (history != null && history == mHistory && policyDefined == mPolicyDefined
+                && cycleDay == mCycleDay && Objects.equal(cycleTimezone, mCycleTimezone)) {
+            return false;
+        }
+        if (history != mHistory) {
+            // summaries were computed against the old history
+            mSummaries.evictAll();
+        }
+        mHistory = history;
+        mPolicyDefined = policyDefined;
+        mCycleDay = cycleDay;
+        mCycleTimezone = cycleTimezone;
+        rebuild(policy);
+        return true;
+    }
+
+    /**
+     * Cycles with usage, newest first. When no cycles are known from history, every candidate
+     * cycle is returned.
+     */
+    public List<Cycle> getCycles() {
+        return mCycles;
+    }
+
+    /**
+     * Total bytes for the given range, served from the index when the range matches a cycle.
+     */
+    public long getTotalBytes(long start, long end, long now) {
+        for (int i = 0; i < mCycles.size(); i++) {
+            final Cycle cycle = mCycles.get(i);
+            if (cycle.start == start && cycle.end == end) {
+                return cycle.totalBytes;
+            }
+        }
+        if (mHistory == null) {
+            return 0;
+        }
+        final NetworkStatsHistory.Entry entry = mHistory.getValues(start, end, now, null);
+        return entry.rxBytes + entry.txBytes;
+    }
+
+    /**
+     * Return the per-uid summary previously stored for this range, or {@code null}.
+     */
+    public NetworkStats getSummary(long start, long end) {
+        return mSummaries.get(new Range(start, end));
+    }
+
+    public void putSummary(long start, long end, NetworkStats summary) {
+        if (summary != null) {
+            mSummaries.put(new Range(start, end), summary);
+        }
+    }
+
+    /**
+     * Drop cached summaries, for example after stats were force-updated.
+     */
+    public void invalidateSummaries() {
+        mSummaries.evictAll();
+    }
+
+    private void rebuild(NetworkPolicy policy) {
+        mCycles.clear();
+
+        long historyStart = Long.MAX_VALUE;
+        long historyEnd = Long.MIN_VALUE;
+        if (mHistory != null) {
+            historyStart = mHistory.getStart();
+            historyEnd = mHistory.getEnd();
+        }
+
+        final long now = System.currentTimeMillis();
+        if (historyStart == Long.MAX_VALUE) historyStart = now;
+        if (historyEnd == Long.MIN_VALUE) historyEnd = now + 1;
+
+        NetworkStatsHistory.Entry entry = null;
+        if (policy != null) {
+            // walk backwards from the next cycle boundary, generating all valid cycle ranges
+            long cycleEnd = computeNextCycleBoundary(historyEnd, policy);
+            while (cycleEnd > historyStart) {
+                final long cycleStart = computeLastCycleBoundary(cycleEnd, policy);
+                entry = addCycle(cycleStart, cycleEnd, entry);
+                cycleEnd = cycleStart;
+            }
+        }
+
+        if (mCycles.isEmpty()) {
+            // no policy defined cycles; show entry for each four-week period
+            long cycleEnd = historyEnd;
+            while (cycleEnd > historyStart) {
+                final long cycleStart = cycleEnd - (DateUtils.WEEK_IN_MILLIS * 4);
+                entry = addCycle(cycleStart, cycleEnd, entry);
+                cycleEnd = cycleStart;
+            }
+        }
+    }
+
+    private NetworkStatsHistory.Entry addCycle(long start, long end,
+            NetworkStatsHistory.Entry recycle) {
+        long total = 0;
+        boolean include = true;
+        if (mHistory != null) {
+            recycle = mHistory.getValues(start, end, recycle);
+            total = recycle.rxBytes + recycle.txBytes;
+            include = total > 0;
+        }
+        if (include) {
+            mCycles.add(new Cycle(start, end, total));
+        }
+        return recycle;
+    }
+
+    private static class Range {
+        final long start;
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Range) {
+                final Range another = (Range) o;
+                return start == another.start && end == another.end;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(start) + Long.hashCode(end);
+        }
+    }
+}
@@ -14,13 +14,9 @@
 
 package com.android.settings.datausage;
 
-import android.app.ActivityManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
 import android.content.Loader;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.UserInfo;
 import android.graphics.Color;
 import android.net.ConnectivityManager;
 import android.net.INetworkStatsSession;
@@ -29,18 +25,14 @@ import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.os.SystemProperties;
-import android.os.UserHandle;
-import android.os.UserManager;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceGroup;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
-import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
@@ -58,8 +50,6 @@ import com.android.settingslib.net.ChartDataLoader;
 import com.android.settingslib.net.SummaryForAllUidLoader;
 import com.android.settingslib.net.UidDetailProvider;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -67,8 +57,6 @@ import java.util.Map;
 
 import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static com.android.settings.datausage.DataUsageSummary.TEST_RADIOS;
 import static com.android.settings.datausage.DataUsageSummary.TEST_RADIOS_PROP;
@@ -110,7 +98,18 @@ public class DataUsageList extends DataUsageBase {
     private static long mSelectLeft;
     private static long mSelectRight;
 
+    /** Range requested from the last {@link SummaryForAllUidLoader} restart. */
+    private long mSummaryStart;
+    private long mSummaryEnd;
+    // Bumped for every inspected range, summaries loaded for an older one are only cached
+    private int mSummaryGeneration;
+    private int mSummaryLoaderGeneration;
+
     private UidDetailProvider mUidDetailProvider;
+    private StatsRefresher mStatsRefresher;
+    private final AppUsageAggregator mAggregator = new AppUsageAggregator();
+    /** Currently shown app preferences, keyed by {@link AppItem#key}. */
+    private SparseArray<AppDataUsagePreference> mAppPreferences = new SparseArray<>();
 
     /**
      * Local cache of data enabled for subId, used to work around delays.
@@ -145,6 +144,18 @@ public class DataUsageList extends DataUsageBase {
         }
 
         mUidDetailProvider = new UidDetailProvider(context);
+        // loaders may deliver before the first onResume, e.g. after a configuration change
+        mAggregator.prepare(context);
+        mStatsRefresher = new StatsRefresher(services.mStatsService,
+                new StatsRefresher.Listener() {
+            @Override
+            public void onStatsRefreshed() {
+                if (isAdded()) {
+                    AppUsageCache.getInstance(getContext()).invalidateHistories();
+                    updateBody();
+                }
+            }
+        });
 
         addPreferencesFromResource(R.xml.data_usage_list);
         mUsageAmount = findPreference(KEY_USAGE_AMOUNT);
@@ -210,29 +221,18 @@ public class DataUsageList extends DataUsageBase {
     public void onResume() {
         super.onResume();
 
+        // users and profiles may have changed while paused
+        mAggregator.prepare(getContext());
         updateBody();
 
-        // kick off background task to update stats
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    // wait a few seconds before kicking off
-                    Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
-                    services.mStatsService.forceUpdate();
-                } catch (InterruptedException e) {
-                } catch (RemoteException e) {
-                }
-                return null;
-            }
+        // reload as soon as the stats service finishes polling
+        mStatsRefresher.refresh();
+    }
 
-            @Override
-            protected void onPostExecute(Void result) {
-                if (isAdded()) {
-                    updateBody();
-                }
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    @Override
+    public void onPause() {
+        super.onPause();
+        mStatsRefresher.cancel();
     }
 
     @Override
@@ -369,17 +369,29 @@ public class DataUsageList extends DataUsageBase {
         final long now = System.currentTimeMillis();
 
         final Context context = getActivity();
-
-        NetworkStatsHistory.Entry entry = null;
-        if (mChartData != null) {
-            entry = mChartData.network.getValues(start, end, now, null);
+        final CycleIndex cycleIndex = mCycleAdapter.getCycleIndex();
+
+        final NetworkStats cachedSummary = cycleIndex.getSummary(start, end);
+        mSummaryGeneration++;
+        if (cachedSummary != null) {
+            // recently inspected range, bind straight from memory. A load still running for
+            // another range is left alone, destroying it would reset and clear the list.
+            final Loader<NetworkStats> loader = getLoaderManager().getLoader(LOADER_SUMMARY);
+            if (loader != null) {
+                loader.cancelLoad();
+            }
+            bindSummary(cachedSummary);
+        } else {
+            // kick off loader for detailed stats
+            mSummaryStart = start;
+            mSummaryEnd = end;
+            mSummaryLoaderGeneration = mSummaryGeneration;
+            getLoaderManager().restartLoader(LOADER_SUMMARY,
+                    SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
         }
 
-        // kick off loader for detailed stats
-        getLoaderManager().restartLoader(LOADER_SUMMARY,
-                SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
-
-        final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
+        final long totalBytes = mChartData != null
+                ? cycleIndex.getTotalBytes(start, end, now) : 0;
         final String totalPhrase = Formatter.formatFileSize(context, totalBytes);
         mUsageAmount.setTitle(getString(R.string.data_used_template, totalPhrase));
 
@@ -391,109 +403,54 @@ public class DataUsageList extends DataUsageBase {
     }
 
     /**
-     * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+     * Bind the given {@link NetworkStats}, or {@code null} to clear list. Existing
+     * {@link AppDataUsagePreference}s are rebound in place and only added or removed when
+     * their {@link AppItem#key} appears or disappears.
      */
     public void bindStats(NetworkStats stats, int[] restrictedUids) {
-        ArrayList<AppItem> items = new ArrayList<>();
-        long largest = 0;
-
-        final int currentUserId = ActivityManager.getCurrentUser();
-        UserManager userManager = UserManager.get(getContext());
-        final List<UserHandle> profiles = userManager.getUserProfiles();
-        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-        PackageManager pm = getContext().getPackageManager();
-        ApplicationInfo ai = null;
-        try{
-            ai = pm.getApplicationInfo("com.android.dialer", PackageManager.GET_ACTIVITIES);
-         } catch(Exception e) {
-           Log.d(TAG, "get dialer getApplicationInfo failed " + e);
-        }
-
-        NetworkStats.Entry entry = null;
-        final int size = stats != null ? stats.size() : 0;
-        for (int i = 0; i < size; i++) {
-            entry = stats.getValues(i, entry);
-
-            // Decide how to collapse items together
-            final int uid = entry.uid;
-
-            final int collapseKey;
-            final int category;
-            final int userId = UserHandle.getUserId(uid);
-            if (UserHandle.isApp(uid)) {
-                if (profiles.contains(new UserHandle(userId))) {
-                    if (userId != currentUserId) {
-                        // Add to a managed user item.
-                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                        largest = accumulate(managedKey, knownItems, entry, AppItem.CATEGORY_USER,
-                                items, largest);
-                    }
-                    // Add to app item.
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    // If it is a removed user add it to the removed users' key
-                    final UserInfo info = userManager.getUserInfo(userId);
-                    if (info == null) {
-                        collapseKey = UID_REMOVED;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // Add to other user item.
-                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                        category = AppItem.CATEGORY_USER;
-                    }
-                }
-            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                collapseKey = uid;
-                category = AppItem.CATEGORY_APP;
-            } else if ((ai != null) && (uid == ai.uid) && getContext().getResources().getBoolean(
-                    com.android.internal.R.bool.config_video_call_datausage_enable)){
-                collapseKey = uid;
-                category = AppItem.CATEGORY_APP;
+        final List<AppItem> items = mAggregator.aggregate(stats, restrictedUids);
+        final long largest = mAggregator.getLargest();
+        // load detail history for the heaviest apps while the user looks at the list
+        AppUsageCache.getInstance(getContext()).prewarm(mTemplate, items);
+
+        final SparseArray<AppDataUsagePreference> previous = mAppPreferences;
+        final SparseArray<AppDataUsagePreference> current =
+                new SparseArray<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            final AppItem item = items.get(i);
+            final int percentTotal = largest != 0 ? (int) (item.total * 100 / largest) : 0;
+            AppDataUsagePreference preference = previous.get(item.key);
+            if (preference != null) {
+                previous.remove(item.key);
+                preference.setItem(item, percentTotal);
+                preference.setOrder(i);
             } else {
-                collapseKey = android.os.Process.SYSTEM_UID;
-                category = AppItem.CATEGORY_APP;
+                preference = new AppDataUsagePreference(getContext(), item, percentTotal,
+                        mUidDetailProvider);
+                preference.setOnPreferenceClickListener(mAppClickListener);
+                preference.setOrder(i);
+                mApps.addPreference(preference);
             }
-            largest = accumulate(collapseKey, knownItems, entry, category, items, largest);
+            current.put(item.key, preference);
         }
 
-        final int restrictedUidsMax = restrictedUids.length;
-        for (int i = 0; i < restrictedUidsMax; ++i) {
-            final int uid = restrictedUids[i];
-            // Only splice in restricted state for current user or managed users
-            if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                continue;
-            }
-
-            AppItem item = knownItems.get(uid);
-            if (item == null) {
-                item = new AppItem(uid);
-                item.total = -1;
-                items.add(item);
-                knownItems.put(item.key, item);
-            }
-            item.restricted = true;
+        // whatever is left over no longer has any usage in this range
+        for (int i = 0; i < previous.size(); i++) {
+            mApps.removePreference(previous.valueAt(i));
         }
+        mAppPreferences = current;
+    }
 
-        Collections.sort(items);
-        mApps.removeAll();
-        for (int i = 0; i < items.size(); i++) {
-            final int percentTotal = largest != 0 ? (int) (items.get(i).total * 100 / largest) : 0;
-            AppDataUsagePreference preference = new AppDataUsagePreference(getContext(),
-                    items.get(i), percentTotal, mUidDetailProvider);
-            preference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
-                @Override
-                public boolean onPreferenceClick(Preference preference) {
-                    AppDataUsagePreference pref = (AppDataUsagePreference) preference;
-                    AppItem item = pref.getItem();
-                    startAppDataUsage(item);
-                    return true;
-                }
-            });
-            mApps.addPreference(preference);
+    private final Preference.OnPreferenceClickListener mAppClickListener =
+            new Preference.OnPreferenceClickListener() {
+        @Override
+        public boolean onPreferenceClick(Preference preference) {
+            AppDataUsagePreference pref = (AppDataUsagePreference) preference;
+            AppItem item = pref.getItem();
+            startAppDataUsage(item);
+            return true;
         }
-    }
+    };
 
     private void startAppDataUsage(AppItem item) {
         Bundle args = new Bundle();
@@ -502,29 +459,6 @@ public class DataUsageList extends DataUsageBase {
         startFragment(this, AppDataUsage.class.getName(), R.string.app_data_usage, 0, args);
     }
 
-    /**
-     * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-     * Creates the item if needed.
-     * @param collapseKey the collapse key used to map the item.
-     * @param knownItems collection of known (already existing) items.
-     * @param entry the network stats entry to extract data usage from.
-     * @param itemCategory the item is categorized on the list view by this category. Must be
-     */
-    private static long accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-            NetworkStats.Entry entry, int itemCategory, ArrayList<AppItem> items, long largest) {
-        final int uid = entry.uid;
-        AppItem item = knownItems.get(collapseKey);
-        if (item == null) {
-            item = new AppItem(collapseKey);
-            item.category = itemCategory;
-            items.add(item);
-            knownItems.put(item.key, item);
-        }
-        item.addUid(uid);
-        item.total += entry.rxBytes + entry.txBytes;
-        return Math.max(largest, item.total);
-    }
-
     /**
      * Test if device has a mobile data radio with SIM in ready state.
      */
@@ -651,10 +585,10 @@ public class DataUsageList extends DataUsageBase {
 
         @Override
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = services.mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            bindStats(data, restrictedUids);
-            updateEmptyVisible();
+            mCycleAdapter.getCycleIndex().putSummary(mSummaryStart, mSummaryEnd, data);
+            if (mSummaryLoaderGeneration == mSummaryGeneration) {
+                bindSummary(data);
+            }
         }
 
         @Override
@@ -662,21 +596,28 @@ public class DataUsageList extends DataUsageBase {
             bindStats(null, new int[0]);
             updateEmptyVisible();
         }
+    };
 
-        private void updateEmptyVisible() {
-            if ((mApps.getPreferenceCount() != 0) !=
-                    (getPreferenceScreen().getPreferenceCount() != 0)) {
-                // We still show chart if mShowDataUsage is enabled, then we can adjust left and
-                // right sweep
-                if (mApps.getPreferenceCount() != 0 || mShowDataUsage) {
-                    getPreferenceScreen().addPreference(mUsageAmount);
-                    getPreferenceScreen().addPreference(mApps);
-                } else {
-                    getPreferenceScreen().removeAll();
-                }
+    private void bindSummary(NetworkStats data) {
+        final int[] restrictedUids = services.mPolicyManager.getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        bindStats(data, restrictedUids);
+        updateEmptyVisible();
+    }
+
+    private void updateEmptyVisible() {
+        if ((mApps.getPreferenceCount() != 0) !=
+                (getPreferenceScreen().getPreferenceCount() != 0)) {
+            // We still show chart if mShowDataUsage is enabled, then we can adjust left and
+            // right sweep
+            if (mApps.getPreferenceCount() != 0 || mShowDataUsage) {
+                getPreferenceScreen().addPreference(mUsageAmount);
+                getPreferenceScreen().addPreference(mApps);
+            } else {
+                getPreferenceScreen().removeAll();
             }
         }
-    };
+    }
 
     private DataUsageChartListener mChartListener = new DataUsageChartListener() {
         @Override
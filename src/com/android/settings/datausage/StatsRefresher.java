@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.net.INetworkStatsService;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Asks {@link INetworkStatsService} to poll and notifies the listener as soon as the poll
+ * completes, or after {@link #TIMEOUT_MS} if it takes longer. Refreshes requested within
+ * {@link #COALESCE_WINDOW_MS} of the last completed poll are served without polling again,
+ * and concurrent requests share a single in-flight poll.
+ */
+public class StatsRefresher {
+    private static final String TAG = "StatsRefresher";
+
+    private static final long TIMEOUT_MS = 4 * DateUtils.SECOND_IN_MILLIS;
+    private static final long COALESCE_WINDOW_MS = 10 * DateUtils.SECOND_IN_MILLIS;
+
+    /** Polls are serialized on their own thread instead of the shared AsyncTask pool. */
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor();
+
+    private static final Object sLock = new Object();
+    private static long sLastUpdateElapsed;
+    private static boolean sUpdating;
+    /** Refreshers waiting for the poll in flight, each is notified once it completes. */
+    private static final ArrayList<StatsRefresher> sWaiting = new ArrayList<>();
+
+    public interface Listener {
+        void onStatsRefreshed();
+    }
+
+    private final INetworkStatsService mStatsService;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mPending;
+
+    public StatsRefresher(INetworkStatsService statsService, Listener listener) {
+        mStatsService = statsService;
+        mListener = listener;
+    }
+
+    /**
+     * Request fresh stats. The listener is called at most twice: once when the timeout
+     * fallback fires, and again if the poll completes afterwards.
+     */
+    public void refresh() {
+        synchronized (sLock) {
+            if (sLastUpdateElapsed != 0
+                    && SystemClock.elapsedRealtime() - sLastUpdateElapsed < COALESCE_WINDOW_MS) {
+                // stats were just polled, caller already reloaded what is there
+                return;
+            }
+            mPending = true;
+            if (!sWaiting.contains(this)) {
+                sWaiting.add(this);
+            }
+            mHandler.removeCallbacks(mTimeout);
+            mHandler.postDelayed(mTimeout, TIMEOUT_MS);
+            if (sUpdating) {
+                return;
+            }
+            sUpdating = true;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mStatsService.forceUpdate();
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failed to force stats update", e);
+                }
+                final StatsRefresher[] waiting;
+                synchronized (sLock) {
+                    sUpdating = false;
+                    sLastUpdateElapsed = SystemClock.elapsedRealtime();
+                    waiting = sWaiting.toArray(new StatsRefresher[sWaiting.size()]);
+                    sWaiting.clear();
+                }
+                for (StatsRefresher refresher : waiting) {
+                    refresher.mHandler.post(refresher.mCompleted);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop delivering results, typically from {@code onPause}.
+     */
+    public void cancel() {
+        synchronized (sLock) {
+            sWaiting.remove(this);
+        }
+        mPending = false;
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mCompleted);
+    }
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mPending) {
+                Log.w(TAG, "Stats update still running after " + TIMEOUT_MS + "ms");
+                mListener.onStatsRefreshed();
+            }
+        }
+    };
+
+    private final Runnable mCompleted = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(mTimeout);
+            mPending = false;
+            mListener.onStatsRefreshed();
+        }
+    };
+}
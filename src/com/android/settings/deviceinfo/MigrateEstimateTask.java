@@ -20,25 +20,50 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.pm.UserInfo;
 import android.net.TrafficStats;
 import android.os.AsyncTask;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
+import android.os.UserManager;
 import android.os.storage.StorageManager;
 import android.os.storage.VolumeInfo;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.telecom.Log;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 
 import com.android.internal.app.IMediaContainerService;
+import com.android.settingslib.deviceinfo.StorageMeasurement.MeasurementDetails;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.android.settings.deviceinfo.StorageSettings.TAG;
 
-public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> implements
+/**
+ * Estimates how much shared storage a primary storage migration needs to copy. The emulated
+ * volume is walked in parallel with a {@link ForkJoinPool}, publishing running totals while
+ * it goes; a fresh {@link StorageSizeCache} entry is used instead of walking when available,
+ * and {@code DefaultContainerService} remains the fallback when the tree is not readable from
+ * this process.
+ */
+public abstract class MigrateEstimateTask extends AsyncTask<Void, Long, Long> implements
         ServiceConnection {
     private static final String EXTRA_SIZE_BYTES = "size_bytes";
 
@@ -50,6 +75,9 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
      */
     private static final long SPEED_ESTIMATE_BPS = 10 * TrafficStats.MB_IN_BYTES;
 
+    /** How often partial totals are published while walking. */
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
     private final Context mContext;
     private final StorageManager mStorage;
 
@@ -58,6 +86,10 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
 
     private long mSizeBytes = -1;
 
+    private final AtomicLong mWalkedBytes = new AtomicLong();
+    private final AtomicLong mWalkedFiles = new AtomicLong();
+    private ForkJoinPool mPool;
+
     public MigrateEstimateTask(Context context) {
         mContext = context;
         mStorage = context.getSystemService(StorageManager.class);
@@ -71,6 +103,17 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
         intent.putExtra(EXTRA_SIZE_BYTES, mSizeBytes);
     }
 
+    /**
+     * Stop walking the tree, typically when the hosting activity goes away.
+     */
+    public void stop() {
+        cancel(false);
+        final ForkJoinPool pool = mPool;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
     @Override
     protected Long doInBackground(Void... params) {
         if (mSizeBytes != -1) {
@@ -85,7 +128,80 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
             return -1L;
         }
 
-        final String path = emulatedVol.getPath().getAbsolutePath();
+        final long cachedBytes = getCachedSize(privateVol, emulatedVol);
+        if (cachedBytes >= 0) {
+            Log.d(TAG, "Using recent measurement for " + privateVol.getId());
+            return cachedBytes;
+        }
+
+        final File root = emulatedVol.getPath();
+        if (root.list() != null) {
+            Log.d(TAG, "Walking current path " + root);
+            return walk(root);
+        }
+
+        return measureWithContainerService(root.getAbsolutePath());
+    }
+
+    /**
+     * Total size of the users' shared storage from a still valid {@link StorageSizeCache} entry, or -1.
+     */
+    private long getCachedSize(VolumeInfo privateVol, VolumeInfo emulatedVol) {
+        final List<UserInfo> users = mContext.getSystemService(UserManager.class).getUsers();
+        final List<Integer> userIds = new ArrayList<>(users.size());
+        for (UserInfo user : users) {
+            userIds.add(user.id);
+        }
+        final StorageSizeCache cache = new StorageSizeCache(mContext);
+        final MeasurementDetails details = cache.load(privateVol, userIds);
+        if (details == null || !cache.isFresh(privateVol, emulatedVol, userIds)) {
+            return -1;
+        }
+        // usersSize is the whole per-user tree the walk would cover, misc and media only
+        // being parts of it
+        long total = 0;
+        for (int userId : userIds) {
+            final long userSize = details.usersSize.get(userId);
+            if (userSize <= 0) {
+                // not measured for this user, walk instead of underestimating
+                return -1;
+            }
+            total += userSize;
+        }
+        return total;
+    }
+
+    private long walk(File root) {
+        final long startMillis = SystemClock.elapsedRealtime();
+        mPool = new ForkJoinPool();
+        final ForkJoinTask<Long> task = mPool.submit(new DirectorySizeTask(root));
+        try {
+            while (!task.isDone()) {
+                try {
+                    task.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    final long elapsed = SystemClock.elapsedRealtime() - startMillis;
+                    final long filesPerSecond = elapsed > 0
+                            ? mWalkedFiles.get() * DateUtils.SECOND_IN_MILLIS / elapsed : 0;
+                    publishProgress(mWalkedBytes.get(), filesPerSecond);
+                }
+                if (isCancelled()) {
+                    return -1L;
+                }
+            }
+            Log.d(TAG, "Walked " + mWalkedFiles.get() + " files in "
+                    + (SystemClock.elapsedRealtime() - startMillis) + "ms");
+            return task.get();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            Log.w(TAG, "Failed to walk " + root);
+            return -1L;
+        } finally {
+            mPool.shutdownNow();
+            mPool = null;
+        }
+    }
+
+    private long measureWithContainerService(String path) {
         Log.d(TAG, "Estimating for current path " + path);
 
         final Intent intent = new Intent().setComponent(DEFAULT_CONTAINER_COMPONENT);
@@ -104,15 +220,30 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
         return -1L;
     }
 
+    @Override
+    protected void onProgressUpdate(Long... values) {
+        final long bytes = values[0];
+        final String size = Formatter.formatFileSize(mContext, bytes);
+        onProgress(size, formatTime(bytes), values[1]);
+    }
+
     @Override
     protected void onPostExecute(Long result) {
         mSizeBytes = result;
-        long timeMillis = (mSizeBytes * DateUtils.SECOND_IN_MILLIS) / SPEED_ESTIMATE_BPS;
+        final String size = Formatter.formatFileSize(mContext, mSizeBytes);
+        onPostExecute(size, formatTime(mSizeBytes));
+    }
+
+    private static String formatTime(long sizeBytes) {
+        long timeMillis = (sizeBytes * DateUtils.SECOND_IN_MILLIS) / SPEED_ESTIMATE_BPS;
         timeMillis = Math.max(timeMillis, DateUtils.SECOND_IN_MILLIS);
+        return DateUtils.formatDuration(timeMillis).toString();
+    }
 
-        final String size = Formatter.formatFileSize(mContext, mSizeBytes);
-        final String time = DateUtils.formatDuration(timeMillis).toString();
-        onPostExecute(size, time);
+    /**
+     * Called with running totals while the tree is still being walked.
+     */
+    public void onProgress(String size, String time, long filesPerSecond) {
     }
 
     public abstract void onPostExecute(String size, String time);
@@ -128,4 +259,48 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
         // Ignored; we leave service in place for the background thread to
         // run into DeadObjectException
     }
+
+    /**
+     * Sums regular file sizes below a directory, forking a subtask per child directory.
+     * Symbolic links are not followed.
+     */
+    private class DirectorySizeTask extends RecursiveTask<Long> {
+        private final File mDir;
+
+        DirectorySizeTask(File dir) {
+            mDir = dir;
+        }
+
+        @Override
+        protected Long compute() {
+            final String[] names = mDir.list();
+            if (names == null || MigrateEstimateTask.this.isCancelled()) {
+                return 0L;
+            }
+            long total = 0;
+            final ArrayList<DirectorySizeTask> children = new ArrayList<>();
+            for (String name : names) {
+                final File file = new File(mDir, name);
+                final StructStat stat;
+                try {
+                    stat = Os.lstat(file.getPath());
+                } catch (ErrnoException e) {
+                    continue;
+                }
+                if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    final DirectorySizeTask child = new DirectorySizeTask(file);
+                    child.fork();
+                    children.add(child);
+                } else if (OsConstants.S_ISREG(stat.st_mode)) {
+                    total += stat.st_size;
+                    mWalkedBytes.addAndGet(stat.st_size);
+                    mWalkedFiles.incrementAndGet();
+                }
+            }
+            for (int i = 0; i < children.size(); i++) {
+                total += children.get(i).join();
+            }
+            return total;
+        }
+    }
 }
@@ -28,6 +28,7 @@ import android.content.pm.IPackageDataObserver;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.UserHandle;
@@ -67,6 +68,7 @@ import com.android.settingslib.deviceinfo.StorageMeasurement.MeasurementReceiver
 import com.google.android.collect.Lists;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
@@ -123,6 +125,8 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
     private long mSystemSize;
 
     private StorageMeasurement mMeasure;
+    private StorageSizeCache mSizeCache;
+    private FreshnessCheckTask mFreshnessCheck;
 
     private UserInfo mCurrentUser;
 
@@ -179,6 +183,7 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
 
         mMeasure = new StorageMeasurement(context, mVolume, mSharedVolume);
         mMeasure.setReceiver(mReceiver);
+        mSizeCache = new StorageSizeCache(context);
 
         if (!isVolumeValid()) {
             getActivity().finish();
@@ -204,6 +209,15 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
     }
 
     private void update() {
+        update(true);
+    }
+
+    /**
+     * Rebuild the screen. Sizes persisted by {@link StorageSizeCache} are shown right away;
+     * unless {@code forceMeasure} is set, a new measurement is only started once a background
+     * check found the cache stale for this volume.
+     */
+    private void update(boolean forceMeasure) {
         if (!isVolumeValid()) {
             getActivity().finish();
             return;
@@ -232,6 +246,11 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
         mItemPoolIndex = 0;
         mHeaderPoolIndex = 0;
 
+        final List<Integer> userIds = new ArrayList<>(userCount);
+        for (int userIndex = 0; userIndex < userCount; ++userIndex) {
+            userIds.add(allUsers.get(userIndex).id);
+        }
+
         int addedUserCount = 0;
         // Add current user and its profiles first
         for (int userIndex = 0; userIndex < userCount; ++userIndex) {
@@ -274,7 +293,21 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
                 Formatter.formatFileSize(context, mTotalSize)));
         mSummary.setPercent((int) ((usedBytes * 100) / mTotalSize));
 
-        mMeasure.forceMeasure();
+        // show last known sizes while measuring, instead of starting from zero
+        final MeasurementDetails cached = mSizeCache.load(mVolume, userIds);
+        if (cached != null) {
+            updateDetails(cached);
+        }
+        if (mFreshnessCheck != null) {
+            mFreshnessCheck.cancel(false);
+            mFreshnessCheck = null;
+        }
+        if (forceMeasure || cached == null) {
+            mMeasure.forceMeasure();
+        } else {
+            mFreshnessCheck = new FreshnessCheckTask(mVolume, mSharedVolume, userIds);
+            mFreshnessCheck.execute();
+        }
         mNeedsUpdate = false;
     }
 
@@ -367,7 +400,7 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
         mStorageManager.registerListener(mStorageListener);
 
         if (mNeedsUpdate) {
-            update();
+            update(false);
         } else {
             setTitle();
         }
@@ -382,6 +415,9 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mFreshnessCheck != null) {
+            mFreshnessCheck.cancel(false);
+        }
         if (mMeasure != null) {
             mMeasure.onDestroy();
         }
@@ -567,11 +603,51 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
 
     private final MeasurementReceiver mReceiver = new MeasurementReceiver() {
         @Override
-        public void onDetailsChanged(MeasurementDetails details) {
+        public void onDetailsChanged(final MeasurementDetails details) {
+            final VolumeInfo volume = mVolume;
+            final VolumeInfo sharedVolume = mSharedVolume;
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSizeCache.save(volume, sharedVolume, details);
+                }
+            });
             updateDetails(details);
         }
     };
 
+    /**
+     * Checks whether the sizes shown from {@link StorageSizeCache} still hold, and measures
+     * again if they don't. The check reads free space and directory times, so it runs in
+     * the background.
+     */
+    private class FreshnessCheckTask extends AsyncTask<Void, Void, Boolean> {
+        private final VolumeInfo mCheckedVolume;
+        private final VolumeInfo mCheckedSharedVolume;
+        private final List<Integer> mUserIds;
+
+        FreshnessCheckTask(VolumeInfo volume, VolumeInfo sharedVolume, List<Integer> userIds) {
+            mCheckedVolume = volume;
+            mCheckedSharedVolume = sharedVolume;
+            mUserIds = userIds;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            return mSizeCache.isFresh(mCheckedVolume, mCheckedSharedVolume, mUserIds);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean fresh) {
+            if (mFreshnessCheck == this) {
+                mFreshnessCheck = null;
+            }
+            if (!fresh) {
+                mMeasure.forceMeasure();
+            }
+        }
+    }
+
     private void updateDetails(MeasurementDetails details) {
         StorageItemPreference otherItem = null;
         long accountedSize = 0;
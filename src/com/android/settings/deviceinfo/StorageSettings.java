@@ -56,7 +56,6 @@ import com.android.settings.search.Indexable;
 import com.android.settings.search.SearchIndexableRaw;
 import com.android.settingslib.RestrictedLockUtils;
 import com.android.settingslib.deviceinfo.PrivateStorageInfo;
-import com.android.settingslib.deviceinfo.StorageManagerVolumeProvider;
 import com.android.settingslib.drawer.SettingsDrawerActivity;
 
 import java.io.File;
@@ -507,7 +506,8 @@ public class StorageSettings extends SettingsPreferenceFragment implements Index
         }
     }
 
-    private static class SummaryProvider implements SummaryLoader.SummaryProvider {
+    private static class SummaryProvider implements SummaryLoader.SummaryProvider,
+            StorageUsageMonitor.Listener {
         private final Context mContext;
         private final SummaryLoader mLoader;
 
@@ -518,20 +518,22 @@ public class StorageSettings extends SettingsPreferenceFragment implements Index
 
         @Override
         public void setListening(boolean listening) {
+            final StorageUsageMonitor monitor = StorageUsageMonitor.getInstance(mContext);
             if (listening) {
-                updateSummary();
+                // show the last snapshot right away, the monitor pushes any change
+                final CharSequence summary = monitor.getSummary();
+                if (summary != null) {
+                    mLoader.setSummary(this, summary);
+                }
+                monitor.addListener(this);
+            } else {
+                monitor.removeListener(this);
             }
         }
 
-        private void updateSummary() {
-            // TODO: Register listener.
-            final StorageManager storageManager = mContext.getSystemService(StorageManager.class);
-            PrivateStorageInfo info = PrivateStorageInfo.getPrivateStorageInfo(
-                    new StorageManagerVolumeProvider(storageManager));
-            long privateUsedBytes = info.totalBytes - info.freeBytes;
-            mLoader.setSummary(this, mContext.getString(R.string.storage_summary,
-                    Formatter.formatFileSize(mContext, privateUsedBytes),
-                    Formatter.formatFileSize(mContext, info.totalBytes)));
+        @Override
+        public void onStorageSummaryChanged(CharSequence summary) {
+            mLoader.setSummary(this, summary);
         }
     }
 
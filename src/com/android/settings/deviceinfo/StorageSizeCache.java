@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.annotation.WorkerThread;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.os.storage.VolumeInfo;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import com.android.settingslib.deviceinfo.StorageMeasurement.MeasurementDetails;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Persisted copy of the last {@link MeasurementDetails} for each private volume, so that
+ * {@link PrivateVolumeSettings} can show sizes immediately instead of starting from
+ * "Calculating..." on every visit.
+ *
+ * <p>Each entry records a fingerprint made of the volume free space and the modification
+ * time of every measured media directory and of their direct subdirectories, per user. A new
+ * measurement is only needed once that fingerprint changes or the entry is older than
+ * {@link #MAX_AGE_MILLIS}. The fingerprint is a heuristic: directory times only change for
+ * entries added or removed directly inside them, so changes deeper in the tree, or files
+ * growing in place, are only noticed through {@link #FREE_SPACE_SLOP} or the age limit.
+ * Computing it touches the disk, so {@link #isFresh} and {@link #save} must not be called on
+ * the main thread.
+ */
+public class StorageSizeCache {
+    private static final String TAG = "StorageSizeCache";
+    private static final boolean LOGV = false;
+
+    private static final String PREFS_NAME = "storage_size_cache";
+
+    private static final long MAX_AGE_MILLIS = DateUtils.HOUR_IN_MILLIS * 6;
+    /** Free space drift below this is considered noise from logs and caches. */
+    private static final long FREE_SPACE_SLOP = 8 * 1024 * 1024;
+
+    /** Media directories measured by {@code StorageMeasurement}, per user. */
+    static final String[] MEDIA_DIRS = new String[] {
+            Environment.DIRECTORY_DCIM,
+            Environment.DIRECTORY_MOVIES,
+            Environment.DIRECTORY_PICTURES,
+            Environment.DIRECTORY_MUSIC,
+            Environment.DIRECTORY_ALARMS,
+            Environment.DIRECTORY_NOTIFICATIONS,
+            Environment.DIRECTORY_RINGTONES,
+            Environment.DIRECTORY_PODCASTS,
+            Environment.DIRECTORY_DOWNLOADS,
+            Environment.DIRECTORY_ANDROID,
+    };
+
+    private static final String KEY_TIME = "time";
+    private static final String KEY_FREE = "free";
+    private static final String KEY_AVAIL = "avail";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_CACHE = "cache";
+    private static final String KEY_APPS = "apps";
+    private static final String KEY_MISC = "misc";
+    private static final String KEY_USER = "user";
+    private static final String KEY_MEDIA = "media";
+    private static final String KEY_MTIME = "mtime";
+
+    private final SharedPreferences mPrefs;
+
+    public StorageSizeCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Return the last persisted details for the volume, or {@code null} if none.
+     */
+    public MeasurementDetails load(VolumeInfo volume, List<Integer> userIds) {
+        final String prefix = prefix(volume);
+        if (!mPrefs.contains(prefix + KEY_TIME)) {
+            return null;
+        }
+        final MeasurementDetails details = new MeasurementDetails();
+        details.totalSize = mPrefs.getLong(prefix + KEY_TOTAL, 0);
+        details.availSize = mPrefs.getLong(prefix + KEY_AVAIL, 0);
+        details.cacheSize = mPrefs.getLong(prefix + KEY_CACHE, 0);
+        for (int userId : userIds) {
+            final String userPrefix = prefix + userId + '/';
+            details.appsSize.put(userId, mPrefs.getLong(userPrefix + KEY_APPS, 0));
+            details.miscSize.put(userId, mPrefs.getLong(userPrefix + KEY_MISC, 0));
+            details.usersSize.put(userId, mPrefs.getLong(userPrefix + KEY_USER, 0));
+            final HashMap<String, Long> media = new HashMap<>();
+            for (String dir : MEDIA_DIRS) {
+                media.put(dir, mPrefs.getLong(userPrefix + KEY_MEDIA + '/' + dir, 0));
+            }
+            details.mediaSize.put(userId, media);
+        }
+        return details;
+    }
+
+    /**
+     * Test if the persisted details still describe the volume: nothing in the measured
+     * directories was modified and free space has not moved since they were saved.
+     */
+    @WorkerThread
+    public boolean isFresh(VolumeInfo volume, VolumeInfo sharedVolume, List<Integer> userIds) {
+        final String prefix = prefix(volume);
+        final long time = mPrefs.getLong(prefix + KEY_TIME, 0);
+        if (System.currentTimeMillis() - time > MAX_AGE_MILLIS) {
+            if (LOGV) Log.v(TAG, "Stale by age: " + prefix);
+            return false;
+        }
+        final long free = volume.getPath().getFreeSpace();
+        if (Math.abs(free - mPrefs.getLong(prefix + KEY_FREE, -1)) > FREE_SPACE_SLOP) {
+            if (LOGV) Log.v(TAG, "Stale by free space: " + prefix);
+            return false;
+        }
+        for (int userId : userIds) {
+            if (!mPrefs.contains(prefix + userId + '/' + KEY_APPS)) {
+                // user added since last measurement
+                return false;
+            }
+            final long mtime = mediaModifiedTime(sharedVolume, userId);
+            if (mtime != mPrefs.getLong(prefix + userId + '/' + KEY_MTIME, -1)) {
+                if (LOGV) Log.v(TAG, "Stale by media mtime: " + prefix + userId);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Persist freshly measured details for the volume along with its current fingerprint.
+     */
+    @WorkerThread
+    public void save(VolumeInfo volume, VolumeInfo sharedVolume, MeasurementDetails details) {
+        final String prefix = prefix(volume);
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        editor.putLong(prefix + KEY_TIME, System.currentTimeMillis());
+        editor.putLong(prefix + KEY_FREE, volume.getPath().getFreeSpace());
+        editor.putLong(prefix + KEY_TOTAL, details.totalSize);
+        editor.putLong(prefix + KEY_AVAIL, details.availSize);
+        editor.putLong(prefix + KEY_CACHE, details.cacheSize);
+        putUsers(editor, prefix, KEY_APPS, details.appsSize);
+        putUsers(editor, prefix, KEY_MISC, details.miscSize);
+        putUsers(editor, prefix, KEY_USER, details.usersSize);
+        final SparseArray<HashMap<String, Long>> mediaSize = details.mediaSize;
+        for (int i = 0; i < mediaSize.size(); i++) {
+            final int userId = mediaSize.keyAt(i);
+            final String userPrefix = prefix + userId + '/';
+            for (HashMap.Entry<String, Long> entry : mediaSize.valueAt(i).entrySet()) {
+                editor.putLong(userPrefix + KEY_MEDIA + '/' + entry.getKey(), entry.getValue());
+            }
+            editor.putLong(userPrefix + KEY_MTIME, mediaModifiedTime(sharedVolume, userId));
+        }
+        editor.apply();
+    }
+
+    private static void putUsers(SharedPreferences.Editor editor, String prefix, String key,
+            SparseLongArray values) {
+        for (int i = 0; i < values.size(); i++) {
+            editor.putLong(prefix + values.keyAt(i) + '/' + key, values.valueAt(i));
+        }
+    }
+
+    /**
+     * Latest modification time across the media directories of the given user and their
+     * direct subdirectories, such as {@code DCIM/Camera}. Directory times change whenever an
+     * entry is added, removed or renamed directly inside them.
+     */
+    private static long mediaModifiedTime(VolumeInfo sharedVolume, int userId) {
+        if (sharedVolume == null || !sharedVolume.isMountedReadable()) {
+            return 0;
+        }
+        final File root = sharedVolume.getPathForUser(userId);
+        if (root == null) {
+            return 0;
+        }
+        long mtime = root.lastModified();
+        for (String dir : MEDIA_DIRS) {
+            final File mediaDir = new File(root, dir);
+            mtime = Math.max(mtime, mediaDir.lastModified());
+            final File[] children = mediaDir.listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    mtime = Math.max(mtime, child.lastModified());
+                }
+            }
+        }
+        return mtime;
+    }
+
+    private static String prefix(VolumeInfo volume) {
+        return volume.getId() + '/';
+    }
+}
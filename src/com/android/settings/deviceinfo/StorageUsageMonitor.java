@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.storage.StorageEventListener;
+import android.os.storage.StorageManager;
+import android.os.storage.VolumeInfo;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+
+import com.android.settings.R;
+import com.android.settingslib.deviceinfo.PrivateStorageInfo;
+import com.android.settingslib.deviceinfo.StorageManagerVolumeProvider;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Keeps a snapshot of private storage usage and its formatted dashboard summary. The
+ * snapshot is refreshed in the background when a volume changes state and on a slow timer
+ * while anyone is listening, and listeners are only called when the formatted summary
+ * actually changes.
+ */
+public class StorageUsageMonitor {
+    private static final long REFRESH_INTERVAL_MILLIS = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final int MSG_REFRESH = 1;
+
+    private static StorageUsageMonitor sInstance;
+
+    public interface Listener {
+        void onStorageSummaryChanged(CharSequence summary);
+    }
+
+    private final Context mContext;
+    private final StorageManager mStorageManager;
+    private final Handler mHandler;
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    private volatile CharSequence mSummary;
+    private volatile long mTotalBytes;
+    private volatile long mFreeBytes;
+
+    public static synchronized StorageUsageMonitor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StorageUsageMonitor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StorageUsageMonitor(Context context) {
+        mContext = context;
+        mStorageManager = context.getSystemService(StorageManager.class);
+        final HandlerThread thread = new HandlerThread("StorageUsageMonitor",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new RefreshHandler(thread.getLooper());
+    }
+
+    /**
+     * Last computed summary, or {@code null} if usage was never measured.
+     */
+    public CharSequence getSummary() {
+        return mSummary;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    /**
+     * Start receiving summary changes. A refresh is scheduled right away so that a
+     * listener attaching after a long pause gets current numbers.
+     */
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            if (mListeners.contains(listener)) {
+                return;
+            }
+            mListeners.add(listener);
+            if (mListeners.size() == 1) {
+                mStorageManager.registerListener(mStorageListener);
+            }
+        }
+        refresh();
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.remove(listener)) {
+                return;
+            }
+            if (mListeners.isEmpty()) {
+                mStorageManager.unregisterListener(mStorageListener);
+                mHandler.removeMessages(MSG_REFRESH);
+            }
+        }
+    }
+
+    private void refresh() {
+        mHandler.removeMessages(MSG_REFRESH);
+        mHandler.sendEmptyMessage(MSG_REFRESH);
+    }
+
+    private void refreshW() {
+        final PrivateStorageInfo info = PrivateStorageInfo.getPrivateStorageInfo(
+                new StorageManagerVolumeProvider(mStorageManager));
+        mTotalBytes = info.totalBytes;
+        mFreeBytes = info.freeBytes;
+        final long privateUsedBytes = info.totalBytes - info.freeBytes;
+        final CharSequence summary = mContext.getString(R.string.storage_summary,
+                Formatter.formatFileSize(mContext, privateUsedBytes),
+                Formatter.formatFileSize(mContext, info.totalBytes));
+
+        final boolean changed = !Objects.equals(summary, mSummary);
+        mSummary = summary;
+
+        final Listener[] listeners;
+        synchronized (mListeners) {
+            if (mListeners.isEmpty()) {
+                return;
+            }
+            mHandler.sendEmptyMessageDelayed(MSG_REFRESH, REFRESH_INTERVAL_MILLIS);
+            if (!changed) {
+                return;
+            }
+            listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        }
+        for (Listener listener : listeners) {
+            listener.onStorageSummaryChanged(summary);
+        }
+    }
+
+    private final StorageEventListener mStorageListener = new StorageEventListener() {
+        @Override
+        public void onVolumeStateChanged(VolumeInfo vol, int oldState, int newState) {
+            if (vol.getType() == VolumeInfo.TYPE_PRIVATE) {
+                refresh();
+            }
+        }
+    };
+
+    private class RefreshHandler extends Handler {
+        RefreshHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_REFRESH:
+                    refreshW();
+                    break;
+            }
+        }
+    }
+}
@@ -19,12 +19,15 @@ package com.android.settings.deviceinfo;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.storage.DiskInfo;
+import android.util.Log;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.RadioButton;
 
 import com.android.settings.R;
 
+import static com.android.settings.deviceinfo.StorageSettings.TAG;
+
 public class StorageWizardMigrate extends StorageWizardBase {
     private MigrateEstimateTask mEstimate;
 
@@ -53,6 +56,14 @@ public class StorageWizardMigrate extends StorageWizardBase {
         getNextButton().setEnabled(false);
 
         mEstimate = new MigrateEstimateTask(this) {
+            @Override
+            public void onProgress(String size, String time, long filesPerSecond) {
+                // still walking, show what has been counted so far
+                Log.d(TAG, "Counted " + size + " so far at " + filesPerSecond + " files/s");
+                setBodyText(R.string.storage_wizard_migrate_body,
+                        mDisk.getDescription(), time, size);
+            }
+
             @Override
             public void onPostExecute(String size, String time) {
                 setBodyText(R.string.storage_wizard_migrate_body,
@@ -78,6 +89,14 @@ public class StorageWizardMigrate extends StorageWizardBase {
         }
     };
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mEstimate != null) {
+            mEstimate.stop();
+        }
+    }
+
     @Override
     public void onNavigateNext() {
         if (mRadioNow.isChecked()) {
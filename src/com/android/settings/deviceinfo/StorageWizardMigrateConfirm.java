@@ -60,6 +60,14 @@ public class StorageWizardMigrateConfirm extends StorageWizardBase {
         setSecondaryBodyText(R.string.storage_wizard_migrate_details, targetDescrip);
 
         mEstimate = new MigrateEstimateTask(this) {
+            @Override
+            public void onProgress(String size, String time, long filesPerSecond) {
+                // still walking, show what has been counted so far
+                Log.d(TAG, "Counted " + size + " so far at " + filesPerSecond + " files/s");
+                setBodyText(R.string.storage_wizard_migrate_confirm_body, time, size,
+                        sourceDescrip);
+            }
+
             @Override
             public void onPostExecute(String size, String time) {
                 setBodyText(R.string.storage_wizard_migrate_confirm_body, time, size,
@@ -73,6 +81,14 @@ public class StorageWizardMigrateConfirm extends StorageWizardBase {
         getNextButton().setText(R.string.storage_wizard_migrate_confirm_next);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mEstimate != null) {
+            mEstimate.stop();
+        }
+    }
+
     @Override
     public void onNavigateNext() {
         int moveId;
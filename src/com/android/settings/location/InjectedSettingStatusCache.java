@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.location;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the last status reported by each {@link android.location.SettingInjectorService}
+ * and how long it took to report it, so that the Location screen can show the last known
+ * status right away and give slow services a longer timeout.
+ */
+class InjectedSettingStatusCache {
+    private static final String PREFS_NAME = "injected_setting_status";
+
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_LATENCY = "latency";
+
+    /** Weight of the newest sample in the latency average, in percent. */
+    private static final int LATENCY_WEIGHT = 25;
+
+    private final SharedPreferences mPrefs;
+
+    InjectedSettingStatusCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    boolean hasStatus(InjectedSetting setting) {
+        return mPrefs.contains(key(setting, KEY_ENABLED));
+    }
+
+    boolean isEnabled(InjectedSetting setting) {
+        return mPrefs.getBoolean(key(setting, KEY_ENABLED), true);
+    }
+
+    /**
+     * Average time the service took to report its status, or 0 if it never did.
+     */
+    long getLatencyMillis(InjectedSetting setting) {
+        return mPrefs.getLong(key(setting, KEY_LATENCY), 0);
+    }
+
+    void putStatus(InjectedSetting setting, boolean enabled, long latencyMillis) {
+        final long average = getLatencyMillis(setting);
+        final long latency = average == 0 ? latencyMillis
+                : (average * (100 - LATENCY_WEIGHT) + latencyMillis * LATENCY_WEIGHT) / 100;
+        mPrefs.edit()
+                .putBoolean(key(setting, KEY_ENABLED), enabled)
+                .putLong(key(setting, KEY_LATENCY), latency)
+                .apply();
+    }
+
+    private static String key(InjectedSetting setting, String name) {
+        return setting.packageName + '/' + setting.className + '/'
+                + setting.mUserHandle.getIdentifier() + '/' + name;
+    }
+}
@@ -68,9 +68,11 @@ class SettingsInjector {
 
     /**
      * If reading the status of a setting takes longer than this, we go ahead and start reading
-     * the next setting.
+     * the next setting. Services known to be slower get twice their average latency, up to
+     * {@link #MAX_INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS}.
      */
     private static final long INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS = 1000;
+    private static final long MAX_INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS = 4000;
 
     /**
      * {@link Message#what} value for starting to load status values
@@ -97,10 +99,46 @@ class SettingsInjector {
 
     private final Handler mHandler;
 
+    private final InjectedSettingStatusCache mStatusCache;
+
+    /**
+     * Number of {@link SettingInjectorService}s that may be loading their status at once.
+     */
+    private int mMaxConcurrentLoads;
+
     public SettingsInjector(Context context) {
         mContext = context;
         mSettings = new HashSet<Setting>();
         mHandler = new StatusLoadingHandler();
+        mStatusCache = new InjectedSettingStatusCache(context);
+        mMaxConcurrentLoads = getDefaultMaxConcurrentLoads(context);
+    }
+
+    /**
+     * Each load starts a service in another process, so devices with less memory per app
+     * load fewer statuses in parallel.
+     */
+    private static int getDefaultMaxConcurrentLoads(Context context) {
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am.isLowRamDevice()) {
+            return 1;
+        }
+        final int memoryClass = am.getMemoryClass();
+        if (memoryClass >= 256) {
+            return 4;
+        } else if (memoryClass >= 128) {
+            return 3;
+        }
+        return 2;
+    }
+
+    /**
+     * Overrides the number of statuses loaded in parallel, which defaults to a value derived
+     * from the memory class of the device.
+     */
+    public void setMaxConcurrentLoads(int maxConcurrentLoads) {
+        mMaxConcurrentLoads = Math.max(1, maxConcurrentLoads);
     }
 
     /**
@@ -282,6 +320,10 @@ class SettingsInjector {
         pref.setTitle(info.title);
         pref.setSummary(null);
         pref.setIcon(icon);
+        if (mStatusCache.hasStatus(info)) {
+            // Show the last known status until the service reports the current one
+            pref.setEnabled(mStatusCache.isEnabled(info));
+        }
         pref.setOnPreferenceClickListener(new ServiceSettingClickedListener(info));
 
         prefs.add(pref);
@@ -320,9 +362,9 @@ class SettingsInjector {
     }
 
     /**
-     * Loads the setting status values one at a time. Each load starts a subclass of {@link
-     * SettingInjectorService}, so to reduce memory pressure we don't want to load too many at
-     * once.
+     * Loads the setting status values, up to {@link #mMaxConcurrentLoads} at a time. Each load
+     * starts a subclass of {@link SettingInjectorService}, so to reduce memory pressure we
+     * don't want to load too many at once.
      */
     private final class StatusLoadingHandler extends Handler {
 
@@ -332,15 +374,15 @@ class SettingsInjector {
         private Set<Setting> mSettingsToLoad = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded now and haven't timed out. In practice this should have
-         * zero or one elements.
+         * Settings that are being loaded now and haven't timed out. Holds at most
+         * {@link #mMaxConcurrentLoads} elements.
          */
         private Set<Setting> mSettingsBeingLoaded = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded but have timed out. If only one setting has timed out, we
-         * will go ahead and start loading the next setting so that one slow load won't delay the
-         * load of the other settings.
+         * Settings that are being loaded but have timed out. While fewer than
+         * {@link #mMaxConcurrentLoads} settings have timed out, we go ahead and start loading
+         * the next settings so that slow loads won't delay the load of the other settings.
          */
         private Set<Setting> mTimedOutSettings = new HashSet<Setting>();
 
@@ -379,11 +421,11 @@ class SettingsInjector {
 
             // Decide whether to load additional settings based on the new state. Start by seeing
             // if we have headroom to load another setting.
-            if (mSettingsBeingLoaded.size() > 0 || mTimedOutSettings.size() > 1) {
+            if (mSettingsBeingLoaded.size() >= mMaxConcurrentLoads
+                    || mTimedOutSettings.size() > mMaxConcurrentLoads) {
                 // Don't load any more settings until one of the pending settings has completed.
-                // To reduce memory pressure, we want to be loading at most one setting (plus at
-                // most one timed-out setting) at a time. This means we'll be responsible for
-                // bringing in at most two services.
+                // To reduce memory pressure, we want to be loading at most mMaxConcurrentLoads
+                // settings (plus as many timed-out settings) at a time.
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     Log.v(TAG, "too many services already live for " + msg + ", " + this);
                 }
@@ -400,7 +442,7 @@ class SettingsInjector {
                 mReloadRequested = false;
             }
 
-            // Remove the next setting to load from the queue, if any
+            // Start loading as many queued settings as there is headroom for
             Iterator<Setting> iter = mSettingsToLoad.iterator();
             if (!iter.hasNext()) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -408,21 +450,23 @@ class SettingsInjector {
                 }
                 return;
             }
-            Setting setting = iter.next();
-            iter.remove();
-
-            // Request the status value
-            setting.startService();
-            mSettingsBeingLoaded.add(setting);
-
-            // Ensure that if receiving the status value takes too long, we start loading the
-            // next value anyway
-            Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
-            sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
-
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "handleMessage end " + msg + ", " + this
-                        + ", started loading " + setting);
+            while (iter.hasNext() && mSettingsBeingLoaded.size() < mMaxConcurrentLoads) {
+                Setting setting = iter.next();
+                iter.remove();
+
+                // Request the status value
+                setting.startService();
+                mSettingsBeingLoaded.add(setting);
+
+                // Ensure that if receiving the status value takes too long, we start loading the
+                // next value anyway
+                Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
+                sendMessageDelayed(timeoutMsg, setting.getTimeoutMillis());
+
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "handleMessage end " + msg + ", " + this
+                            + ", started loading " + setting);
+                }
             }
         }
 
@@ -497,6 +541,7 @@ class SettingsInjector {
                     }
                     preference.setSummary(null);
                     preference.setEnabled(enabled);
+                    mStatusCache.putStatus(setting, enabled, getElapsedTime());
                     mHandler.sendMessage(
                             mHandler.obtainMessage(WHAT_RECEIVED_STATUS, Setting.this));
                 }
@@ -509,16 +554,24 @@ class SettingsInjector {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, setting + ": sending update intent: " + intent
                         + ", handler: " + handler);
-                startMillis = SystemClock.elapsedRealtime();
-            } else {
-                startMillis = 0;
             }
+            startMillis = SystemClock.elapsedRealtime();
 
             // Start the service, making sure that this is attributed to the user associated with
             // the setting rather than the system user.
             mContext.startServiceAsUser(intent, setting.mUserHandle);
         }
 
+        /**
+         * Time to wait for the status before loading other settings, based on how long the
+         * service took on previous loads.
+         */
+        public long getTimeoutMillis() {
+            final long latency = mStatusCache.getLatencyMillis(setting);
+            return Math.min(MAX_INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS,
+                    Math.max(INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS, latency * 2));
+        }
+
         public long getElapsedTime() {
             long end = SystemClock.elapsedRealtime();
             return end - startMillis;
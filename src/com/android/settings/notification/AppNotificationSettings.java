@@ -55,8 +55,8 @@ public class AppNotificationSettings extends NotificationSettingsBase {
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         if (mAppRow == null) return;
-        AppHeader.createAppHeader(this, mAppRow.icon, mAppRow.label, mAppRow.pkg, mAppRow.uid,
-                mAppRow.settingsIntent);
+        AppHeader.createAppHeader(this, mAppRow.getIcon(), mAppRow.getLabel(), mAppRow.pkg,
+                mAppRow.uid, mAppRow.settingsIntent);
     }
 
     @Override
@@ -29,6 +29,7 @@ import android.service.notification.NotificationListenerService;
 import android.util.Log;
 
 import com.android.internal.widget.LockPatternUtils;
+import com.android.settings.PackageItemInfoCache;
 import com.android.settingslib.Utils;
 
 public class NotificationBackend {
@@ -38,26 +39,34 @@ public class NotificationBackend {
             ServiceManager.getService(Context.NOTIFICATION_SERVICE));
 
     public AppRow loadAppRow(Context context, PackageManager pm, ApplicationInfo app) {
-        final AppRow row = new AppRow();
+        return loadAppRow(context, app, isLockScreenSecure(context));
+    }
+
+    /**
+     * Load only the notification policy of the app. Label and icon are resolved on first
+     * use, so that callers loading rows for every installed app, like the notification
+     * filters in the apps list, do not decode an icon per app.
+     *
+     * @param lockScreenSecure result of {@link #isLockScreenSecure}, shared by all rows
+     *            loaded in one pass.
+     */
+    public AppRow loadAppRow(Context context, ApplicationInfo app, boolean lockScreenSecure) {
+        final AppRow row = new AppRow(PackageItemInfoCache.getInstance(context), app);
         row.pkg = app.packageName;
         row.uid = app.uid;
-        try {
-            row.label = app.loadLabel(pm);
-        } catch (Throwable t) {
-            Log.e(TAG, "Error loading application label for " + row.pkg, t);
-            row.label = row.pkg;
-        }
-        row.icon = app.loadIcon(pm);
         row.banned = getNotificationsBanned(row.pkg, row.uid);
         row.appImportance = getImportance(row.pkg, row.uid);
         row.appBypassDnd = getBypassZenMode(row.pkg, row.uid);
         row.appVisOverride = getVisibilityOverride(row.pkg, row.uid);
         row.soundTimeout = getNotificationSoundTimeout(row.pkg, row.uid);
-        row.lockScreenSecure = new LockPatternUtils(context).isSecure(
-                UserHandle.myUserId());
+        row.lockScreenSecure = lockScreenSecure;
         return row;
     }
 
+    public boolean isLockScreenSecure(Context context) {
+        return new LockPatternUtils(context).isSecure(UserHandle.myUserId());
+    }
+
     public AppRow loadAppRow(Context context, PackageManager pm, PackageInfo app) {
         final AppRow row = loadAppRow(context, pm, app.applicationInfo);
         row.cantBlock = Utils.isSystemPackage(context.getResources(), pm, app);
@@ -166,10 +175,13 @@ public class NotificationBackend {
     }
 
     public static class AppRow extends Row {
+        private final PackageItemInfoCache mCache;
+        private final ApplicationInfo mInfo;
+        private Drawable mIcon;
+        private CharSequence mLabel;
+
         public String pkg;
         public int uid;
-        public Drawable icon;
-        public CharSequence label;
         public Intent settingsIntent;
         public boolean banned;
         public boolean first;  // first app in section
@@ -180,5 +192,29 @@ public class NotificationBackend {
         public int appVisOverride;
         public long soundTimeout;
         public boolean lockScreenSecure;
+
+        AppRow(PackageItemInfoCache cache, ApplicationInfo info) {
+            mCache = cache;
+            mInfo = info;
+        }
+
+        public CharSequence getLabel() {
+            if (mLabel == null) {
+                try {
+                    mLabel = mCache.getLabel(mInfo);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Error loading application label for " + pkg, t);
+                    mLabel = pkg;
+                }
+            }
+            return mLabel;
+        }
+
+        public Drawable getIcon() {
+            if (mIcon == null) {
+                mIcon = mCache.getIcon(mInfo);
+            }
+            return mIcon;
+        }
     }
 }
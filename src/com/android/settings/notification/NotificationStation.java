@@ -32,13 +32,16 @@ import android.service.notification.NotificationListenerService.Ranking;
 import android.service.notification.NotificationListenerService.RankingMap;
 import android.service.notification.StatusBarNotification;
 import android.support.v7.preference.Preference;
+import android.support.v7.preference.PreferenceScreen;
 import android.support.v7.preference.PreferenceViewHolder;
 import android.support.v7.widget.RecyclerView;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.StyleSpan;
+import android.util.ArrayMap;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.View;
 import android.widget.DateTimeView;
 import android.widget.ImageView;
@@ -46,6 +49,7 @@ import android.widget.TextView;
 
 import com.android.internal.logging.MetricsProto.MetricsEvent;
 import com.android.settings.CopyablePreference;
+import com.android.settings.PackageItemInfoCache;
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.Utils;
@@ -61,7 +65,13 @@ public class NotificationStation extends SettingsPreferenceFragment {
     private static final boolean DUMP_PARCEL = true;
     private Handler mHandler;
 
+    /** Upper bound of cached notification and package icons. */
+    private static final int MAX_CACHED_ICONS = 64;
+
     private static class HistoricalNotificationInfo {
+        /** Stable identity of this row across refreshes. */
+        public String key;
+        public StatusBarNotification sbn;
         public String pkg;
         public Drawable pkgicon;
         public CharSequence pkgname;
@@ -71,6 +81,10 @@ public class NotificationStation extends SettingsPreferenceFragment {
         public int user;
         public long timestamp;
         public boolean active;
+        /** Ranking captured at load time for active rows, {@code null} if unranked. */
+        public Ranking ranking;
+        public boolean rankingAvailable;
+        /** Details text, built on first expand. */
         public CharSequence extra;
     }
 
@@ -78,6 +92,14 @@ public class NotificationStation extends SettingsPreferenceFragment {
     private INotificationManager mNoMan;
     private RankingMap mRanking;
 
+    /** Shown rows keyed by {@link HistoricalNotificationInfo#key}. */
+    private final ArrayMap<String, HistoricalNotificationPreference> mPreferences =
+            new ArrayMap<>();
+    private final LruCache<String, Drawable.ConstantState> mIconCache =
+            new LruCache<>(MAX_CACHED_ICONS);
+    private LoadTask mLoadTask;
+    private boolean mReloadPending;
+
     private Runnable mRefreshListRunnable = new Runnable() {
         @Override
         public void run() {
@@ -153,6 +175,10 @@ public class NotificationStation extends SettingsPreferenceFragment {
         logd("onDetach()");
         mHandler.removeCallbacks(mRefreshListRunnable);
         mHandler = null;
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
         super.onDetach();
     }
 
@@ -193,20 +219,90 @@ public class NotificationStation extends SettingsPreferenceFragment {
         refreshList();
     }
 
+    /**
+     * Reload notifications in the background. While a load is running, further requests
+     * are folded into a single reload once it finishes.
+     */
     private void refreshList() {
-        List<HistoricalNotificationInfo> infos = loadNotifications();
+        if (mLoadTask != null) {
+            mReloadPending = true;
+            return;
+        }
+        mReloadPending = false;
+        mLoadTask = new LoadTask(mRanking);
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onNotificationsLoaded(List<HistoricalNotificationInfo> infos) {
+        mLoadTask = null;
+        if (mHandler == null) {
+            return;
+        }
         if (infos != null) {
-            final int N = infos.size();
-            logd("adding %d infos", N);
-            Collections.sort(infos, mNotificationSorter);
-            if (getPreferenceScreen() == null) {
-                setPreferenceScreen(getPreferenceManager().createPreferenceScreen(getContext()));
+            applyList(infos);
+        }
+        if (mReloadPending) {
+            refreshList();
+        }
+    }
+
+    /**
+     * Diff the sorted list into the screen: existing rows are updated in place and
+     * reordered, only new rows are created and only vanished rows are removed.
+     */
+    private void applyList(List<HistoricalNotificationInfo> infos) {
+        final int N = infos.size();
+        logd("applying %d infos", N);
+        if (getPreferenceScreen() == null) {
+            setPreferenceScreen(getPreferenceManager().createPreferenceScreen(getContext()));
+        }
+        final PreferenceScreen screen = getPreferenceScreen();
+        final ArrayMap<String, HistoricalNotificationPreference> previous =
+                new ArrayMap<>(mPreferences);
+        mPreferences.clear();
+        for (int i = 0; i < N; i++) {
+            final HistoricalNotificationInfo info = infos.get(i);
+            if (mPreferences.containsKey(info.key)) {
+                // the same post listed as both active and dismissed, show it once
+                continue;
+            }
+            HistoricalNotificationPreference pref = previous.remove(info.key);
+            if (pref != null) {
+                pref.setInfo(info);
+            } else {
+                pref = new HistoricalNotificationPreference(getPrefContext(), info, this);
+                screen.addPreference(pref);
             }
-            getPreferenceScreen().removeAll();
-            for (int i = 0; i < N; i++) {
-                getPreferenceScreen().addPreference(
-                        new HistoricalNotificationPreference(getPrefContext(), infos.get(i)));
+            pref.setOrder(i);
+            mPreferences.put(info.key, pref);
+        }
+        for (int i = 0; i < previous.size(); i++) {
+            screen.removePreference(previous.valueAt(i));
+        }
+    }
+
+    /**
+     * Fetches notifications and resolves icons and labels off the main thread.
+     */
+    private class LoadTask extends AsyncTask<Void, Void, List<HistoricalNotificationInfo>> {
+        private final RankingMap mRankingSnapshot;
+
+        LoadTask(RankingMap ranking) {
+            mRankingSnapshot = ranking;
+        }
+
+        @Override
+        protected List<HistoricalNotificationInfo> doInBackground(Void... params) {
+            final List<HistoricalNotificationInfo> infos = loadNotifications(mRankingSnapshot);
+            if (infos != null) {
+                Collections.sort(infos, mNotificationSorter);
             }
+            return infos;
+        }
+
+        @Override
+        protected void onPostExecute(List<HistoricalNotificationInfo> infos) {
+            onNotificationsLoaded(infos);
         }
     }
 
@@ -250,7 +346,7 @@ public class NotificationStation extends SettingsPreferenceFragment {
         return sb.toString();
     }
 
-    private List<HistoricalNotificationInfo> loadNotifications() {
+    private List<HistoricalNotificationInfo> loadNotifications(RankingMap ranking) {
         final int currentUserId = ActivityManager.getCurrentUser();
         try {
             StatusBarNotification[] active = mNoMan.getActiveNotifications(
@@ -261,8 +357,6 @@ public class NotificationStation extends SettingsPreferenceFragment {
             List<HistoricalNotificationInfo> list
                     = new ArrayList<HistoricalNotificationInfo>(active.length + dismissed.length);
 
-            final Ranking rank = new Ranking();
-
             for (StatusBarNotification[] resultset
                     : new StatusBarNotification[][] { active, dismissed }) {
                 for (StatusBarNotification sbn : resultset) {
@@ -272,6 +366,7 @@ public class NotificationStation extends SettingsPreferenceFragment {
 
                     final Notification n = sbn.getNotification();
                     final HistoricalNotificationInfo info = new HistoricalNotificationInfo();
+                    info.sbn = sbn;
                     info.pkg = sbn.getPackageName();
                     info.user = sbn.getUserId();
                     info.icon = loadIconDrawable(info.pkg, info.user, n.icon);
@@ -279,183 +374,22 @@ public class NotificationStation extends SettingsPreferenceFragment {
                     info.pkgname = loadPackageName(info.pkg);
                     info.title = getTitleString(n);
                     if (TextUtils.isEmpty(info.title)) {
-                        info.title = getString(R.string.notification_log_no_title);
+                        info.title = mContext.getString(R.string.notification_log_no_title);
                     }
                     info.timestamp = sbn.getPostTime();
                     info.priority = n.priority;
 
                     info.active = (resultset == active);
-
-                    final SpannableStringBuilder sb = new SpannableStringBuilder();
-                    final String delim = getString(R.string.notification_log_details_delimiter);
-                    sb.append(bold(getString(R.string.notification_log_details_package)))
-                            .append(delim)
-                            .append(info.pkg)
-                            .append("\n")
-                            .append(bold(getString(R.string.notification_log_details_key)))
-                            .append(delim)
-                            .append(sbn.getKey());
-                    sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_icon)))
-                            .append(delim)
-                            .append(n.getSmallIcon().toString());
-                    if (sbn.isGroup()) {
-                        sb.append("\n")
-                                .append(bold(getString(R.string.notification_log_details_group)))
-                                .append(delim)
-                                .append(sbn.getGroupKey());
-                        if (n.isGroupSummary()) {
-                            sb.append(bold(
-                                    getString(R.string.notification_log_details_group_summary)));
-                        }
-                    }
-                    sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_sound)))
-                            .append(delim);
-                    if (0 != (n.defaults & Notification.DEFAULT_SOUND)) {
-                        sb.append(getString(R.string.notification_log_details_default));
-                    } else if (n.sound != null) {
-                        sb.append(n.sound.toString());
-                    } else {
-                        sb.append(getString(R.string.notification_log_details_none));
-                    }
-                    sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_vibrate)))
-                            .append(delim);
-                    if (0 != (n.defaults & Notification.DEFAULT_VIBRATE)) {
-                        sb.append(getString(R.string.notification_log_details_default));
-                    } else if (n.vibrate != null) {
-                        for (int vi=0;vi<n.vibrate.length;vi++) {
-                            if (vi > 0) sb.append(',');
-                            sb.append(String.valueOf(n.vibrate[vi]));
-                        }
-                    } else {
-                        sb.append(getString(R.string.notification_log_details_none));
-                    }
-                    sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_visibility)))
-                            .append(delim)
-                            .append(Notification.visibilityToString(n.visibility));
-                    if (n.publicVersion != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_public_version)))
-                                .append(delim)
-                                .append(getTitleString(n.publicVersion));
-                    }
-                    sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_priority)))
-                            .append(delim)
-                            .append(Notification.priorityToString(n.priority));
-                    if (resultset == active) {
+                    // not keyed by active state, so a post moving to the history keeps its row
+                    info.key = sbn.getKey() + ':' + info.timestamp;
+                    if (info.active) {
                         // mRanking only applies to active notifications
-                        if (mRanking != null && mRanking.getRanking(sbn.getKey(), rank)) {
-                            sb.append("\n")
-                                    .append(bold(getString(
-                                            R.string.notification_log_details_importance)))
-                                    .append(delim)
-                                    .append(Ranking.importanceToString(rank.getImportance()));
-                            if (rank.getImportanceExplanation() != null) {
-                                sb.append("\n")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_explanation)))
-                                        .append(delim)
-                                        .append(rank.getImportanceExplanation());
-                            }
-                        } else {
-                            if (mRanking == null) {
-                                sb.append("\n")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_ranking_null)));
-                            } else {
-                                sb.append("\n")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_ranking_none)));
-                            }
+                        info.rankingAvailable = ranking != null;
+                        final Ranking rank = new Ranking();
+                        if (ranking != null && ranking.getRanking(sbn.getKey(), rank)) {
+                            info.ranking = rank;
                         }
                     }
-                    if (n.contentIntent != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_content_intent)))
-                                .append(delim)
-                                .append(formatPendingIntent(n.contentIntent));
-                    }
-                    if (n.deleteIntent != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_delete_intent)))
-                                .append(delim)
-                                .append(formatPendingIntent(n.deleteIntent));
-                    }
-                    if (n.fullScreenIntent != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_full_screen_intent)))
-                                .append(delim)
-                                .append(formatPendingIntent(n.fullScreenIntent));
-                    }
-                    if (n.actions != null && n.actions.length > 0) {
-                        sb.append("\n")
-                                .append(bold(getString(R.string.notification_log_details_actions)));
-                        for (int ai=0; ai<n.actions.length; ai++) {
-                            final Notification.Action action = n.actions[ai];
-                            sb.append("\n  ").append(String.valueOf(ai)).append(' ')
-                                    .append(bold(getString(
-                                            R.string.notification_log_details_title)))
-                                    .append(delim)
-                                    .append(action.title);
-                            if (action.actionIntent != null) {
-                                sb.append("\n    ")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_content_intent)))
-                                        .append(delim)
-                                        .append(formatPendingIntent(action.actionIntent));
-                            }
-                            if (action.getRemoteInputs() != null) {
-                                sb.append("\n    ")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_remoteinput)))
-                                        .append(delim)
-                                        .append(String.valueOf(action.getRemoteInputs().length));
-                            }
-                        }
-                    }
-                    if (n.contentView != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_content_view)))
-                                .append(delim)
-                                .append(n.contentView.toString());
-                    }
-
-                    if (DUMP_EXTRAS) {
-                        if (n.extras != null && n.extras.size() > 0) {
-                            sb.append("\n")
-                                    .append(bold(getString(
-                                            R.string.notification_log_details_extras)));
-                            for (String extraKey : n.extras.keySet()) {
-                                String val = String.valueOf(n.extras.get(extraKey));
-                                if (val.length() > 100) val = val.substring(0, 100) + "...";
-                                sb.append("\n  ").append(extraKey).append(delim).append(val);
-                            }
-                        }
-                    }
-                    if (DUMP_PARCEL) {
-                        final Parcel p = Parcel.obtain();
-                        n.writeToParcel(p, 0);
-                        sb.append("\n")
-                                .append(bold(getString(R.string.notification_log_details_parcel)))
-                                .append(delim)
-                                .append(String.valueOf(p.dataPosition()))
-                                .append(' ')
-                                .append(bold(getString(R.string.notification_log_details_ashmem)))
-                                .append(delim)
-                                .append(String.valueOf(p.getBlobAshmemSize()))
-                                .append("\n");
-                    }
-
-                    info.extra = sb;
 
                     logd("   [%d] %s: %s", info.timestamp, info.pkg, info.title);
                     list.add(info);
@@ -469,6 +403,186 @@ public class NotificationStation extends SettingsPreferenceFragment {
         return null;
     }
 
+    /**
+     * Build the expandable details text for a row. Involves a binder call per pending
+     * intent, so it is only done when the row is first expanded or copied.
+     */
+    private CharSequence buildDetails(HistoricalNotificationInfo info) {
+        final StatusBarNotification sbn = info.sbn;
+        final Notification n = sbn.getNotification();
+        final SpannableStringBuilder sb = new SpannableStringBuilder();
+        final String delim = getString(R.string.notification_log_details_delimiter);
+        sb.append(bold(getString(R.string.notification_log_details_package)))
+                .append(delim)
+                .append(info.pkg)
+                .append("\n")
+                .append(bold(getString(R.string.notification_log_details_key)))
+                .append(delim)
+                .append(sbn.getKey());
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_icon)))
+                .append(delim)
+                .append(n.getSmallIcon().toString());
+        if (sbn.isGroup()) {
+            sb.append("\n")
+                    .append(bold(getString(R.string.notification_log_details_group)))
+                    .append(delim)
+                    .append(sbn.getGroupKey());
+            if (n.isGroupSummary()) {
+                sb.append(bold(
+                        getString(R.string.notification_log_details_group_summary)));
+            }
+        }
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_sound)))
+                .append(delim);
+        if (0 != (n.defaults & Notification.DEFAULT_SOUND)) {
+            sb.append(getString(R.string.notification_log_details_default));
+        } else if (n.sound != null) {
+            sb.append(n.sound.toString());
+        } else {
+            sb.append(getString(R.string.notification_log_details_none));
+        }
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_vibrate)))
+                .append(delim);
+        if (0 != (n.defaults & Notification.DEFAULT_VIBRATE)) {
+            sb.append(getString(R.string.notification_log_details_default));
+        } else if (n.vibrate != null) {
+            for (int vi=0;vi<n.vibrate.length;vi++) {
+                if (vi > 0) sb.append(',');
+                sb.append(String.valueOf(n.vibrate[vi]));
+            }
+        } else {
+            sb.append(getString(R.string.notification_log_details_none));
+        }
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_visibility)))
+                .append(delim)
+                .append(Notification.visibilityToString(n.visibility));
+        if (n.publicVersion != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_public_version)))
+                    .append(delim)
+                    .append(getTitleString(n.publicVersion));
+        }
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_priority)))
+                .append(delim)
+                .append(Notification.priorityToString(n.priority));
+        if (info.active) {
+            // mRanking only applies to active notifications
+            final Ranking rank = info.ranking;
+            if (rank != null) {
+                sb.append("\n")
+                        .append(bold(getString(
+                                R.string.notification_log_details_importance)))
+                        .append(delim)
+                        .append(Ranking.importanceToString(rank.getImportance()));
+                if (rank.getImportanceExplanation() != null) {
+                    sb.append("\n")
+                            .append(bold(getString(
+                                    R.string.notification_log_details_explanation)))
+                            .append(delim)
+                            .append(rank.getImportanceExplanation());
+                }
+            } else {
+                if (!info.rankingAvailable) {
+                    sb.append("\n")
+                            .append(bold(getString(
+                                    R.string.notification_log_details_ranking_null)));
+                } else {
+                    sb.append("\n")
+                            .append(bold(getString(
+                                    R.string.notification_log_details_ranking_none)));
+                }
+            }
+        }
+        if (n.contentIntent != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_content_intent)))
+                    .append(delim)
+                    .append(formatPendingIntent(n.contentIntent));
+        }
+        if (n.deleteIntent != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_delete_intent)))
+                    .append(delim)
+                    .append(formatPendingIntent(n.deleteIntent));
+        }
+        if (n.fullScreenIntent != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_full_screen_intent)))
+                    .append(delim)
+                    .append(formatPendingIntent(n.fullScreenIntent));
+        }
+        if (n.actions != null && n.actions.length > 0) {
+            sb.append("\n")
+                    .append(bold(getString(R.string.notification_log_details_actions)));
+            for (int ai=0; ai<n.actions.length; ai++) {
+                final Notification.Action action = n.actions[ai];
+                sb.append("\n  ").append(String.valueOf(ai)).append(' ')
+                        .append(bold(getString(
+                                R.string.notification_log_details_title)))
+                        .append(delim)
+                        .append(action.title);
+                if (action.actionIntent != null) {
+                    sb.append("\n    ")
+                            .append(bold(getString(
+                                    R.string.notification_log_details_content_intent)))
+                            .append(delim)
+                            .append(formatPendingIntent(action.actionIntent));
+                }
+                if (action.getRemoteInputs() != null) {
+                    sb.append("\n    ")
+                            .append(bold(getString(
+                                    R.string.notification_log_details_remoteinput)))
+                            .append(delim)
+                            .append(String.valueOf(action.getRemoteInputs().length));
+                }
+            }
+        }
+        if (n.contentView != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_content_view)))
+                    .append(delim)
+                    .append(n.contentView.toString());
+        }
+
+        if (DUMP_EXTRAS) {
+            if (n.extras != null && n.extras.size() > 0) {
+                sb.append("\n")
+                        .append(bold(getString(
+                                R.string.notification_log_details_extras)));
+                for (String extraKey : n.extras.keySet()) {
+                    String val = String.valueOf(n.extras.get(extraKey));
+                    if (val.length() > 100) val = val.substring(0, 100) + "...";
+                    sb.append("\n  ").append(extraKey).append(delim).append(val);
+                }
+            }
+        }
+        if (DUMP_PARCEL) {
+            final Parcel p = Parcel.obtain();
+            n.writeToParcel(p, 0);
+            sb.append("\n")
+                    .append(bold(getString(R.string.notification_log_details_parcel)))
+                    .append(delim)
+                    .append(String.valueOf(p.dataPosition()))
+                    .append(' ')
+                    .append(bold(getString(R.string.notification_log_details_ashmem)))
+                    .append(delim)
+                    .append(String.valueOf(p.getBlobAshmemSize()))
+                    .append("\n");
+        }
+
+        return sb;
+    }
+
     private Resources getResourcesForUserPackage(String pkg, int userId) {
         Resources r = null;
 
@@ -488,22 +602,38 @@ public class NotificationStation extends SettingsPreferenceFragment {
         return r;
     }
 
+    /**
+     * Cached icons are kept as constant states so that rows never share a drawable.
+     */
+    private Drawable getCachedIcon(String cacheKey) {
+        final Drawable.ConstantState state = mIconCache.get(cacheKey);
+        return state != null ? state.newDrawable() : null;
+    }
+
+    private void putCachedIcon(String cacheKey, Drawable icon) {
+        if (icon != null && icon.getConstantState() != null) {
+            mIconCache.put(cacheKey, icon.getConstantState());
+        }
+    }
+
     private Drawable loadPackageIconDrawable(String pkg, int userId) {
-        Drawable icon = null;
         try {
-            icon = mPm.getApplicationIcon(pkg);
+            ApplicationInfo info = mPm.getApplicationInfo(pkg, 0);
+            return PackageItemInfoCache.getInstance(mContext).getIcon(info);
         } catch (PackageManager.NameNotFoundException e) {
             Log.e(TAG, "Cannot get application icon", e);
         }
 
-        return icon;
+        return null;
     }
 
     private CharSequence loadPackageName(String pkg) {
         try {
             ApplicationInfo info = mPm.getApplicationInfo(pkg,
                     PackageManager.GET_UNINSTALLED_PACKAGES);
-            if (info != null) return mPm.getApplicationLabel(info);
+            if (info != null) {
+                return PackageItemInfoCache.getInstance(mContext).getLabel(info);
+            }
         } catch (PackageManager.NameNotFoundException e) {
             Log.e(TAG, "Cannot load package name", e);
         }
@@ -511,14 +641,25 @@ public class NotificationStation extends SettingsPreferenceFragment {
     }
 
     private Drawable loadIconDrawable(String pkg, int userId, int resId) {
-        Resources r = getResourcesForUserPackage(pkg, userId);
-
         if (resId == 0) {
             return null;
         }
 
+        final String cacheKey = pkg + '/' + userId + '/' + resId;
+        final Drawable cached = getCachedIcon(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        Resources r = getResourcesForUserPackage(pkg, userId);
+        if (r == null) {
+            return null;
+        }
+
         try {
-            return r.getDrawable(resId, null);
+            final Drawable icon = r.getDrawable(resId, null);
+            putCachedIcon(cacheKey, icon);
+            return icon;
         } catch (RuntimeException e) {
             Log.w(TAG, "Icon not found in "
                     + (pkg != null ? resId : "<system>")
@@ -529,12 +670,36 @@ public class NotificationStation extends SettingsPreferenceFragment {
     }
 
     private static class HistoricalNotificationPreference extends CopyablePreference {
-        private final HistoricalNotificationInfo mInfo;
+        private final NotificationStation mStation;
+        private HistoricalNotificationInfo mInfo;
+        private boolean mExpanded;
 
-        public HistoricalNotificationPreference(Context context, HistoricalNotificationInfo info) {
+        public HistoricalNotificationPreference(Context context, HistoricalNotificationInfo info,
+                NotificationStation station) {
             super(context);
             setLayoutResource(R.layout.notification_log_row);
             mInfo = info;
+            mStation = station;
+        }
+
+        /**
+         * Rebind to a newer load of the same row. Only triggers a rebind when something
+         * visible changed; details are rebuilt lazily on the next expand.
+         */
+        public void setInfo(HistoricalNotificationInfo info) {
+            final HistoricalNotificationInfo old = mInfo;
+            mInfo = info;
+            // rows are keyed by post, so only the active state and ranking can change
+            if (old.active != info.active || mExpanded) {
+                notifyChanged();
+            }
+        }
+
+        private CharSequence getExtra() {
+            if (mInfo.extra == null) {
+                mInfo.extra = mStation.buildDetails(mInfo);
+            }
+            return mInfo.extra;
         }
 
         @Override
@@ -553,15 +718,23 @@ public class NotificationStation extends SettingsPreferenceFragment {
             ((TextView) row.findViewById(R.id.pkgname)).setText(mInfo.pkgname);
 
             final TextView extra = (TextView) row.findViewById(R.id.extra);
-            extra.setText(mInfo.extra);
-            extra.setVisibility(View.GONE);
+            if (mExpanded) {
+                extra.setText(getExtra());
+                extra.setVisibility(View.VISIBLE);
+            } else {
+                extra.setText(null);
+                extra.setVisibility(View.GONE);
+            }
 
             row.itemView.setOnClickListener(
                     new View.OnClickListener() {
                         @Override
                         public void onClick(View view) {
-                            extra.setVisibility(extra.getVisibility() == View.VISIBLE
-                                    ? View.GONE : View.VISIBLE);
+                            mExpanded = !mExpanded;
+                            if (mExpanded) {
+                                extra.setText(getExtra());
+                            }
+                            extra.setVisibility(mExpanded ? View.VISIBLE : View.GONE);
                         }
                     });
 
@@ -573,7 +746,7 @@ public class NotificationStation extends SettingsPreferenceFragment {
             return new SpannableStringBuilder(mInfo.title)
                     .append(" [").append(new Date(mInfo.timestamp).toString())
                     .append("]\n").append(mInfo.pkgname)
-                    .append("\n").append(mInfo.extra);
+                    .append("\n").append(getExtra());
         }
 
         @Override
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.users;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseIntArray;
+
+import com.android.settings.Utils;
+import com.android.settingslib.drawable.CircleFramedDrawable;
+
+import java.util.List;
+
+/**
+ * Process wide cache of user avatars, already framed in a circle and rendered at the size
+ * they are displayed at. Avatars are decoded in parallel on background threads and dropped
+ * when the user info changes, the cache is bounded by the memory its bitmaps use.
+ */
+public class UserAvatarCache {
+    private static final String TAG = "UserAvatarCache";
+
+    private static final boolean DEBUG = false;
+
+    /** Upper bound of the memory used by cached avatars. */
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static UserAvatarCache sInstance;
+
+    /**
+     * Receives the avatars loaded by {@link #load}, on the main thread.
+     */
+    public interface OnAvatarLoadedListener {
+        void onAvatarLoaded(int userId, Drawable avatar);
+    }
+
+    private final Context mContext;
+    private final UserManager mUserManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, Bitmap> mAvatars;
+
+    // Users whose avatar is being loaded, guarded by this
+    private final ArraySet<Integer> mLoading = new ArraySet<>();
+    // Bumped when the avatar of a user is invalidated, so loads in flight are dropped.
+    // Guarded by this.
+    private final SparseIntArray mGenerations = new SparseIntArray();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                    UserHandle.USER_NULL);
+            if (userId != UserHandle.USER_NULL) {
+                invalidate(userId);
+            }
+        }
+    };
+
+    public static synchronized UserAvatarCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UserAvatarCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UserAvatarCache(Context context) {
+        mContext = context;
+        mUserManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        final int maxBytes = (int) Math.min(MAX_CACHE_BYTES,
+                Runtime.getRuntime().maxMemory() / 32);
+        mAvatars = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer userId, Bitmap avatar) {
+                return avatar.getByteCount();
+            }
+        };
+        IntentFilter filter = new IntentFilter(Intent.ACTION_USER_INFO_CHANGED);
+        filter.addAction(Intent.ACTION_USER_REMOVED);
+        context.registerReceiverAsUser(mReceiver, UserHandle.ALL, filter, null, mHandler);
+    }
+
+    /**
+     * Return the cached avatar of the user, or null if it has to be loaded.
+     */
+    public Drawable get(int userId) {
+        final Bitmap avatar = mAvatars.get(userId);
+        return avatar != null ? new BitmapDrawable(mContext.getResources(), avatar) : null;
+    }
+
+    /**
+     * Load the avatars of the given users that are not loaded yet, each on its own
+     * background thread. The listener is called once per avatar as soon as it is ready.
+     */
+    public void load(List<Integer> userIds, final OnAvatarLoadedListener listener) {
+        for (final int userId : userIds) {
+            final int generation;
+            synchronized (this) {
+                if (mLoading.contains(userId)) {
+                    continue;
+                }
+                mLoading.add(userId);
+                generation = mGenerations.get(userId);
+            }
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Bitmap avatar = decodeAvatar(userId);
+                    synchronized (UserAvatarCache.this) {
+                        if (generation != mGenerations.get(userId)) {
+                            if (DEBUG) Log.d(TAG, "Dropping stale avatar of user " + userId);
+                            return;
+                        }
+                        mLoading.remove(userId);
+                        mAvatars.put(userId, avatar);
+                    }
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onAvatarLoaded(userId,
+                                    new BitmapDrawable(mContext.getResources(), avatar));
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop the avatar of the user, for example after it was changed.
+     */
+    public synchronized void invalidate(int userId) {
+        if (DEBUG) Log.d(TAG, "Invalidating avatar of user " + userId);
+        mGenerations.put(userId, mGenerations.get(userId) + 1);
+        mLoading.remove(userId);
+        mAvatars.remove(userId);
+    }
+
+    private Bitmap decodeAvatar(int userId) {
+        Bitmap icon = mUserManager.getUserIcon(userId);
+        if (icon == null) {
+            icon = Utils.getDefaultUserIconAsBitmap(userId);
+        }
+        // Render the framed avatar once, so drawing it is a plain bitmap copy
+        final Drawable circled = CircleFramedDrawable.getInstance(mContext, icon);
+        final int width = circled.getIntrinsicWidth();
+        final int height = circled.getIntrinsicHeight();
+        final Bitmap avatar = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        circled.setBounds(0, 0, width, height);
+        circled.draw(new Canvas(avatar));
+        return avatar;
+    }
+}
@@ -46,7 +46,6 @@ import android.support.v7.preference.PreferenceGroup;
 import android.support.v7.preference.PreferenceScreen;
 import android.provider.Settings.Global;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -146,7 +145,7 @@ public class UserSettings extends SettingsPreferenceFragment
     private boolean mShouldUpdateUserList = true;
     private final Object mUserLock = new Object();
     private UserManager mUserManager;
-    private SparseArray<Bitmap> mUserIcons = new SparseArray<Bitmap>();
+    private UserAvatarCache mAvatarCache;
 
     private EditUserInfoController mEditUserInfoController =
             new EditUserInfoController();
@@ -179,7 +178,8 @@ public class UserSettings extends SettingsPreferenceFragment
             } else if (intent.getAction().equals(Intent.ACTION_USER_INFO_CHANGED)) {
                 int userHandle = intent.getIntExtra(Intent.EXTRA_USER_HANDLE, -1);
                 if (userHandle != -1) {
-                    mUserIcons.remove(userHandle);
+                    // The cache gets this too, make sure the list below does not use it first
+                    mAvatarCache.invalidate(userHandle);
                 }
             }
             mHandler.sendEmptyMessage(MESSAGE_UPDATE_LIST);
@@ -207,6 +207,7 @@ public class UserSettings extends SettingsPreferenceFragment
         final Context context = getActivity();
         mUserCaps = UserCapabilities.create(context);
         mUserManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mAvatarCache = UserAvatarCache.getInstance(context);
         if (!mUserCaps.mEnabled) {
             return;
         }
@@ -350,10 +351,11 @@ public class UserSettings extends SettingsPreferenceFragment
         if (getActivity() == null) return;
         mMePreference.setTitle(getString(R.string.user_you, profileName));
         int myUserId = UserHandle.myUserId();
-        Bitmap b = mUserManager.getUserIcon(myUserId);
-        if (b != null) {
-            mMePreference.setIcon(encircle(b));
-            mUserIcons.put(myUserId, b);
+        Drawable avatar = mAvatarCache.get(myUserId);
+        if (avatar != null) {
+            mMePreference.setIcon(avatar);
+        } else {
+            mAvatarCache.load(Collections.singletonList(myUserId), mAvatarListener);
         }
     }
 
@@ -773,12 +775,13 @@ public class UserSettings extends SettingsPreferenceFragment
                 pref.setSummary(R.string.user_summary_restricted_profile);
             }
             if (user.iconPath != null) {
-                if (mUserIcons.get(user.id) == null) {
+                Drawable avatar = mAvatarCache.get(user.id);
+                if (avatar == null) {
                     // Icon not loaded yet, print a placeholder
                     missingIcons.add(user.id);
                     pref.setIcon(getEncircledDefaultIcon());
                 } else {
-                    setPhotoId(pref, user);
+                    pref.setIcon(avatar);
                 }
             } else {
                 // Icon not available yet, print a placeholder
@@ -819,7 +822,7 @@ public class UserSettings extends SettingsPreferenceFragment
 
         // Load the icons
         if (missingIcons.size() > 0) {
-            loadIconsAsync(missingIcons);
+            mAvatarCache.load(missingIcons, mAvatarListener);
         }
 
         PreferenceScreen preferenceScreen = getPreferenceScreen();
@@ -891,26 +894,19 @@ public class UserSettings extends SettingsPreferenceFragment
         return maxUsersAndGuest - managedProfiles;
     }
 
-    private void loadIconsAsync(List<Integer> missingIcons) {
-        new AsyncTask<List<Integer>, Void, Void>() {
-            @Override
-            protected void onPostExecute(Void result) {
-                updateUserList();
-            }
-
-            @Override
-            protected Void doInBackground(List<Integer>... values) {
-                for (int userId : values[0]) {
-                    Bitmap bitmap = mUserManager.getUserIcon(userId);
-                    if (bitmap == null) {
-                        bitmap = Utils.getDefaultUserIconAsBitmap(userId);
-                    }
-                    mUserIcons.append(userId, bitmap);
-                }
-                return null;
+    private final UserAvatarCache.OnAvatarLoadedListener mAvatarListener =
+            new UserAvatarCache.OnAvatarLoadedListener() {
+        @Override
+        public void onAvatarLoaded(int userId, Drawable avatar) {
+            if (getActivity() == null) return;
+            // Only update the row of the user, the rest of the list did not change
+            final Preference pref = userId == UserHandle.myUserId()
+                    ? mMePreference : findPreference("id=" + userId);
+            if (pref != null) {
+                pref.setIcon(avatar);
             }
-        }.execute(missingIcons);
-    }
+        }
+    };
 
     private Drawable getEncircledDefaultIcon() {
         if (mDefaultIconDrawable == null) {
@@ -919,13 +915,6 @@ public class UserSettings extends SettingsPreferenceFragment
         return mDefaultIconDrawable;
     }
 
-    private void setPhotoId(Preference pref, UserInfo user) {
-        Bitmap bitmap = mUserIcons.get(user.id);
-        if (bitmap != null) {
-            pref.setIcon(encircle(bitmap));
-        }
-    }
-
     @Override
     public boolean onPreferenceClick(Preference pref) {
         if (pref == mMePreference) {
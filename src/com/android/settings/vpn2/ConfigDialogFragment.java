@@ -109,6 +109,7 @@ public class ConfigDialogFragment extends DialogFragment implements
             // Update KeyStore entry
             KeyStore.getInstance().put(Credentials.VPN + profile.key, profile.encode(),
                     KeyStore.UID_SELF, /* flags */ 0);
+            VpnProfileCache.getInstance().invalidate();
 
             // Flush out old version of profile
             disconnect(profile);
@@ -130,6 +131,7 @@ public class ConfigDialogFragment extends DialogFragment implements
             // Delete from KeyStore
             KeyStore keyStore = KeyStore.getInstance();
             keyStore.delete(Credentials.VPN + profile.key, KeyStore.UID_SELF);
+            VpnProfileCache.getInstance().invalidate();
 
             updateLockdownVpn(false, profile);
         }
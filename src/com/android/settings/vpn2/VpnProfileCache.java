@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.vpn2;
+
+import android.annotation.WorkerThread;
+import android.security.Credentials;
+import android.security.KeyStore;
+
+import com.android.internal.net.VpnProfile;
+import com.google.android.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decoded copy of the {@link VpnProfile}s stored in the {@link KeyStore}. Every place in
+ * Settings that changes the stored profiles calls {@link #invalidate}: saving or deleting a
+ * profile in {@link ConfigDialogFragment}, and clearing the credential storage, which wipes
+ * all of them. Nothing is cached while the keystore is locked, as profiles cannot be read
+ * then.
+ */
+public class VpnProfileCache {
+    interface Listener {
+        void onVpnProfilesChanged();
+    }
+
+    private static final VpnProfileCache sInstance = new VpnProfileCache();
+
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+    private List<VpnProfile> mProfiles;
+    /** Bumped on every invalidation, so that a load racing with it is not kept. */
+    private int mGeneration;
+
+    public static VpnProfileCache getInstance() {
+        return sInstance;
+    }
+
+    private VpnProfileCache() {
+    }
+
+    /**
+     * Return every stored profile, decoding them from the keystore on the first call after
+     * an invalidation. While the keystore is locked the profiles read are returned but not
+     * cached, so that the full list is read once it is unlocked.
+     */
+    @WorkerThread
+    List<VpnProfile> getProfiles(KeyStore keyStore) {
+        final int generation;
+        synchronized (this) {
+            if (mProfiles != null) {
+                return mProfiles;
+            }
+            generation = mGeneration;
+        }
+        final boolean unlocked = keyStore.isUnlocked();
+        final ArrayList<VpnProfile> result = Lists.newArrayList();
+        for (String key : keyStore.list(Credentials.VPN)) {
+            final VpnProfile profile = VpnProfile.decode(key, keyStore.get(Credentials.VPN + key));
+            if (profile != null) {
+                result.add(profile);
+            }
+        }
+        final List<VpnProfile> profiles = Collections.unmodifiableList(result);
+        if (!unlocked || !keyStore.isUnlocked()) {
+            return profiles;
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mProfiles = profiles;
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Drop the decoded profiles after profiles were saved or deleted, and tell listeners.
+     * Can be called from any thread.
+     */
+    public void invalidate() {
+        final Listener[] listeners;
+        synchronized (this) {
+            mProfiles = null;
+            mGeneration++;
+            listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        }
+        for (Listener listener : listeners) {
+            listener.onVpnProfilesChanged();
+        }
+    }
+
+    synchronized void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    synchronized void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+}
@@ -31,12 +31,13 @@ import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserHandle;
 import android.os.UserManager;
-import android.security.Credentials;
 import android.security.KeyStore;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceGroup;
@@ -77,7 +78,10 @@ public class VpnSettings extends RestrictedSettingsFragment implements
     private static final String LOG_TAG = "VpnSettings";
 
     private static final int RESCAN_MESSAGE = 0;
+    /** Poll interval while a legacy VPN is connecting, which raises no other event. */
     private static final int RESCAN_INTERVAL_MS = 1000;
+    /** Poll interval when connectivity callbacks could not be registered. */
+    private static final int SLOW_RESCAN_INTERVAL_MS = 10000;
 
     private static final NetworkRequest VPN_REQUEST = new NetworkRequest.Builder()
             .removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
@@ -89,14 +93,19 @@ public class VpnSettings extends RestrictedSettingsFragment implements
             .asInterface(ServiceManager.getService(Context.CONNECTIVITY_SERVICE));
     private ConnectivityManager mConnectivityManager;
     private UserManager mUserManager;
+    private AppOpsManager mAppOpsManager;
+    private final Handler mUiHandler = new Handler();
 
     private final KeyStore mKeyStore = KeyStore.getInstance();
 
     private Map<String, LegacyVpnPreference> mLegacyVpnPreferences = new ArrayMap<>();
     private Map<AppVpnInfo, AppPreference> mAppPreferences = new ArrayMap<>();
 
-    private Handler mUpdater;
+    private HandlerThread mUpdaterThread;
+    // Cleared on the main thread while a scan may be running on mUpdaterThread
+    private volatile Handler mUpdater;
     private LegacyVpnInfo mConnectedLegacyVpn;
+    private boolean mHasNetworkCallback;
 
     private boolean mUnavailable;
 
@@ -115,6 +124,7 @@ public class VpnSettings extends RestrictedSettingsFragment implements
 
         mUserManager = (UserManager) getSystemService(Context.USER_SERVICE);
         mConnectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        mAppOpsManager = (AppOpsManager) getSystemService(Context.APP_OPS_SERVICE);
 
         mUnavailable = isUiRestricted();
         setHasOptionsMenu(!mUnavailable);
@@ -175,13 +185,24 @@ public class VpnSettings extends RestrictedSettingsFragment implements
             getEmptyTextView().setText(R.string.vpn_no_vpns_added);
         }
 
-        // Start monitoring
-        mConnectivityManager.registerNetworkCallback(VPN_REQUEST, mNetworkCallback);
-
         // Trigger a refresh
         if (mUpdater == null) {
-            mUpdater = new Handler(this);
+            mUpdaterThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mUpdaterThread.start();
+            mUpdater = new Handler(mUpdaterThread.getLooper(), this);
+        }
+
+        // Start monitoring. State is only polled when no event tells us about a change.
+        try {
+            mConnectivityManager.registerNetworkCallback(VPN_REQUEST, mNetworkCallback);
+            mHasNetworkCallback = true;
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Unable to monitor VPN networks, polling instead", e);
+            mHasNetworkCallback = false;
         }
+        VpnProfileCache.getInstance().addListener(mProfileListener);
+        mAppOpsManager.startWatchingMode(OP_ACTIVATE_VPN, null, mAppOpsListener);
+
         mUpdater.sendEmptyMessage(RESCAN_MESSAGE);
     }
 
@@ -193,10 +214,18 @@ public class VpnSettings extends RestrictedSettingsFragment implements
         }
 
         // Stop monitoring
-        mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+        if (mHasNetworkCallback) {
+            mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            mHasNetworkCallback = false;
+        }
+        VpnProfileCache.getInstance().removeListener(mProfileListener);
+        mAppOpsManager.stopWatchingMode(mAppOpsListener);
 
         if (mUpdater != null) {
             mUpdater.removeCallbacksAndMessages(null);
+            mUpdaterThread.quit();
+            mUpdater = null;
+            mUpdaterThread = null;
         }
 
         super.onPause();
@@ -204,11 +233,18 @@ public class VpnSettings extends RestrictedSettingsFragment implements
 
     @Override
     public boolean handleMessage(Message message) {
-        mUpdater.removeMessages(RESCAN_MESSAGE);
+        // mUpdater may be cleared by onPause while this runs, stick to the handler of the message
+        final Handler updater = message.getTarget();
+        updater.removeMessages(RESCAN_MESSAGE);
+
+        final Context context = getActivity();
+        if (context == null) {
+            return true;
+        }
 
         // Run heavy RPCs before switching to UI thread
         final List<VpnProfile> vpnProfiles = loadVpnProfiles(mKeyStore);
-        final List<AppVpnInfo> vpnApps = getVpnApps(getActivity(), /* includeProfiles */ true);
+        final List<AppVpnInfo> vpnApps = getVpnApps(context, /* includeProfiles */ true);
 
         final Map<String, LegacyVpnInfo> connectedLegacyVpns = getConnectedLegacyVpns();
         final Set<AppVpnInfo> connectedAppVpns = getConnectedAppVpns();
@@ -217,7 +253,7 @@ public class VpnSettings extends RestrictedSettingsFragment implements
         final String lockdownVpnKey = VpnUtils.getLockdownVpn();
 
         // Refresh list of VPNs
-        getActivity().runOnUiThread(new Runnable() {
+        mUiHandler.post(new Runnable() {
             @Override
             public void run() {
                 // Can't do anything useful if the context has gone away
@@ -270,10 +306,27 @@ public class VpnSettings extends RestrictedSettingsFragment implements
             }
         });
 
-        mUpdater.sendEmptyMessageDelayed(RESCAN_MESSAGE, RESCAN_INTERVAL_MS);
+        if (updater != mUpdater) {
+            // Paused during the scan, its thread has been quit
+            return true;
+        }
+        final LegacyVpnInfo legacyVpn = mConnectedLegacyVpn;
+        if (legacyVpn != null && (legacyVpn.state == LegacyVpnInfo.STATE_INITIALIZING
+                || legacyVpn.state == LegacyVpnInfo.STATE_CONNECTING)) {
+            updater.sendEmptyMessageDelayed(RESCAN_MESSAGE, RESCAN_INTERVAL_MS);
+        } else if (!mHasNetworkCallback) {
+            updater.sendEmptyMessageDelayed(RESCAN_MESSAGE, SLOW_RESCAN_INTERVAL_MS);
+        }
         return true;
     }
 
+    private void rescan() {
+        final Handler updater = mUpdater;
+        if (updater != null) {
+            updater.sendEmptyMessage(RESCAN_MESSAGE);
+        }
+    }
+
     @Override
     public boolean onPreferenceClick(Preference preference) {
         if (preference instanceof LegacyVpnPreference) {
@@ -340,16 +393,28 @@ public class VpnSettings extends RestrictedSettingsFragment implements
     private NetworkCallback mNetworkCallback = new NetworkCallback() {
         @Override
         public void onAvailable(Network network) {
-            if (mUpdater != null) {
-                mUpdater.sendEmptyMessage(RESCAN_MESSAGE);
-            }
+            rescan();
         }
 
         @Override
         public void onLost(Network network) {
-            if (mUpdater != null) {
-                mUpdater.sendEmptyMessage(RESCAN_MESSAGE);
-            }
+            rescan();
+        }
+    };
+
+    private final VpnProfileCache.Listener mProfileListener = new VpnProfileCache.Listener() {
+        @Override
+        public void onVpnProfilesChanged() {
+            rescan();
+        }
+    };
+
+    /** Apps being allowed or no longer allowed to provide a VPN. */
+    private final AppOpsManager.OnOpChangedListener mAppOpsListener =
+            new AppOpsManager.OnOpChangedListener() {
+        @Override
+        public void onOpChanged(String op, String packageName) {
+            rescan();
         }
     };
 
@@ -466,9 +531,8 @@ public class VpnSettings extends RestrictedSettingsFragment implements
     static List<VpnProfile> loadVpnProfiles(KeyStore keyStore, int... excludeTypes) {
         final ArrayList<VpnProfile> result = Lists.newArrayList();
 
-        for (String key : keyStore.list(Credentials.VPN)) {
-            final VpnProfile profile = VpnProfile.decode(key, keyStore.get(Credentials.VPN + key));
-            if (profile != null && !ArrayUtils.contains(excludeTypes, profile.type)) {
+        for (VpnProfile profile : VpnProfileCache.getInstance().getProfiles(keyStore)) {
+            if (!ArrayUtils.contains(excludeTypes, profile.type)) {
                 result.add(profile);
             }
         }
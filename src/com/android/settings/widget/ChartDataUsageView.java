@@ -118,6 +118,8 @@ public class ChartDataUsageView extends ChartView {
         mSeries = (ChartNetworkSeriesView) findViewById(R.id.series);
         mDetailSeries = (ChartNetworkSeriesView) findViewById(R.id.detail_series);
         mDetailSeries.setVisibility(View.GONE);
+        mSeries.setOnPointsLoadedListener(mPointsListener);
+        mDetailSeries.setOnPointsLoadedListener(mPointsListener);
 
         mSweepLeft = (ChartSweepView) findViewById(R.id.sweep_left);
         mSweepLeft.setVisibility(View.GONE);
@@ -164,6 +166,16 @@ public class ChartDataUsageView extends ChartView {
         setActivated(false);
     }
 
+    private final ChartNetworkSeriesView.OnPointsLoadedListener mPointsListener =
+            new ChartNetworkSeriesView.OnPointsLoadedListener() {
+        @Override
+        public void onPointsLoaded(ChartNetworkSeriesView series) {
+            // the axis was scaled from an estimate while the points were loading
+            updateVertAxisBounds(null);
+            updateEstimateVisible();
+        }
+    };
+
     public void setListener(DataUsageChartListener listener) {
         mListener = listener;
     }
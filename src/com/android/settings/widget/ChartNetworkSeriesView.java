@@ -33,6 +33,10 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
@@ -78,6 +82,26 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    /** Cumulative series vertices in raw time/byte values, independent of axis scale. */
+    private SeriesPoints mPoints;
+    private int mPointsGeneration;
+    /** Latest request for {@link #mPointsRunnable}, older ones are skipped. Guarded by this. */
+    private PointsRequest mPendingPoints;
+    private OnPointsLoadedListener mPointsListener;
+    /** Reusable screen coordinate buffer, interleaved x/y. */
+    private float[] mCoords;
+
+    /** Shared by all series, so extractions never run concurrently. */
+    private static final Executor sPointsExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Notified on the UI thread when new {@link SeriesPoints} were extracted,
+     * which changes {@link #getMaxVisible()}.
+     */
+    public interface OnPointsLoadedListener {
+        void onPointsLoaded(ChartNetworkSeriesView series);
+    }
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -140,19 +164,26 @@ public class ChartNetworkSeriesView extends View {
         mPaintEstimate.setPathEffect(new DashPathEffect(new float[] { 10, 10 }, 1));
     }
 
+    public void setOnPointsLoadedListener(OnPointsLoadedListener listener) {
+        mPointsListener = listener;
+    }
+
     public void setSafeRegion(int safeRegion) {
         mSafeRegion = safeRegion;
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
-        invalidatePath();
+        invalidatePoints();
         invalidate();
     }
 
     public void setBounds(long start, long end) {
-        mStart = start;
-        mEnd = end;
+        if (mStart != start || mEnd != end) {
+            mStart = start;
+            mEnd = end;
+            invalidatePoints();
+        }
     }
 
     public void setSecondary(boolean secondary) {
@@ -161,7 +192,8 @@ public class ChartNetworkSeriesView extends View {
 
     /**
      * Set the range to paint with {@link #mPaintFill}, leaving the remaining
-     * area to be painted with {@link #mPaintFillSecondary}.
+     * area to be painted with {@link #mPaintFillSecondary}. Only changes
+     * clipping, so the series itself is not regenerated.
      */
     public void setPrimaryRange(long left, long right) {
         mPrimaryLeft = left;
@@ -169,91 +201,126 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Mark {@link Path}s as needing to be rebuilt, typically because an axis
+     * changed scale. The cached {@link SeriesPoints} are kept, so this only
+     * remaps existing vertices into screen coordinates.
+     */
     public void invalidatePath() {
         mPathValid = false;
+        invalidate();
+    }
+
+    /**
+     * Discard cached {@link SeriesPoints} and start extracting new ones from
+     * the bound {@link NetworkStatsHistory} in the background.
+     */
+    private void invalidatePoints() {
+        mPathValid = false;
+        mPointsGeneration++;
+        // until new points arrive getMaxVisible() estimates from the raw stats
         mMax = 0;
+        if (mStats == null || mStats.size() < 2) {
+            mPoints = null;
+            synchronized (this) {
+                mPendingPoints = null;
+            }
+            return;
+        }
+        final PointsRequest request = new PointsRequest(mPointsGeneration, mStats, mStart,
+                mEnd, mEndTime);
+        final boolean queued;
+        synchronized (this) {
+            queued = mPendingPoints != null;
+            mPendingPoints = request;
+        }
+        if (!queued) {
+            sPointsExecutor.execute(mPointsRunnable);
+        }
+    }
+
+    private final Runnable mPointsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final PointsRequest request;
+            synchronized (ChartNetworkSeriesView.this) {
+                request = mPendingPoints;
+                mPendingPoints = null;
+            }
+            if (request == null) {
+                return;
+            }
+            final SeriesPoints points = SeriesPoints.build(request.history, request.start,
+                    request.end, request.endTime);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onPointsLoaded(request.generation, points);
+                }
+            });
+        }
+    };
+
+    private void onPointsLoaded(int generation, SeriesPoints points) {
+        if (generation != mPointsGeneration) {
+            // stats or bounds changed while loading, newer request is pending
+            return;
+        }
+        mPoints = points;
+        mMax = points.max;
+        mPathValid = false;
         invalidate();
+        if (mPointsListener != null) {
+            mPointsListener.onPointsLoaded(this);
+        }
     }
 
     /**
      * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * currently cached {@link SeriesPoints}, mapped through current axes.
      */
     private void generatePath() {
         if (LOGD) Log.d(TAG, "generatePath()");
 
-        mMax = 0;
         mPathStroke.reset();
         mPathFill.reset();
         mPathEstimate.reset();
         mPathValid = true;
 
-        // bail when not enough stats to render
-        if (mStats == null || mStats.size() < 2) {
+        // bail when not enough stats to render, or points still loading
+        final SeriesPoints points = mPoints;
+        if (points == null || mStats == null || mStats.size() < 2) {
             return;
         }
 
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        // reuse coordinate buffer between regenerations
+        final int count = points.count;
+        if (mCoords == null || mCoords.length < count * 2) {
+            mCoords = new float[count * 2];
+        }
+        final float[] coords = mCoords;
+        coords[0] = 0;
+        coords[1] = height;
+        for (int i = 1; i < count; i++) {
+            coords[i * 2] = mHoriz.convertToPoint(points.times[i]);
+            coords[i * 2 + 1] = mVert.convertToPoint(points.totals[i]);
+        }
 
         // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
-
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+        mPathStroke.moveTo(coords[0], coords[1]);
+        mPathFill.moveTo(coords[0], coords[1]);
+        for (int i = 1; i < count; i++) {
+            mPathStroke.lineTo(coords[i * 2], coords[i * 2 + 1]);
+            mPathFill.lineTo(coords[i * 2], coords[i * 2 + 1]);
         }
 
-        // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
-
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
-        }
+        float lastX = coords[(count - 1) * 2];
+        float lastY = coords[(count - 1) * 2 + 1];
+        final long lastTime = points.times[count - 1];
+        long totalData = points.max;
 
         if (LOGD) {
             final RectF bounds = new RectF();
@@ -266,8 +333,6 @@ public class ChartNetworkSeriesView extends View {
         mPathFill.lineTo(lastX, height);
         mPathFill.lineTo(0, height);
 
-        mMax = totalData;
-
         if (ESTIMATE_ENABLED) {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
@@ -276,7 +341,8 @@ public class ChartNetworkSeriesView extends View {
             final long bucketDuration = mStats.getBucketDuration();
 
             // long window is average over two weeks
-            entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
+            NetworkStatsHistory.Entry entry = mStats.getValues(
+                    lastTime - WEEK_IN_MILLIS * 2, lastTime, now, null);
             final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                     / entry.bucketDuration;
 
@@ -300,12 +366,13 @@ public class ChartNetworkSeriesView extends View {
 
             mMaxEstimate = totalData;
         }
-
-        invalidate();
     }
 
     public void setEndTime(long endTime) {
-        mEndTime = endTime;
+        if (mEndTime != endTime) {
+            mEndTime = endTime;
+            invalidatePoints();
+        }
     }
 
     public void setEstimateVisible(boolean estimateVisible) {
@@ -365,4 +432,98 @@ public class ChartNetworkSeriesView extends View {
         canvas.restoreToCount(save);
 
     }
+
+    /**
+     * Vertices of the cumulative usage outline, as raw time and byte values.
+     * The first vertex is the origin of the series.
+     */
+    private static class SeriesPoints {
+        long[] times;
+        long[] totals;
+        int count;
+        long max;
+
+        SeriesPoints(int capacity) {
+            times = new long[capacity];
+            totals = new long[capacity];
+        }
+
+        void add(long time, long total) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                totals = Arrays.copyOf(totals, count * 2);
+            }
+            times[count] = time;
+            totals[count] = total;
+            count++;
+        }
+
+        /**
+         * Walk buckets of the given history that overlap {@code [start, end]},
+         * accumulating usage into outline vertices.
+         */
+        static SeriesPoints build(NetworkStatsHistory stats, long start, long end,
+                long endTime) {
+            final int first = stats.getIndexBefore(start);
+            final int last = stats.getIndexAfter(end);
+            final SeriesPoints points = new SeriesPoints(Math.max(2, (last - first + 2) * 2));
+
+            long lastTime = start;
+            long totalData = 0;
+            points.add(lastTime, 0);
+
+            // TODO: count fractional data from first bucket crossing start;
+            // currently it only accepts first full bucket.
+
+            NetworkStatsHistory.Entry entry = null;
+            for (int i = first; i <= last; i++) {
+                entry = stats.getValues(i, entry);
+
+                final long startTime = entry.bucketStart;
+                final long bucketEnd = startTime + entry.bucketDuration;
+
+                // skip until we find first stats on screen
+                if (bucketEnd < start) continue;
+
+                if (lastTime != startTime) {
+                    // gap in buckets; line to start of current bucket
+                    points.add(startTime, totalData);
+                }
+
+                // increment by current bucket total, always draw to end of bucket
+                totalData += entry.rxBytes + entry.txBytes;
+                points.add(bucketEnd, totalData);
+                lastTime = bucketEnd;
+            }
+
+            // when data falls short, extend to requested end time
+            if (lastTime < endTime) {
+                points.add(endTime, totalData);
+            }
+
+            points.max = totalData;
+            return points;
+        }
+    }
+
+    /**
+     * Stats and range to extract {@link SeriesPoints} from off the UI thread, so
+     * that binding stats or moving the visible range does not stall drawing.
+     */
+    private static class PointsRequest {
+        final int generation;
+        final NetworkStatsHistory history;
+        final long start;
+        final long end;
+        final long endTime;
+
+        PointsRequest(int generation, NetworkStatsHistory history, long start, long end,
+                long endTime) {
+            this.generation = generation;
+            this.history = history;
+            this.start = start;
+            this.end = end;
+            this.endTime = endTime;
+        }
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.wifi;
+
+import android.text.TextUtils;
+
+import com.android.settingslib.wifi.AccessPoint;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Ordered list of the in-range access points of a single scan, each with the key of the
+ * preference that shows it. Built on the background looper so that {@link WifiSettings}
+ * only has to apply the differences against the rows already on screen.
+ */
+class AccessPointSnapshot {
+    /** Screen generation the snapshot was requested for. */
+    final int generation;
+    final ArrayList<String> keys;
+    final ArrayList<AccessPoint> accessPoints;
+
+    private AccessPointSnapshot(int generation, int capacity) {
+        this.generation = generation;
+        keys = new ArrayList<>(capacity);
+        accessPoints = new ArrayList<>(capacity);
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    /**
+     * @param accessPoints access points as sorted by {@link
+     *            com.android.settingslib.wifi.WifiTracker}.
+     */
+    static AccessPointSnapshot build(int generation, Collection<AccessPoint> accessPoints) {
+        final AccessPointSnapshot snapshot =
+                new AccessPointSnapshot(generation, accessPoints.size());
+        for (AccessPoint accessPoint : accessPoints) {
+            // Ignore access points that are out of range.
+            if (accessPoint.getLevel() != -1) {
+                snapshot.keys.add(getKey(accessPoint));
+                snapshot.accessPoints.add(accessPoint);
+            }
+        }
+        return snapshot;
+    }
+
+    static String getKey(AccessPoint accessPoint) {
+        String key = accessPoint.getBssid();
+        if (TextUtils.isEmpty(key)) {
+            key = accessPoint.getSsidStr() + accessPoint.getSecurityString(true);
+        }
+        return key;
+    }
+}
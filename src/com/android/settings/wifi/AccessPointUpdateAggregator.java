@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.wifi;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+
+import com.android.settingslib.wifi.AccessPoint;
+
+import java.util.ArrayList;
+
+/**
+ * Collects per access point updates reported by {@link AccessPoint.AccessPointListener} and
+ * refreshes their rows at most once per {@link #WINDOW_MS}. Updates that do not change what
+ * the row shows - signal level bucket, connection state, saved state and summary - are
+ * dropped, so RSSI jitter within a bucket costs no UI work. The connected network is
+ * refreshed first and without waiting for the window.
+ */
+class AccessPointUpdateAggregator {
+    /** Window over which updates are collapsed, about one frame. */
+    static final long WINDOW_MS = 16;
+
+    private static final int FLAG_LEVEL = 1 << 0;
+    private static final int FLAG_CHANGED = 1 << 1;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Pending updates, guarded by itself. */
+    private final ArrayMap<AccessPoint, Integer> mPending = new ArrayMap<>();
+    /** What each row showed when last refreshed, main thread only. */
+    private final ArrayMap<AccessPoint, VisibleState> mRendered = new ArrayMap<>();
+
+    void onLevelChanged(AccessPoint accessPoint) {
+        add(accessPoint, FLAG_LEVEL);
+    }
+
+    void onAccessPointChanged(AccessPoint accessPoint) {
+        add(accessPoint, FLAG_CHANGED);
+    }
+
+    /**
+     * Remember what a freshly bound row shows, so the next update can be compared to it.
+     */
+    void onRowBound(AccessPoint accessPoint) {
+        mRendered.put(accessPoint, new VisibleState(accessPoint));
+    }
+
+    void onRowRemoved(AccessPoint accessPoint) {
+        mRendered.remove(accessPoint);
+        synchronized (mPending) {
+            mPending.remove(accessPoint);
+        }
+    }
+
+    void clear() {
+        mRendered.clear();
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        mHandler.removeCallbacks(mFlush);
+    }
+
+    private void add(AccessPoint accessPoint, int flags) {
+        synchronized (mPending) {
+            final Integer pending = mPending.get(accessPoint);
+            final boolean scheduled = !mPending.isEmpty();
+            mPending.put(accessPoint, pending != null ? pending | flags : flags);
+            if (accessPoint.isActive()) {
+                mHandler.removeCallbacks(mFlush);
+                mHandler.post(mFlush);
+            } else if (!scheduled) {
+                mHandler.postDelayed(mFlush, WINDOW_MS);
+            }
+        }
+    }
+
+    private void flush() {
+        final ArrayList<AccessPoint> accessPoints;
+        final ArrayList<Integer> flags;
+        synchronized (mPending) {
+            final int N = mPending.size();
+            accessPoints = new ArrayList<>(N);
+            flags = new ArrayList<>(N);
+            for (int i = 0; i < N; i++) {
+                final AccessPoint accessPoint = mPending.keyAt(i);
+                // connected network goes first
+                final int index = accessPoint.isActive() ? 0 : accessPoints.size();
+                accessPoints.add(index, accessPoint);
+                flags.add(index, mPending.valueAt(i));
+            }
+            mPending.clear();
+        }
+        for (int i = 0; i < accessPoints.size(); i++) {
+            refresh(accessPoints.get(i), flags.get(i));
+        }
+    }
+
+    private void refresh(AccessPoint accessPoint, int flags) {
+        final Object tag = accessPoint.getTag();
+        if (!(tag instanceof LongPressAccessPointPreference)) {
+            return;
+        }
+        final VisibleState rendered = mRendered.get(accessPoint);
+        if (rendered == null) {
+            // not on screen
+            return;
+        }
+        final VisibleState current = new VisibleState(accessPoint);
+        if (current.equals(rendered)) {
+            return;
+        }
+        mRendered.put(accessPoint, current);
+        final LongPressAccessPointPreference pref = (LongPressAccessPointPreference) tag;
+        if (flags == FLAG_LEVEL && current.equalsIgnoringLevel(rendered)) {
+            pref.onLevelChanged();
+        } else {
+            pref.refresh();
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static class VisibleState {
+        final int level;
+        final boolean active;
+        final boolean saved;
+        final String summary;
+
+        VisibleState(AccessPoint accessPoint) {
+            level = accessPoint.getLevel();
+            active = accessPoint.isActive();
+            saved = accessPoint.isSaved();
+            summary = accessPoint.getSummary();
+        }
+
+        boolean equalsIgnoringLevel(VisibleState other) {
+            return active == other.active && saved == other.saved
+                    && TextUtils.equals(summary, other.summary);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof VisibleState) {
+                final VisibleState other = (VisibleState) o;
+                return level == other.level && equalsIgnoringLevel(other);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * level + (summary != null ? summary.hashCode() : 0);
+        }
+    }
+}
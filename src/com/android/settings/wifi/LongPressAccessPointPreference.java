@@ -25,23 +25,69 @@ import com.android.settingslib.wifi.AccessPointPreference;
 public class LongPressAccessPointPreference extends AccessPointPreference {
 
     private final Fragment mFragment;
+    private final boolean mForSavedNetworks;
+
+    // Access point bound by setAccessPoint, null while the row shows the one it was created for
+    private AccessPoint mReboundAccessPoint;
 
     // Used for dummy pref.
     public LongPressAccessPointPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
         mFragment = null;
+        mForSavedNetworks = false;
     }
 
     public LongPressAccessPointPreference(AccessPoint accessPoint, Context context,
             UserBadgeCache cache, boolean forSavedNetworks, Fragment fragment) {
         super(accessPoint, context, cache, forSavedNetworks);
         mFragment = fragment;
+        mForSavedNetworks = forSavedNetworks;
     }
 
     public LongPressAccessPointPreference(AccessPoint accessPoint, Context context,
             UserBadgeCache cache, boolean forSavedNetworks, int iconResId, Fragment fragment) {
         super(accessPoint, context, cache, iconResId, forSavedNetworks);
         mFragment = fragment;
+        mForSavedNetworks = forSavedNetworks;
+    }
+
+    /**
+     * Show another {@link AccessPoint} for the same network in this row, for when the tracker
+     * hands out a new object for a network that is already listed. Call {@link #refresh}
+     * afterwards.
+     */
+    public void setAccessPoint(AccessPoint accessPoint) {
+        mReboundAccessPoint = accessPoint != super.getAccessPoint() ? accessPoint : null;
+        accessPoint.setTag(this);
+    }
+
+    @Override
+    public AccessPoint getAccessPoint() {
+        return mReboundAccessPoint != null ? mReboundAccessPoint : super.getAccessPoint();
+    }
+
+    @Override
+    public void refresh() {
+        super.refresh();
+        final AccessPoint accessPoint = mReboundAccessPoint;
+        if (accessPoint == null) {
+            return;
+        }
+        // The base class renders the access point the row was created for, both stand for
+        // the same network so only what changes between scans is rendered again.
+        setTitle(mForSavedNetworks ? accessPoint.getConfigName() : accessPoint.getSsid());
+        setSummary(mForSavedNetworks ? accessPoint.getSavedNetworkSummary()
+                : accessPoint.getSettingsSummary());
+        updateIcon(accessPoint.getLevel(), getContext());
+    }
+
+    @Override
+    public void onLevelChanged() {
+        if (mReboundAccessPoint != null) {
+            refresh();
+        } else {
+            super.onLevelChanged();
+        }
     }
 
     @Override
@@ -37,14 +37,16 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WpsInfo;
 import android.nfc.NfcAdapter;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Process;
 import android.provider.Settings;
 import android.support.v7.preference.Preference;
+import android.support.v7.preference.PreferenceScreen;
 import android.support.v7.preference.PreferenceViewHolder;
 import android.text.Spannable;
-import android.text.TextUtils;
 import android.text.style.TextAppearanceSpan;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -94,6 +96,7 @@ public class WifiSettings extends RestrictedSettingsFragment
         WifiDialog.WifiDialogListener {
 
     private static final String TAG = "WifiSettings";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
     /* package */ static final int MENU_ID_WPS_PBC = Menu.FIRST;
     private static final int MENU_ID_WPS_PIN = Menu.FIRST + 1;
@@ -152,6 +155,16 @@ public class WifiSettings extends RestrictedSettingsFragment
     private String mOpenSsid;
 
     private HandlerThread mBgThread;
+    private Handler mBgHandler;
+    private final Handler mMainHandler = new Handler();
+
+    /** Access point rows on screen, keyed like {@link AccessPointSnapshot#getKey}. */
+    private final ArrayMap<String, LongPressAccessPointPreference> mAccessPointPrefs =
+            new ArrayMap<>();
+    private final AccessPointUpdateAggregator mUpdateAggregator =
+            new AccessPointUpdateAggregator();
+    /** Bumped whenever the screen is cleared, to drop snapshots built for older rows. */
+    private int mGeneration;
 
     private AccessPointPreference.UserBadgeCache mUserBadgeCache;
     private Preference mAddPreference;
@@ -185,10 +198,13 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         mBgThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
         mBgThread.start();
+        mBgHandler = new Handler(mBgThread.getLooper());
     }
 
     @Override
     public void onDestroy() {
+        mMainHandler.removeCallbacksAndMessages(null);
+        mUpdateAggregator.clear();
         mBgThread.quit();
         super.onDestroy();
     }
@@ -635,92 +651,29 @@ public class WifiSettings extends RestrictedSettingsFragment
      * the strength of network and the security for it.
      */
     @Override
-    public synchronized void onAccessPointsChanged() {
+    public void onAccessPointsChanged() {
         // Safeguard from some delayed event handling
         if (getActivity() == null) return;
         if (isUiRestricted()) {
             if (!isUiRestrictedByOnlyAdmin()) {
                 addMessagePreference(R.string.wifi_empty_list_user_restricted);
             }
-            getPreferenceScreen().removeAll();
+            removeAllPreferences();
+            onPreferenceListUpdated();
             return;
         }
         final int wifiState = mWifiManager.getWifiState();
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints =
-                        mWifiTracker.getAccessPoints();
-
-                boolean hasAvailableAccessPoints = false;
-                int index = 0;
-                cacheRemoveAllPrefs(getPreferenceScreen());
-                for (AccessPoint accessPoint : accessPoints) {
-                    // Ignore access points that are out of range.
-                    if (accessPoint.getLevel() != -1) {
-                        String key = accessPoint.getBssid();
-                        if (TextUtils.isEmpty(key)) {
-                            key = accessPoint.getSsidStr()+accessPoint.getSecurityString(true);
-                        }
-                        hasAvailableAccessPoints = true;
-                        LongPressAccessPointPreference pref = (LongPressAccessPointPreference)
-                                getCachedPreference(key);
-                        if (pref != null) {
-                            if(accessPoint == pref.getAccessPoint()){
-                                pref.setOrder(index++);
-                                continue;
-                            }else{
-                                getPreferenceScreen().removePreference(pref);
-                            }
-                        }
-                        LongPressAccessPointPreference
-                                preference = new LongPressAccessPointPreference(accessPoint,
-                                getPrefContext(), mUserBadgeCache, false,
-                                R.drawable.ic_wifi_signal_0, this);
-                        preference.setKey(key);
-                        preference.setOrder(index++);
-                        if (mOpenSsid != null && mOpenSsid.equals(accessPoint.getSsidStr())
-                                && !accessPoint.isSaved()
-                                && accessPoint.getSecurity() != AccessPoint.SECURITY_NONE) {
-                            onPreferenceTreeClick(preference);
-                            mOpenSsid = null;
-                        }
-                        getPreferenceScreen().addPreference(preference);
-                        accessPoint.setListener(this);
-                        preference.refresh();
-                    }
-                }
-                removeCachedPrefs(getPreferenceScreen());
-                if (!hasAvailableAccessPoints) {
-                    setProgressBarVisible(true);
-                    Preference pref = new Preference(getContext()) {
-                        @Override
-                        public void onBindViewHolder(PreferenceViewHolder holder) {
-                            super.onBindViewHolder(holder);
-                            // Show a line on each side of add network.
-                            holder.setDividerAllowedBelow(true);
-                        }
-                    };
-                    pref.setSelectable(false);
-                    pref.setSummary(R.string.wifi_empty_list_wifi_on);
-                    pref.setOrder(0);
-                    pref.setKey(PREF_KEY_EMPTY_WIFI_LIST);
-                    getPreferenceScreen().addPreference(pref);
-                    mAddPreference.setOrder(1);
-                    getPreferenceScreen().addPreference(mAddPreference);
-                } else {
-                    mAddPreference.setOrder(index++);
-                    getPreferenceScreen().addPreference(mAddPreference);
-                    setProgressBarVisible(false);
-                }
-                if (mScanMenuItem != null) {
-                    mScanMenuItem.setEnabled(true);
-                }
-                break;
+                // Bursts of scan results are collapsed into a single snapshot.
+                mMainHandler.removeCallbacks(mRequestSnapshot);
+                mMainHandler.postDelayed(mRequestSnapshot,
+                        AccessPointUpdateAggregator.WINDOW_MS);
+                return;
 
             case WifiManager.WIFI_STATE_ENABLING:
-                getPreferenceScreen().removeAll();
+                removeAllPreferences();
                 setProgressBarVisible(true);
                 break;
 
@@ -737,6 +690,155 @@ public class WifiSettings extends RestrictedSettingsFragment
                 }
                 break;
         }
+        onPreferenceListUpdated();
+    }
+
+    /**
+     * Builds keys and filters the access points on the background looper, the result is
+     * applied in one batch by {@link #applyAccessPoints}.
+     */
+    private final Runnable mRequestSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            final int generation = ++mGeneration;
+            mBgHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // AccessPoints are automatically sorted with TreeSet.
+                    final AccessPointSnapshot snapshot = AccessPointSnapshot.build(
+                            generation, mWifiTracker.getAccessPoints());
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyAccessPoints(snapshot);
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    /**
+     * Bring the access point rows in line with the snapshot: rows are only created for new
+     * keys, removed for vanished keys, reordered when their position changed and rebound in
+     * place when the tracker handed out a new {@link AccessPoint} for the same key.
+     */
+    private void applyAccessPoints(AccessPointSnapshot snapshot) {
+        if (getActivity() == null || snapshot.generation != mGeneration) {
+            // screen was cleared or a newer scan is on its way
+            return;
+        }
+        final PreferenceScreen screen = getPreferenceScreen();
+        final int N = snapshot.size();
+        int inserted = 0;
+        int rebound = 0;
+        int moved = 0;
+
+        final ArrayMap<String, LongPressAccessPointPreference> previous =
+                new ArrayMap<>(mAccessPointPrefs);
+        mAccessPointPrefs.clear();
+        for (int i = 0; i < N; i++) {
+            final String key = snapshot.keys.get(i);
+            final AccessPoint accessPoint = snapshot.accessPoints.get(i);
+            final LongPressAccessPointPreference pref = previous.remove(key);
+            if (pref != null) {
+                if (pref.getOrder() != i) {
+                    pref.setOrder(i);
+                    moved++;
+                }
+                if (accessPoint != pref.getAccessPoint()) {
+                    mUpdateAggregator.onRowRemoved(pref.getAccessPoint());
+                    pref.setAccessPoint(accessPoint);
+                    accessPoint.setListener(this);
+                    pref.refresh();
+                    mUpdateAggregator.onRowBound(accessPoint);
+                    rebound++;
+                }
+                mAccessPointPrefs.put(key, pref);
+                continue;
+            }
+            inserted++;
+            LongPressAccessPointPreference
+                    preference = new LongPressAccessPointPreference(accessPoint,
+                    getPrefContext(), mUserBadgeCache, false,
+                    R.drawable.ic_wifi_signal_0, this);
+            preference.setKey(key);
+            preference.setOrder(i);
+            if (mOpenSsid != null && mOpenSsid.equals(accessPoint.getSsidStr())
+                    && !accessPoint.isSaved()
+                    && accessPoint.getSecurity() != AccessPoint.SECURITY_NONE) {
+                onPreferenceTreeClick(preference);
+                mOpenSsid = null;
+            }
+            screen.addPreference(preference);
+            accessPoint.setListener(this);
+            preference.refresh();
+            mUpdateAggregator.onRowBound(accessPoint);
+            mAccessPointPrefs.put(key, preference);
+        }
+        final int removed = previous.size();
+        for (int i = 0; i < removed; i++) {
+            final LongPressAccessPointPreference pref = previous.valueAt(i);
+            screen.removePreference(pref);
+            mUpdateAggregator.onRowRemoved(pref.getAccessPoint());
+        }
+
+        final Preference emptyPref = screen.findPreference(PREF_KEY_EMPTY_WIFI_LIST);
+        if (N == 0) {
+            setProgressBarVisible(true);
+            if (emptyPref == null) {
+                Preference pref = new Preference(getContext()) {
+                    @Override
+                    public void onBindViewHolder(PreferenceViewHolder holder) {
+                        super.onBindViewHolder(holder);
+                        // Show a line on each side of add network.
+                        holder.setDividerAllowedBelow(true);
+                    }
+                };
+                pref.setSelectable(false);
+                pref.setSummary(R.string.wifi_empty_list_wifi_on);
+                pref.setOrder(0);
+                pref.setKey(PREF_KEY_EMPTY_WIFI_LIST);
+                screen.addPreference(pref);
+            }
+            mAddPreference.setOrder(1);
+        } else {
+            if (emptyPref != null) {
+                screen.removePreference(emptyPref);
+            }
+            mAddPreference.setOrder(N);
+            setProgressBarVisible(false);
+        }
+        screen.addPreference(mAddPreference);
+        if (mScanMenuItem != null) {
+            mScanMenuItem.setEnabled(true);
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "Applied scan of " + N + " access points, rows touched: "
+                    + (inserted + rebound + moved + removed) + " (inserted " + inserted
+                    + ", rebound " + rebound + ", moved " + moved + ", removed " + removed
+                    + ")");
+        }
+        onPreferenceListUpdated();
+    }
+
+    /**
+     * Called on the main thread whenever the list of access points on screen was updated.
+     */
+    /* package */ void onPreferenceListUpdated() {
+    }
+
+    /**
+     * Clear the screen and forget the access point rows, discarding any scan result still
+     * being prepared for the old rows.
+     */
+    private void removeAllPreferences() {
+        getPreferenceScreen().removeAll();
+        mAccessPointPrefs.clear();
+        mUpdateAggregator.clear();
+        mMainHandler.removeCallbacks(mRequestSnapshot);
+        mGeneration++;
     }
 
     private void setOffMessage() {
@@ -744,7 +846,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             if (!isUiRestrictedByOnlyAdmin()) {
                 addMessagePreference(R.string.wifi_empty_list_user_restricted);
             }
-            getPreferenceScreen().removeAll();
+            removeAllPreferences();
             return;
         }
 
@@ -787,13 +889,13 @@ public class WifiSettings extends RestrictedSettingsFragment
         boldSpan.setSpan(
                 new TextAppearanceSpan(getActivity(), android.R.style.TextAppearance_Medium), 0,
                 briefText.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        getPreferenceScreen().removeAll();
+        removeAllPreferences();
     }
 
     private void addMessagePreference(int messageId) {
         TextView emptyTextView = getEmptyTextView();
         if (emptyTextView != null) emptyTextView.setText(messageId);
-        getPreferenceScreen().removeAll();
+        removeAllPreferences();
     }
 
     protected void setProgressBarVisible(boolean visible) {
@@ -921,23 +1023,12 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     @Override
     public void onAccessPointChanged(final AccessPoint accessPoint) {
-        View view = getView();
-        if (view != null) {
-            view.post(new Runnable() {
-                @Override
-                public void run() {
-                    Object tag = accessPoint.getTag();
-                    if (tag != null) {
-                        ((LongPressAccessPointPreference) tag).refresh();
-                    }
-                }
-            });
-        }
+        mUpdateAggregator.onAccessPointChanged(accessPoint);
     }
 
     @Override
     public void onLevelChanged(AccessPoint accessPoint) {
-        ((LongPressAccessPointPreference) accessPoint.getTag()).onLevelChanged();
+        mUpdateAggregator.onLevelChanged(accessPoint);
     }
 
     public static final SearchIndexProvider SEARCH_INDEX_DATA_PROVIDER =
@@ -95,8 +95,7 @@ public class WifiSettingsForSetupWizard extends WifiSettings {
     }
 
     @Override
-    public void onAccessPointsChanged() {
-        super.onAccessPointsChanged();
+    /* package */ void onPreferenceListUpdated() {
         PreferenceScreen preferenceScreen = getPreferenceScreen();
         updateFooter(preferenceScreen == null || preferenceScreen.getPreferenceCount() == 0);
     }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DashboardDataTest extends AndroidTestCase {
+    private static final int TYPE = 0;
+
+    @SmallTest
+    public void testNoChange() {
+        final DashboardData oldData = build("a", "b", "c");
+        final DashboardData newData = build("a", "b", "c");
+        assertTrue(DashboardData.computeUpdates(oldData, newData).isEmpty());
+    }
+
+    @SmallTest
+    public void testInsert() {
+        final DashboardData oldData = build("a", "c");
+        final DashboardData newData = build("x", "a", "b", "c", "y");
+        final List<DashboardData.Update> updates = DashboardData.computeUpdates(oldData, newData);
+        assertEquals(3, count(updates, DashboardData.Update.INSERT));
+        assertEquals(3, updates.size());
+        assertReplays(oldData, newData, updates);
+    }
+
+    @SmallTest
+    public void testRemove() {
+        final DashboardData oldData = build("x", "a", "b", "c", "y");
+        final DashboardData newData = build("a", "c");
+        final List<DashboardData.Update> updates = DashboardData.computeUpdates(oldData, newData);
+        assertEquals(3, count(updates, DashboardData.Update.REMOVE));
+        assertEquals(3, updates.size());
+        assertReplays(oldData, newData, updates);
+    }
+
+    @SmallTest
+    public void testMove() {
+        final DashboardData oldData = build("a", "b", "c", "d");
+        final DashboardData newData = build("d", "a", "c", "b");
+        final List<DashboardData.Update> updates = DashboardData.computeUpdates(oldData, newData);
+        assertEquals(0, count(updates, DashboardData.Update.INSERT));
+        assertEquals(0, count(updates, DashboardData.Update.REMOVE));
+        assertEquals(0, count(updates, DashboardData.Update.CHANGE));
+        assertReplays(oldData, newData, updates);
+    }
+
+    @SmallTest
+    public void testChange() {
+        final DashboardData oldData = new DashboardData.Builder()
+                .add(null, TYPE, DashboardData.NS_ITEMS, "a", "title a")
+                .add(null, TYPE, DashboardData.NS_ITEMS, "b", "title b")
+                .build();
+        final DashboardData newData = new DashboardData.Builder()
+                .add(null, TYPE, DashboardData.NS_ITEMS, "a", "title a")
+                .add(null, TYPE, DashboardData.NS_ITEMS, "b", "new title b")
+                .build();
+        final List<DashboardData.Update> updates = DashboardData.computeUpdates(oldData, newData);
+        assertEquals(1, updates.size());
+        assertEquals(DashboardData.Update.CHANGE, updates.get(0).op);
+        assertEquals(1, updates.get(0).position);
+    }
+
+    @SmallTest
+    public void testChangedEntityIsRebound() {
+        final Object oldEntity = new Object();
+        final Object newEntity = new Object();
+        final DashboardData oldData = new DashboardData.Builder()
+                .add(oldEntity, TYPE, DashboardData.NS_ITEMS, "a", "title")
+                .build();
+        final DashboardData newData = new DashboardData.Builder()
+                .add(newEntity, TYPE, DashboardData.NS_ITEMS, "a", "title")
+                .build();
+        final List<DashboardData.Update> updates = DashboardData.computeUpdates(oldData, newData);
+        assertEquals(1, updates.size());
+        assertEquals(DashboardData.Update.CHANGE, updates.get(0).op);
+    }
+
+    @SmallTest
+    public void testMixed() {
+        final DashboardData oldData = new DashboardData.Builder()
+                .add(null, TYPE, DashboardData.NS_ITEMS, "a", "1")
+                .add(null, TYPE, DashboardData.NS_ITEMS, "b", "1")
+                .add(null, TYPE, DashboardData.NS_ITEMS, "c", "1")
+                .add(null, TYPE, DashboardData.NS_ITEMS, "d", "1")
+                .build();
+        final DashboardData newData = new DashboardData.Builder()
+                .add(null, TYPE, DashboardData.NS_ITEMS, "d", "2")
+                .add(null, TYPE, DashboardData.NS_ITEMS, "x", "1")
+                .add(null, TYPE, DashboardData.NS_ITEMS, "b", "1")
+                .add(null, TYPE, DashboardData.NS_ITEMS, "a", "2")
+                .build();
+        final List<DashboardData.Update> updates = DashboardData.computeUpdates(oldData, newData);
+        assertEquals(2, count(updates, DashboardData.Update.CHANGE));
+        assertReplays(oldData, newData, updates);
+    }
+
+    @SmallTest
+    public void testDuplicateKeys() {
+        final DashboardData data = build("a", "a", "a");
+        assertEquals(3, data.size());
+        assertFalse(data.get(0).id == data.get(1).id);
+        assertFalse(data.get(1).id == data.get(2).id);
+        assertFalse(data.get(0).id == data.get(2).id);
+
+        final DashboardData newData = build("a", "b", "a");
+        final List<DashboardData.Update> updates = DashboardData.computeUpdates(data, newData);
+        assertReplays(data, newData, updates);
+        assertReplays(newData, data, DashboardData.computeUpdates(newData, data));
+    }
+
+    @SmallTest
+    public void testSameKeyInOtherNamespace() {
+        final DashboardData data = new DashboardData.Builder()
+                .add(null, TYPE, DashboardData.NS_ITEMS, "a", null)
+                .add(null, TYPE, DashboardData.NS_CONDITION, "a", null)
+                .build();
+        assertFalse(data.get(0).id == data.get(1).id);
+        assertEquals(0, data.getPosition(data.get(0).id));
+        assertEquals(1, data.getPosition(data.get(1).id));
+    }
+
+    @SmallTest
+    public void testFromAndToEmpty() {
+        final DashboardData data = build("a", "b", "c");
+        assertReplays(DashboardData.EMPTY, data,
+                DashboardData.computeUpdates(DashboardData.EMPTY, data));
+        assertReplays(data, DashboardData.EMPTY,
+                DashboardData.computeUpdates(data, DashboardData.EMPTY));
+    }
+
+    private static DashboardData build(String... keys) {
+        final DashboardData.Builder builder = new DashboardData.Builder();
+        for (String key : keys) {
+            builder.add(null, TYPE, DashboardData.NS_ITEMS, key, key);
+        }
+        return builder.build();
+    }
+
+    private static int count(List<DashboardData.Update> updates, int op) {
+        int count = 0;
+        for (DashboardData.Update update : updates) {
+            if (update.op == op) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Apply the updates to the ids of {@code oldData} the way RecyclerView does, failing on
+     * any out of range position, and check that the result matches {@code newData}.
+     */
+    private static void assertReplays(DashboardData oldData, DashboardData newData,
+            List<DashboardData.Update> updates) {
+        final ArrayList<Long> ids = new ArrayList<>();
+        for (int i = 0; i < oldData.size(); i++) {
+            ids.add(oldData.get(i).id);
+        }
+        boolean structural = true;
+        for (DashboardData.Update update : updates) {
+            switch (update.op) {
+                case DashboardData.Update.REMOVE:
+                    assertTrue(structural);
+                    assertInRange(update.position, ids.size());
+                    ids.remove(update.position);
+                    break;
+                case DashboardData.Update.INSERT:
+                    assertTrue(structural);
+                    assertTrue(update.position >= 0 && update.position <= ids.size());
+                    ids.add(update.position, newData.get(update.position).id);
+                    break;
+                case DashboardData.Update.MOVE:
+                    assertTrue(structural);
+                    assertInRange(update.position, ids.size());
+                    assertInRange(update.toPosition, ids.size());
+                    ids.add(update.toPosition, ids.remove(update.position));
+                    break;
+                case DashboardData.Update.CHANGE:
+                    // changes are dispatched last, against the final positions
+                    structural = false;
+                    assertInRange(update.position, newData.size());
+                    assertTrue(oldData.getPosition(newData.get(update.position).id) >= 0);
+                    break;
+            }
+        }
+        assertEquals(newData.size(), ids.size());
+        for (int i = 0; i < newData.size(); i++) {
+            assertEquals(newData.get(i).id, (long) ids.get(i));
+        }
+    }
+
+    private static void assertInRange(int position, int size) {
+        assertTrue("position " + position + " out of " + size, position >= 0 && position < size);
+    }
+}
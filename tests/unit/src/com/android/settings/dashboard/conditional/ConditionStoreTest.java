@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard.conditional;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.os.PersistableBundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+
+public class ConditionStoreTest extends AndroidTestCase {
+    private static final String SNAPSHOT = "condition_state.bin";
+    private static final String LEGACY = "condition_state.xml";
+
+    private File mDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "condition_store_test");
+        deleteDir();
+        assertTrue(mDir.mkdirs());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        final ConditionStore store = new ConditionStore(mDir);
+        assertFalse(store.hasSnapshot());
+        assertTrue(store.read().isEmpty());
+    }
+
+    @SmallTest
+    public void testRoundTrip() {
+        final ConditionStore store = new ConditionStore(mDir);
+        store.write(makeStates());
+        assertTrue(store.hasSnapshot());
+
+        // A new store reads what the previous one wrote
+        assertStates(new ConditionStore(mDir).read());
+    }
+
+    @SmallTest
+    public void testUnsupportedValuesAreDropped() {
+        final ArrayMap<String, PersistableBundle> states = makeStates();
+        states.get("AirplaneModeCondition").putDouble("ratio", 0.5);
+        new ConditionStore(mDir).write(states);
+
+        final ArrayMap<String, PersistableBundle> read = new ConditionStore(mDir).read();
+        assertFalse(read.get("AirplaneModeCondition").containsKey("ratio"));
+        assertStates(read);
+    }
+
+    @SmallTest
+    public void testLegacyMigration() throws Exception {
+        writeLegacyXml(makeStates());
+        final ConditionStore store = new ConditionStore(mDir);
+        assertFalse(store.hasSnapshot());
+
+        final ArrayMap<String, PersistableBundle> states = store.read();
+        assertStates(states);
+
+        // The legacy file is only dropped once the binary snapshot is written
+        assertTrue(new File(mDir, LEGACY).exists());
+        store.write(states);
+        assertFalse(new File(mDir, LEGACY).exists());
+        assertTrue(store.hasSnapshot());
+        assertStates(new ConditionStore(mDir).read());
+    }
+
+    @SmallTest
+    public void testSnapshotPreferredOverLegacy() throws Exception {
+        final ArrayMap<String, PersistableBundle> legacy = new ArrayMap<>();
+        legacy.put("HotspotCondition", new PersistableBundle());
+        writeLegacyXml(legacy);
+        new ConditionStore(mDir).write(makeStates());
+        // Recreate a stale legacy file, which must be ignored
+        writeLegacyXml(legacy);
+
+        final ArrayMap<String, PersistableBundle> states = new ConditionStore(mDir).read();
+        assertFalse(states.containsKey("HotspotCondition"));
+        assertStates(states);
+    }
+
+    @SmallTest
+    public void testBackupOnly() throws Exception {
+        new ConditionStore(mDir).write(makeStates());
+        // An interrupted write leaves the previous snapshot as backup
+        final File snapshot = new File(mDir, SNAPSHOT);
+        assertTrue(snapshot.renameTo(new File(mDir, SNAPSHOT + ".bak")));
+
+        final ConditionStore store = new ConditionStore(mDir);
+        assertTrue(store.hasSnapshot());
+        assertStates(store.read());
+    }
+
+    @SmallTest
+    public void testBackupWithPartialSnapshot() throws Exception {
+        new ConditionStore(mDir).write(makeStates());
+        final File snapshot = new File(mDir, SNAPSHOT);
+        assertTrue(snapshot.renameTo(new File(mDir, SNAPSHOT + ".bak")));
+        final FileOutputStream out = new FileOutputStream(snapshot);
+        out.write(new byte[] { 0, 0 });
+        out.close();
+
+        // The backup wins over the partially written file
+        assertStates(new ConditionStore(mDir).read());
+    }
+
+    private static ArrayMap<String, PersistableBundle> makeStates() {
+        final ArrayMap<String, PersistableBundle> states = new ArrayMap<>();
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putBoolean("silenced", true);
+        bundle.putInt("count", 42);
+        bundle.putLong("timestamp", 1234567890123L);
+        bundle.putString("name", "airplane");
+        states.put("AirplaneModeCondition", bundle);
+        bundle = new PersistableBundle();
+        bundle.putBoolean("silenced", false);
+        states.put("WorkModeCondition", bundle);
+        return states;
+    }
+
+    private static void assertStates(ArrayMap<String, PersistableBundle> states) {
+        assertEquals(2, states.size());
+        final PersistableBundle airplane = states.get("AirplaneModeCondition");
+        assertTrue(airplane.getBoolean("silenced"));
+        assertEquals(42, airplane.getInt("count"));
+        assertEquals(1234567890123L, airplane.getLong("timestamp"));
+        assertEquals("airplane", airplane.getString("name"));
+        final PersistableBundle work = states.get("WorkModeCondition");
+        assertTrue(work.containsKey("silenced"));
+        assertFalse(work.getBoolean("silenced", true));
+    }
+
+    /**
+     * Write the states the way they were saved before the binary snapshot.
+     */
+    private void writeLegacyXml(ArrayMap<String, PersistableBundle> states) throws Exception {
+        final XmlSerializer serializer = Xml.newSerializer();
+        final FileWriter writer = new FileWriter(new File(mDir, LEGACY));
+        serializer.setOutput(writer);
+        serializer.startDocument("UTF-8", true);
+        serializer.startTag("", "cs");
+        for (int i = 0; i < states.size(); i++) {
+            serializer.startTag("", "c");
+            serializer.attribute("", "cls", states.keyAt(i));
+            states.valueAt(i).saveToXml(serializer);
+            serializer.endTag("", "c");
+        }
+        serializer.endTag("", "cs");
+        serializer.flush();
+        writer.close();
+    }
+
+    private void deleteDir() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+}